@@ -3,21 +3,32 @@ import static org.lwjgl.glfw.GLFWVulkan.*;
 import static org.lwjgl.vulkan.VK13.*;
 import static org.lwjgl.vulkan.KHRSurface.*;
 import static org.lwjgl.vulkan.KHRSwapchain.*;
+import static org.lwjgl.vulkan.KHRPushDescriptor.*;
 
-import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.lwjgl.vulkan.EXTDebugUtils.*;
+import static org.lwjgl.vulkan.EXTHeadlessSurface.*;
 
 import org.lwjgl.PointerBuffer;
-import org.lwjgl.system.CustomBuffer;
+import org.lwjgl.glfw.Callbacks;
+import org.lwjgl.Version;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.system.NativeResource;
@@ -29,16 +40,71 @@ public class Application {
 
   //Use object wrapper as a way to encode optionals. An Optional<Integer> is just a joke of a pointer to a pointer to an int
   private static record QueueFamilyConfig (Integer                  graphics,     Integer              present,   Integer           compute,      Integer         transfer                    ){}
-  private static record SwapChainConfig   (VkSurfaceCapabilitiesKHR capabilities, VkSurfaceFormatKHR[] formats,   int[]             presentModes                                              ){}
+  private static record SwapChainConfig   (VkSurfaceCapabilitiesKHR capabilities, VkSurfaceFormatKHR[] formats,   int[]             presentModes, VkSurfaceFormatKHR.Buffer formatBuffer      ){}
   private static record DeviceInfo        (int                      score,        VkPhysicalDevice     device,    QueueFamilyConfig queues,       SwapChainConfig swapchain, String deviceName){}
-  private static record SwapChainExtra    (VkSurfaceFormatKHR       usedFormat,   VkExtent2D           usedExtent                                                                             ){}
+  private static record SwapChainExtra    (int                      usedFormat,   VkExtent2D           usedExtent                                                                             ){}
+  private static record FrameSlot         (VkCommandBuffer          cmdBuffer,    long                 imgAvailableSem                                                                        ){}
+  private static record GraphicsPipeline  (long                     vertModule,   long                 fragModule,      int       topology, VkPipelineVertexInputStateCreateInfo vertexInput){}
+  private static record PipelineSet       (long                     vertModule,   long                 fragModule,      long      particleVertModule, long computeModule, long pipeline, long particlePipeline){}
+
+  public static final int MIN_FRAMES_IN_FLIGHT = 2;
+  public static final int MAX_FRAMES_IN_FLIGHT = 4;
+
+  /**
+   * Receives the pixels of a headless frame once the gpu finished it. Called on the render thread
+   */
+  public interface FrameReadback {
+    /**
+     * @param frame the number of the frame, counting from 0
+     * @param pixels tightly packed RGBA8 rows. Only valid during the call, the memory is reused for later frames
+     * @param width the width in pixels
+     * @param height the height in pixels
+     */
+    void accept(long frame, ByteBuffer pixels, int width, int height);
+  }
+
+  //part of the SPIR-V cache key, so any change here (or an update of the bundled shaderc) produces new cache entries
+  private static final ShaderCompiler.CompilerSettings COMPILER_SETTINGS = new ShaderCompiler.CompilerSettings(true, true, true,
+    Shaderc.shaderc_source_language_glsl,
+    Shaderc.shaderc_optimization_level_zero, //keep uniform names for opengl linking to work
+    Shaderc.shaderc_target_env_vulkan, Shaderc.shaderc_env_version_vulkan_1_3, //some built-ins are different from glsl
+    Version.getVersion());
 
   private long window;
   private int  width, height;
   private boolean debug;
 
-  private long shaderCompiler;
-  private long compilerOptions;
+  //VK_EXT_headless_surface instead of a glfw window. The surface has no extent of its own, width/height are used (and can be changed to simulate resizes)
+  private boolean useHeadlessSurface;
+  private long    frameLimit;  //0 means unlimited
+
+  //no window and no surface at all. Renders into a ring of device-owned images (stored in swapChainImages), one per frame slot
+  private boolean headless;
+  private long[]  offscreenMemory;
+
+  //optional readback of headless frames. One persistently mapped host buffer per frame slot, handed out once the slot's previous frame finished
+  private FrameReadback readbackConsumer;
+  private long[]        readbackBuffers;
+  private long[]        readbackMemory;
+  private ByteBuffer[]  readbackMapped;
+  private long[]        readbackFrames; //the frame each buffer holds, -1 if there is nothing to deliver
+  private int     resizeStorm; //if > 0, the requested extent changes every n frames
+
+  //shaderc is only initialized on the first SPIR-V cache miss. A warm start never touches it
+  private ShaderCompiler shaderCompiler;
+  private SpirvCache     spirvCache;
+  private int            compileThreads = Runtime.getRuntime().availableProcessors(); //shader compilation and module creation
+  private static final ShaderCompiler.Stage CULL_STAGE = new ShaderCompiler.Stage("assets/shaders/cull.csh", Shaderc.shaderc_compute_shader);
+
+  //the phases of init() and the first frame. Independent phases run concurrently, see init()
+  private InitTrace initTrace;
+  private Path      initTraceFile; //null if the trace isn't exported
+  private ExecutorService compileExecutor; //created on first use, the threads keep their shaderc options
+
+  //opt-in rebuild of the graphics pipelines when a shader source changes. The rebuild runs on the reload thread, the swap at a frame boundary
+  private boolean                       shaderHotReload;
+  private ShaderReloader<PipelineSet>   shaderReloader;
+  private long                          reloadCache; //child of pipelineCache, as pipeline caches are externally synchronized
 
   private long vertModule;
   private long fragModule;
@@ -49,16 +115,105 @@ public class Application {
   private long debugMessenger;
   private long surface;
   private long swapChain;
-  private long pipelineLayout;
-  private long renderPass;
+  private int  presentMode;
+  private long pipelineLayout; //owned by descriptors
+  private long renderPass; //VK_NULL_HANDLE with dynamic rendering
+
+  //vkCmdBeginRendering with explicit layout transitions instead of a render pass and per image framebuffers. Falls back if the device lacks the feature
+  private boolean dynamicRendering;
+  private long    renderTargetNanos; //spent creating the render pass and the framebuffers, including recreations
   private long pipeline;
+  private PipelineCache pipelineCache; //null when disabled
+  private boolean usePipelineCache = true;
+  private static final int DEVICE_SCORING_VERSION = 2; //part of the device cache setup. Bumped when scoreDevice requires more, so older entries are rescanned
+  private boolean useDeviceCache   = true; //skips scoring every device when the devices and drivers are the ones of the last start
   private long commandPool;
 
-  private long imgAvailableSem;
-  private long renderFinishedSem;
-  private long inFlightFence;
-
-  private VkCommandBuffer cmdBuffer;
+  //the host records frame n+1 while the gpu still works on frame n. Every frame in flight needs its own cmdBuffer and acquire semaphore,
+  //so the ring depth decides how far the cpu may run ahead of the gpu
+  private int         framesInFlight;
+  private int         currentFrame;
+  private FrameSlot[] frameSlots;
+
+  //frame n signals n + 1 on the graphics queue's timeline, so "frame n finished" is the counter reaching n + 1. Replaces a fence per slot
+  private Timeline graphicsTimeline;
+
+  //the render finished semaphore is waited on by the present engine, which only lets go of it once the image is acquired again.
+  //So it's indexed by swapchain image, not by frame slot. imagesInFlight stores the graphics timeline value of the frame that last rendered into an image
+  private long[] renderFinishedSems;
+  private long[] imagesInFlight;
+
+  private long framesRendered;
+
+  //optionally the per frame recording is replaced by one pre-recorded cmdBuffer per swapchain image (framebuffer), which is only
+  //re-recorded after something it references changed. Re-recording happens lazily, when the image is used next
+  private boolean           useCachedCommandBuffers;
+  private VkCommandBuffer[] cachedCmdBuffers;
+  private boolean[]         cachedCmdBufferDirty;
+  private RollingStats      cpuFrameTimes; //host time spent between the frame waits and the submit, i.e. the recording cost
+
+  private boolean     gpuProfiling;
+  private boolean     gpuPipelineStatistics;
+  private GpuProfiler gpuProfiler; //null when disabled
+
+  private FrameStructs frameStructs;
+
+  private GpuMemory gpuMemory; //vertex, index, uniform and staging buffers are sub-allocated from its pools
+  private Mesh      mesh;
+
+  //the bindless table, materials and per frame data shared by the graphics pipelines. Every draw pushes its object index
+  private DescriptorSystem descriptors;
+  private FrameAllocator   frameAllocator; //per frame constants, bump allocated per slot and reset when the slot's previous frame finished
+  private boolean          pushDescriptors; //VK_KHR_push_descriptor is enabled
+  private int              objectBufferSlot; //the scene's instance buffer in the bindless table
+  private int[]            materials;
+  private long             animationStart;
+
+  private UploadEngine uploads;
+
+  //opt-in particle simulation on the compute queue. The particles of a frame are simulated while the previous frame is rasterized
+  private int            particleCount; //0 disables it
+  private AsyncCompute   asyncCompute;
+  private ParticleSystem particles;
+  private long           particlePipeline;
+  private long           particleVertModule;
+  private long           computeModule;
+  private long           lastSimulation;
+
+  //one instance of the mesh per draw, kept off heap and uploaded in dirty slices. A part of the instances can be animated every frame
+  private SceneStore  scene;
+  private SceneBuffer sceneBuffer;
+  private float       sceneExtent;
+  private int         sceneColumns;
+  private float       sceneAnimation; //the fraction of instances moved per frame
+  private int         animationCursor;
+
+  //the draw list, recorded into secondary cmdBuffers by worker threads when enabled. The draws repeat the mesh, each with its own transform
+  private int              drawCount = 1;
+  private boolean          instancing; //a run of draws with the same material is one instanced draw
+  private int              recordWorkers; //0 records inline on the render thread
+  private ParallelRecorder parallelRecorder;
+
+  //optionally the draw list is culled and compacted by a compute pass, and drawn with one indirect count draw per material
+  private boolean          gpuDriven;
+  private GpuCulling       gpuCulling;
+  private GpuMemory.Buffer drawRecords;
+  private long         allocatedBytes; //java heap allocated by the render thread during the measured frames
+  private long         allocationFrames;
+
+  //set by the glfw resize callback or a simulated resize, consumed by the next drawFrame
+  private volatile boolean framebufferResized;
+  private RollingStats frameTimes;
+  private int swapChainRecreations;
+
+  //present mode, queue depth and input sampling, and the latencies that follow from them
+  private FramePacer framePacer;
+
+  //owns the host memory and the swapchain generations. Swapchain dependent objects can only be destroyed once the frames that used them are done,
+  //so an old generation is retired with the graphics timeline value of the last frame submitted before the recreation
+  private Lifetimes       lifetimes;
+  private Lifetimes.Scope appScope;       //until dispose
+  private Lifetimes.Scope swapChainScope; //the chain (or the offscreen targets), its views, framebuffers, cached cmdBuffers and present semaphores
 
   private long[] swapChainImages;
   private long[] swapChainImageViews;
@@ -72,23 +227,31 @@ public class Application {
   //They are owned by the device, so no need for an explicit free
   private VkQueue queueGraphics; //for drawing commands (also accepts transfer commands)
   private VkQueue queuePresent;  //for interacting with the swap chain
+  private VkQueue queueTransfer; //for uploads, ideally of a family without graphics support
+  private VkQueue queueCompute;  //for async compute, ideally of a family without graphics support
 
   private String[] requredExtensions;
   private String[] requiredValidationLayers;
   private Set<String> requiredDeviceExtensions;
 
-  private List<CustomBuffer<?>> ownedMemoryCustom;
-  private List<Buffer> ownedMemoryNIO;
-  private List<NativeResource> ownedMemoryObj;
-
   public Application(int w, int h, boolean d){
+    this(w, h, d, MIN_FRAMES_IN_FLIGHT);
+  }
+
+  public Application(int w, int h, boolean d, int inFlight){
     width  = w;
     height = h;
     debug  = d;
 
-    ownedMemoryCustom = new ArrayList<>();
-    ownedMemoryNIO    = new ArrayList<>();
-    ownedMemoryObj    = new ArrayList<>();
+    if(inFlight < MIN_FRAMES_IN_FLIGHT || inFlight > MAX_FRAMES_IN_FLIGHT) throw new RuntimeException("Frames in flight must be between " + MIN_FRAMES_IN_FLIGHT + " and " + MAX_FRAMES_IN_FLIGHT + ", got " + inFlight);
+    framesInFlight = inFlight;
+
+    frameTimes       = new RollingStats(4096);
+    cpuFrameTimes    = new RollingStats(4096);
+    framePacer       = new FramePacer(FramePacer.Policy.THROUGHPUT, 0); //keeps the requested frames in flight, setFramePacing() lets the policy decide
+
+    lifetimes = new Lifetimes();
+    appScope  = lifetimes.scope("application");
 
     if(debug) System.out.println("Using debug");
 
@@ -103,77 +266,357 @@ public class Application {
 
     requiredDeviceExtensions = new HashSet<>();
     requiredDeviceExtensions.add(VK_KHR_SWAPCHAIN_EXTENSION_NAME);
+
+    spirvCache     = new SpirvCache(Paths.get("cache", "spirv"), COMPILER_SETTINGS.toString());
+    shaderCompiler = new ShaderCompiler(COMPILER_SETTINGS, spirvCache);
+  }
+
+  /**
+   * Renders to a VK_EXT_headless_surface instead of a glfw window. Must be called before {@link #init()}
+   * @param use true to run without a display
+   */
+  public void useHeadlessSurface(boolean use){
+    useHeadlessSurface = use;
+  }
+
+  /**
+   * Renders without a window or surface into device-owned images, so it works on machines without a display or presentation support.
+   * Must be called before {@link #init()}. Use together with {@link #setFrameLimit(long)}, as there is no window to close
+   * @param use true for offscreen rendering
+   */
+  public void useHeadless(boolean use){
+    headless = use;
+  }
+
+  /**
+   * Selects the frame pacing policy, which picks the present mode, the swapchain length, the frames in flight (overriding the constructor's)
+   * and when input is sampled. Must be called before {@link #init()}
+   * @param policy the policy
+   * @param targetFps the frame rate cap of {@link FramePacer.Policy#POWER_CAPPED}, ignored otherwise
+   */
+  public void setFramePacing(FramePacer.Policy policy, int targetFps){
+    framePacer     = new FramePacer(policy, targetFps);
+    framesInFlight = framePacer.framesInFlight(framesInFlight, MIN_FRAMES_IN_FLIGHT, MAX_FRAMES_IN_FLIGHT);
+  }
+
+  /**
+   * @return the pacer, with the input to submit and input to present latencies of the run
+   */
+  public FramePacer framePacer(){
+    return framePacer;
+  }
+
+  /**
+   * Copies every headless frame to host memory. The copy is recorded into the frame's cmdBuffer, and the consumer is called asynchronously,
+   * once the frame slot comes around again and its previous frame finished. So the readback never stalls the gpu. Must be called before {@link #init()}
+   * @param consumer receives the pixels, null to disable the readback
+   */
+  public void setReadback(FrameReadback consumer){
+    readbackConsumer = consumer;
+  }
+
+  /**
+   * Pre-records one cmdBuffer per swapchain image and resubmits it every frame, instead of re-recording the frame's cmdBuffer.
+   * Must be called before {@link #init()}
+   * @param use true to record only after {@link #invalidateCommandBuffers()} or a swapchain recreation
+   */
+  public void useCachedCommandBuffers(boolean use){
+    useCachedCommandBuffers = use;
+  }
+
+  /**
+   * Marks all cached cmdBuffers as outdated, e.g. after the scene or a pipeline changed. They are re-recorded the next time their image is rendered.
+   * Does nothing if cached cmdBuffers are not used, as everything is recorded each frame anyway
+   */
+  public void invalidateCommandBuffers(){
+    if(cachedCmdBufferDirty != null) Arrays.fill(cachedCmdBufferDirty, true);
+  }
+
+  /**
+   * Measures the gpu time of the recorded scopes (frame, render pass, draws) with timestamp queries. Must be called before {@link #init()}.
+   * Not available together with cached cmdBuffers, as the queries are reset and assigned while recording
+   * @param pipelineStatistics also collect pipeline statistics for the frame, if the device supports it
+   */
+  public void enableGpuProfiler(boolean pipelineStatistics){
+    gpuProfiling          = true;
+    gpuPipelineStatistics = pipelineStatistics;
+  }
+
+  /**
+   * Simulates particles with a compute shader on the compute queue, and draws them as points.
+   * Not available together with cached cmdBuffers, as the drawn particle buffer changes every frame
+   * @param count the number of particles, 0 disables the simulation
+   */
+  public void useAsyncCompute(int count){
+    particleCount = count;
+  }
+
+  /**
+   * The number of threads compiling shader stages and creating shader modules at startup. Must be called before {@link #init()}
+   * @param threads at least 1, defaults to the number of cores
+   */
+  public void setCompileThreads(int threads){
+    compileThreads = Math.max(1, threads);
+  }
+
+  /**
+   * Renders with vkCmdBeginRendering (core in Vulkan 1.3) instead of a VkRenderPass and one VkFramebuffer per swapchain image.
+   * Must be called before {@link #init()}
+   * @param use true for dynamic rendering, false for the render pass path
+   */
+  public void useDynamicRendering(boolean use){
+    dynamicRendering = use;
+  }
+
+  /**
+   * Watches assets/shaders and rebuilds the graphics pipelines in the background when a source changes. The new pipelines are swapped in
+   * at the next frame, a failed compilation keeps the old ones. Must be called before {@link #init()}
+   * @param use true to watch the shader sources
+   */
+  public void useShaderHotReload(boolean use){
+    shaderHotReload = use;
   }
 
   /**
-   * Tracks heap allocated direct bytebuffers that must be freed at the end of the applications lifetime
+   * The number of draws in the draw list. Must be called before {@link #init()}
+   * @param count the draws per frame, at least 1
+   */
+  public void setDrawCount(int count){
+    drawCount = Math.max(1, count);
+  }
+
+  /**
+   * Records the draw list on worker threads into secondary cmdBuffers. Not available together with cached cmdBuffers, which aren't re-recorded.
+   * Must be called before {@link #init()}
+   * @param workers the number of recording threads, 0 records inline on the render thread
+   */
+  public void useParallelRecording(int workers){
+    recordWorkers = workers;
+  }
+
+  /**
+   * Culls the draw list against the view in a compute pass and draws the visible objects with vkCmdDrawIndexedIndirectCount, so the
+   * recording cost doesn't depend on the number of draws. Falls back to host issued draws if the device lacks the indirect draw features.
+   * Not available together with cached cmdBuffers, as the culled commands of a frame slot are rewritten every frame. Must be called before {@link #init()}
+   * @param use true for the GPU-driven path
+   */
+  public void useGpuDrivenRendering(boolean use){
+    gpuDriven = use;
+  }
+
+  /**
+   * Draws every run of draws with the same material as one instanced draw, instead of a draw per instance. Must be called before {@link #init()}
+   * @param use true for instanced draws
+   */
+  public void useInstancing(boolean use){
+    instancing = use;
+  }
+
+  /**
+   * Moves a part of the scene's instances every frame, which are then uploaded in dirty slices.
+   * Not available together with cached cmdBuffers, which don't record the uploads. Must be called before {@link #init()}
+   * @param fraction the fraction of instances changed per frame, 0 keeps the scene static
+   */
+  public void setSceneAnimation(float fraction){
+    sceneAnimation = Math.max(0, Math.min(1, fraction));
+  }
+
+  /**
+   * @return the java heap the render thread allocated per frame after the warmup, NaN if it wasn't measured
+   */
+  public double heapBytesPerFrame(){
+    return allocationFrames > 0 ? (double)allocatedBytes / allocationFrames : Double.NaN;
+  }
+
+  /**
+   * @return the bytes of instance data uploaded after the initial upload
+   */
+  public long sceneBytesUploaded(){
+    return sceneBuffer.bytesUploaded();
+  }
+
+  /**
+   * @return the host time per frame spent between the frame waits and the submit, mostly recording
+   */
+  public RollingStats cpuFrameTimes(){
+    return cpuFrameTimes;
+  }
+
+  /**
+   * @return the profiler to read the aggregated scope timings from, or null if it isn't enabled
+   */
+  public GpuProfiler gpuProfiler(){
+    return gpuProfiler;
+  }
+
+  /**
+   * Stops {@link #run()} after the given amount of frames, even if the window is still open
+   * @param frames the limit, 0 for no limit
+   */
+  public void setFrameLimit(long frames){
+    frameLimit = frames;
+  }
+
+  /**
+   * Benchmark mode which resizes the window (or the simulated headless surface) every n frames, to measure frame time spikes caused by swapchain recreation
+   * @param everyNFrames the interval, 0 disables it
+   */
+  public void setResizeStorm(int everyNFrames){
+    resizeStorm = everyNFrames;
+  }
+
+  /**
+   * Whether pipelines are created through a VkPipelineCache persisted in the cache directory. Must be called before {@link #init()}
+   * @param use false to always let the driver compile from scratch, e.g. to measure the effect of the cache
+   */
+  public void usePipelineCache(boolean use){
+    usePipelineCache = use;
+  }
+
+  /**
+   * Whether the chosen physical device is remembered in the cache directory, so the next start can skip scoring all devices. Must be called before {@link #init()}
+   * @param use false to always score every device
+   */
+  public void useDeviceCache(boolean use){
+    useDeviceCache = use;
+  }
+
+  /**
+   * Tracks heap allocated memory that must be freed at the end of the applications lifetime. Memory with a shorter lifetime belongs into its own scope
    * @param <T> the type of buffer to track
    * @param mem the buffer to track
    * @return the tracked buffer for chaining
    */
-  private <T extends PointerBuffer> T trackMem(T mem){
-    ownedMemoryCustom.add(mem);
-    return mem;
+  private PointerBuffer trackMem(PointerBuffer mem){
+    return appScope.own(mem);
+  }
+
+  private <T extends NativeResource> T trackMem(T mem){
+    return appScope.own(mem);
   }
 
   @SuppressWarnings("unused")
   private <T extends Buffer> T trackMem(T mem){
-    ownedMemoryNIO.add(mem);
-    return mem;
+    return appScope.own(mem);
   }
 
-  private <T extends NativeResource> T trackMem(T mem){
-    ownedMemoryObj.add(mem);
-    return mem;
+  /**
+   * Writes the init phases and the first frame as a Chrome trace (chrome://tracing, Perfetto) once the first frame was drawn.
+   * The phases are also JFR events, which need no file here. Must be called before {@link #init()}
+   * @param file the trace file, null to only print the phases
+   */
+  public void setInitTrace(Path file){
+    initTraceFile = file;
+  }
+
+  /**
+   * @return the phases of the last {@link #init()}, null before it
+   */
+  public InitTrace initTrace(){
+    return initTrace;
   }
 
   public void init(){
+    NativeMemoryStats.watchStack(); //the render thread
 
-    initShaderC();
-    initWindow(); //typical glfw window creation
-    initVulkan();
-  }
+    if(headless) requiredDeviceExtensions.remove(VK_KHR_SWAPCHAIN_EXTENSION_NAME);
 
-  private void initShaderC(){
-    shaderCompiler  = Shaderc.shaderc_compiler_initialize();
-    compilerOptions = Shaderc.shaderc_compile_options_initialize();
+    //forked phases run on their own threads. The compile threads can't be used, the shader compilation waits on them
+    var threadCount  = new AtomicInteger();
+    var initExecutor = Executors.newCachedThreadPool(task -> {
+      var thread = new Thread(() -> { NativeMemoryStats.watchStack(); task.run(); }, "init-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    initTrace = new InitTrace(initExecutor);
 
-    Shaderc.shaderc_compile_options_set_auto_map_locations(compilerOptions, true);
-    Shaderc.shaderc_compile_options_set_auto_bind_uniforms(compilerOptions, true);
-    Shaderc.shaderc_compile_options_set_nan_clamp         (compilerOptions, true);
-    Shaderc.shaderc_compile_options_set_source_language   (compilerOptions, Shaderc.shaderc_source_language_glsl);
-    Shaderc.shaderc_compile_options_set_optimization_level(compilerOptions, Shaderc.shaderc_optimization_level_zero);//keep uniform names for opengl linking to work
-    Shaderc.shaderc_compile_options_set_target_env        (compilerOptions, Shaderc.shaderc_target_env_vulkan, Shaderc.shaderc_env_version_vulkan_1_3); //some built-ins are different from glsl
+    //SPIR-V needs neither a window nor a device, so it's compiled (or loaded from the cache) while those are created
+    var shaders = initTrace.fork("shader compilation", () -> shaderCompiler.prefetch(compileExecutor(), startupStages()));
 
+    try{
+      initWindow(); //typical glfw window creation, with the instance created meanwhile
+      initVulkan(shaders);
+    }finally{
+      initExecutor.shutdown(); //a failed init leaves no threads behind
+    }
+
+    System.out.println(String.format("Init completed in %.1fms", initTrace.elapsed() / 1e6));
   }
 
   private void initWindow(){
-    glfwInit();
+    if(useHeadlessSurface || headless){
+      //no display, the surface (if any) is created from the instance alone
+      initTrace.run("instance", this::createInstance);
+      return;
+    }
+
+    initTrace.run("glfw init", () -> {
+      glfwInit();
+      if(!glfwVulkanSupported()) throw new RuntimeException("glfw doesn't support vulkan");
+    });
+
+    //glfwGetRequiredInstanceExtensions may be called from any thread, the window has to be created on this one
+    var instanceCreation = initTrace.fork("instance", this::createInstance);
+    initTrace.run("window", this::createWindow);
+    initTrace.join(instanceCreation);
+  }
+
+  private void createWindow(){
     glfwWindowHint(GLFW_CLIENT_API, GLFW_NO_API);
-    glfwWindowHint(GLFW_RESIZABLE, GLFW_FALSE); //todo tutorials says this will be handled later
+    glfwWindowHint(GLFW_RESIZABLE, GLFW_TRUE);
 
     window = glfwCreateWindow(width, height, "java-vulkan", MemoryUtil.NULL, MemoryUtil.NULL);
 
-    if(!glfwVulkanSupported()) throw new RuntimeException("glfw doesn't support vulkan");
+    //the swapchain is only recreated at the start of the next frame, the callback just flags it. The callback object is freed in disposeGlfw
+    glfwSetFramebufferSizeCallback(window, (wnd, w, h) -> framebufferResized = true);
   }
 
-  private void initVulkan(){
-    createInstance();
-    createSurface();
-    selectPhyscialDevice();
-    createLogicalDevice();
-    createSwapChain();
-    createImageViews();
-    createRenderPass();
-    createPipeline();
-    createFramebuffers();
-    createCommandPool();
-    createCommandBuffer();
-    createSyncObjects();
+  //the instance was created with the window. Phases run in this order, except the pipelines, which are created concurrently with the uploads
+  private void initVulkan(CompletableFuture<Void> shaders){
+    var trace = initTrace;
+
+    trace.run("surface",               this::createSurface);
+    trace.run("device selection",      this::selectPhyscialDevice);
+    trace.run("logical device",        this::createLogicalDevice);
+    trace.run("gpu memory",            this::createGpuMemory);
+    trace.run("pipeline cache",        this::createPipelineCache);
+    trace.run("swapchain",             this::createSwapChain);
+    trace.run("image views",           this::createImageViews);
+    trace.run("render pass",           this::createRenderPass);
+    trace.run("descriptors",           this::createDescriptors);
+
+    //only needs the layout, the render pass and the SPIR-V. Nothing until the join touches the pipelines, their modules or the pipeline cache
+    trace.join(shaders);
+    var pipelines = trace.fork("pipelines", this::createPipeline);
+
+    trace.run("framebuffers",          this::createFramebuffers);
+    trace.run("command pool",          this::createCommandPool);
+    trace.run("upload engine",         this::createUploadEngine);
+    trace.run("meshes",                this::createMeshes);
+    trace.run("command buffers",       this::createCommandBuffers);
+    trace.run("cached cmdBuffers",     this::createCachedCommandBuffers);
+    trace.run("gpu profiler",          this::createGpuProfiler);
+    trace.join(pipelines);
+
+    trace.run("async compute",         this::createAsyncCompute);
+    trace.run("parallel recorder",     this::createParallelRecorder);
+    trace.run("gpu culling",           this::createGpuCulling);
+    trace.run("sync objects",          this::createSyncObjects);
+    trace.run("frame structs",         this::createFrameStructs);
+    trace.run("shader reloader",       this::createShaderReloader);
+  }
+
+  //what init() compiles, so it can be compiled ahead. Stages that end up unused (e.g. the device lacks indirect count draws) just stay prefetched
+  private ShaderCompiler.Stage[] startupStages(){
+    var stages = pipelineStages(particlesEnabled());
+    if(gpuDriven && !useCachedCommandBuffers) stages.add(CULL_STAGE);
+    return stages.toArray(new ShaderCompiler.Stage[0]);
   }
 
   private PointerBuffer getInstanceExtensionsPtr(){
-    var glfwPtr = glfwGetRequiredInstanceExtensions();
+    var glfwPtr = headless           ? MemoryStack.stackGet().mallocPointer(0) :
+                  useHeadlessSurface ? MemoryStack.stackGet().pointers(MemoryStack.stackUTF8(VK_KHR_SURFACE_EXTENSION_NAME), MemoryStack.stackUTF8(VK_EXT_HEADLESS_SURFACE_EXTENSION_NAME))
+                                     : glfwGetRequiredInstanceExtensions();
 
     PointerBuffer ptr;
     if(requredExtensions.length == 0){
@@ -341,10 +784,19 @@ public class Application {
   private void createSurface(){
     //abstracts away interacting with the platform specific vulkan extensions to create a drawing surface, but they all work similar, with a createInfo object and an API call to create a surface
     //Thats why the call returns a vulkan result to check against
+    if(headless) return;
 
     try(var stack = MemoryStack.stackPush()){
       var ptr = stack.mallocLong(1);//trackMem(MemoryUtil.memAllocLong(1));
-      checkResult(glfwCreateWindowSurface(instance, window, null, ptr));
+
+      if(useHeadlessSurface){
+        var createInfo = VkHeadlessSurfaceCreateInfoEXT.calloc(stack)
+          .sType(VK_STRUCTURE_TYPE_HEADLESS_SURFACE_CREATE_INFO_EXT);
+        checkResult(vkCreateHeadlessSurfaceEXT(instance, createInfo, null, ptr));
+      }else{
+        checkResult(glfwCreateWindowSurface(instance, window, null, ptr));
+      }
+
       surface = ptr.get();
     }
 
@@ -352,6 +804,8 @@ public class Application {
   }
 
   private void selectPhyscialDevice(){
+    var start = System.nanoTime();
+
     try(var stack = MemoryStack.stackPush()){
       var numPtr = stack.mallocInt(1);
       vkEnumeratePhysicalDevices(instance, numPtr, null);
@@ -361,56 +815,139 @@ public class Application {
       var devicePtr = stack.mallocPointer(numPtr.get(0));
       vkEnumeratePhysicalDevices(instance, numPtr, devicePtr);
 
-      List<DeviceInfo> devices = new ArrayList<>();
-
+      //VkPhysicalDevices are managed by the API, no need to free
+      var candidates = new ArrayList<VkPhysicalDevice>();
+      var identities = new ArrayList<DeviceSelectionCache.Identity>();
       while(devicePtr.remaining() > 0){
-        //VkPhysicalDevices are managed by the API, no need to free
-        devices.add(scoreDevice(new VkPhysicalDevice(devicePtr.get(), instance)));
+        var candidate = new VkPhysicalDevice(devicePtr.get(), instance);
+        candidates.add(candidate);
+        identities.add(DeviceSelectionCache.identify(candidate)); //one properties query, nothing surface related
+      }
+
+      var cache = useDeviceCache ? new DeviceSelectionCache(Paths.get("cache", "device.properties")) : null;
+      var setup = "scoring=" + DEVICE_SCORING_VERSION + ",headless=" + headless + ",headlessSurface=" + useHeadlessSurface + ",extensions=" + new TreeSet<>(requiredDeviceExtensions);
+
+      var cached = cache != null ? cache.lookup(identities, setup) : null;
+      if(cached != null){
+        for(int i = 0; i < identities.size(); i++){
+          if(identities.get(i).key().equals(cached.device())) deviceInfo = revalidateDevice(candidates.get(i), cached);
+        }
       }
 
-      devices.sort((lhs, rhs) -> rhs.score-lhs.score); //inverted; largest first
+      var fastPath = deviceInfo != null;
+      if(!fastPath){
+        deviceInfo = scoreDevices(candidates);
+
+        var index  = candidates.indexOf(deviceInfo.device);
+        var queues = deviceInfo.queues;
+        if(cache != null) cache.store(new DeviceSelectionCache.Entry(DeviceSelectionCache.fingerprint(identities), setup, identities.get(index).key(), deviceInfo.deviceName,
+          deviceInfo.score, queues.graphics, queues.present != null ? queues.present : -1, queues.compute, queues.transfer));
+      }
 
-      if(devices.get(0).score == 0) throw new RuntimeException("No suitable device found");
+      //only the chosen device's surface query lives until exit
+      if(deviceInfo.swapchain != null){
+        trackMem(deviceInfo.swapchain.capabilities);
+        trackMem(deviceInfo.swapchain.formatBuffer);
+      }
 
-      System.out.println("Best suited device: " + devices.get(0).deviceName);
-      deviceInfo = devices.get(0);
+      System.out.println(String.format("%s: %s (%d devices, selected in %.2fms)", fastPath ? "Cached device" : "Best suited device", deviceInfo.deviceName,
+        candidates.size(), (System.nanoTime() - start) / 1e6));
     }
   }
 
-  private DeviceInfo scoreDevice(VkPhysicalDevice someDevice){
-    var stack      = MemoryStack.stackGet();
-    var properties = VkPhysicalDeviceProperties.calloc(stack); //basic info, such as device name, vencorID, but also the type (integrated, discrete, etc) and info on all the min/max limits of the API
-    var features   = VkPhysicalDeviceFeatures  .calloc(stack); //more detailed info on features, such as texture compression, 64bit float support, etc.
+  //the full scan
+  private DeviceInfo scoreDevices(List<VkPhysicalDevice> candidates){
+    //scored concurrently, the queries of one device don't depend on the others
+    var scores = new ArrayList<CompletableFuture<DeviceInfo>>();
+    for(var candidate : candidates){
+      scores.add(initTrace.supply("score device " + scores.size(), () -> scoreDevice(candidate)));
+    }
+
+    List<DeviceInfo> devices = new ArrayList<>();
+    for(var score : scores) devices.add(initTrace.join(score));
 
-    vkGetPhysicalDeviceProperties(someDevice, properties);
-    vkGetPhysicalDeviceFeatures  (someDevice, features  );
+    devices.sort((lhs, rhs) -> rhs.score-lhs.score); //inverted; largest first
 
-    var name   = properties.deviceNameString();
-    var type   = properties.deviceType();
-    var queues = queryQueueFamilyInfo(someDevice);
+    for(var loser : devices.subList(1, devices.size())) freeSwapChainConfig(loser.swapchain);
 
-    //requred
-    var hasGeoShader  = features.geometryShader()     ? 1 : 0;
-    var hasGraphics   = queues.graphics != null       ? 1 : 0;
-    var hasPresent    = queues.present  != null       ? 1 : 0;
-    var hasCompute    = queues.compute  != null       ? 1 : 0;
-    var hasExtensions = checkDeviceExtensions(someDevice) ? 1 : 0;
-    var hasSwapChain  = 0;
+    if(devices.get(0).score == 0) throw new RuntimeException("No suitable device found");
+    return devices.get(0);
+  }
+
+  //the cached device and driver are unchanged, so features, extensions and queue families are too. Only what depends on this start's surface is queried
+  private DeviceInfo revalidateDevice(VkPhysicalDevice cachedDevice, DeviceSelectionCache.Entry cached){
+    var queues = new QueueFamilyConfig(cached.graphics(), cached.present() >= 0 ? cached.present() : null, cached.compute(), cached.transfer());
 
-    SwapChainConfig deviceSwapChain = null;
-    if(hasExtensions > 0){ //swapchain query only possible if the swapchain extension is present
-      deviceSwapChain = querySwapChainConfig(someDevice);
+    if(headless) return new DeviceInfo(cached.score(), cachedDevice, queues, null, cached.deviceName());
+
+    try(var stack = MemoryStack.stackPush()){
+      var ptr = stack.mallocInt(1);
+      if(queues.present == null || vkGetPhysicalDeviceSurfaceSupportKHR(cachedDevice, queues.present, surface, ptr) != VK_SUCCESS || ptr.get(0) != VK_TRUE){
+        System.out.println("Cached device can't present to this surface, scanning all devices");
+        return null;
+      }
+    }
 
-      hasSwapChain = (deviceSwapChain.formats.length > 0 && deviceSwapChain.presentModes.length > 0) ? 1 : 0;
+    var swapchain = querySwapChainConfig(cachedDevice);
+    if(swapchain.formats.length == 0 || swapchain.presentModes.length == 0){
+      System.out.println("Cached device has no usable swapchain for this surface, scanning all devices");
+      freeSwapChainConfig(swapchain);
+      return null;
     }
 
-    //preferred
-    var discrete = type == VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU ? 1000 : 1;
-    var hasTransfer = queues.transfer != null ? 2 : 1;
+    return new DeviceInfo(cached.score(), cachedDevice, queues, swapchain, cached.deviceName());
+  }
+
+  //runs on the init threads, so it pushes its own stack frame
+  private DeviceInfo scoreDevice(VkPhysicalDevice someDevice){
+    try(var stack = MemoryStack.stackPush()){
+      var properties = VkPhysicalDeviceProperties.calloc(stack); //basic info, such as device name, vencorID, but also the type (integrated, discrete, etc) and info on all the min/max limits of the API
+      var features   = VkPhysicalDeviceFeatures  .calloc(stack); //more detailed info on features, such as texture compression, 64bit float support, etc.
+
+      vkGetPhysicalDeviceProperties(someDevice, properties);
+      vkGetPhysicalDeviceFeatures  (someDevice, features  );
+
+      //the struct may only be chained on a 1.2 device. Older ones keep it zeroed, so they lack the bindless features
+      var features12 = VkPhysicalDeviceVulkan12Features.calloc(stack).sType$Default();
+      if(properties.apiVersion() >= VK_API_VERSION_1_2) vkGetPhysicalDeviceFeatures2(someDevice, VkPhysicalDeviceFeatures2.calloc(stack).sType$Default().pNext(features12));
+
+      var name   = properties.deviceNameString();
+      var type   = properties.deviceType();
+      var queues = queryQueueFamilyInfo(someDevice);
+
+      //requred
+      var hasGeoShader  = features.geometryShader()     ? 1 : 0;
+      var hasGraphics   = queues.graphics != null       ? 1 : 0;
+      var hasPresent    = queues.present  != null || headless ? 1 : 0;
+      var hasCompute    = queues.compute  != null       ? 1 : 0;
+      var hasExtensions = checkDeviceExtensions(someDevice) ? 1 : 0;
+      var hasBindless   = hasBindlessFeatures(features, features12) ? 1 : 0;
+      var hasSwapChain  = 0;
+
+      SwapChainConfig deviceSwapChain = null;
+      if(headless){
+        hasSwapChain = 1; //renders into own images, no swapchain needed
+      }else if(hasExtensions > 0){ //swapchain query only possible if the swapchain extension is present
+        deviceSwapChain = querySwapChainConfig(someDevice);
+
+        hasSwapChain = (deviceSwapChain.formats.length > 0 && deviceSwapChain.presentModes.length > 0) ? 1 : 0;
+      }
+
+      //preferred
+      var discrete = type == VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU ? 1000 : 1;
+      var hasTransfer = queues.transfer != null ? 2 : 1;
+
+      int score = (discrete + hasTransfer) * (hasGeoShader * hasGraphics * hasPresent * hasCompute * hasExtensions * hasSwapChain * hasBindless);
 
-    int score = (discrete + hasTransfer) * (hasGeoShader * hasGraphics * hasPresent * hasCompute * hasExtensions * hasSwapChain);
+      return new DeviceInfo(score, someDevice, queues, deviceSwapChain, name);
+    }
+  }
 
-    return new DeviceInfo(score, someDevice, queues, deviceSwapChain, name);
+  //descriptor indexing for the bindless table. The vertex shader indexes its storage buffer array with a push constant
+  private static boolean hasBindlessFeatures(VkPhysicalDeviceFeatures features, VkPhysicalDeviceVulkan12Features features12){
+    return features12.runtimeDescriptorArray() && features12.descriptorBindingPartiallyBound() &&
+           features12.descriptorBindingStorageBufferUpdateAfterBind() && features12.descriptorBindingSampledImageUpdateAfterBind() &&
+           features.shaderStorageBufferArrayDynamicIndexing();
   }
 
   private QueueFamilyConfig queryQueueFamilyInfo(VkPhysicalDevice dev){
@@ -431,8 +968,12 @@ public class Application {
       int flags = queue.queueFlags();
 
       if ((flags & VK_QUEUE_GRAPHICS_BIT) != 0) graphics = i;
-      if ((flags & VK_QUEUE_COMPUTE_BIT)  != 0) compute  = i;
-      if ((flags & VK_QUEUE_TRANSFER_BIT) != 0) transfer = i;
+      //prefer a compute family without graphics, its queue is more likely to run next to the graphics queue instead of being time sliced with it
+      if ((flags & VK_QUEUE_COMPUTE_BIT)  != 0 && (compute == null || (flags & VK_QUEUE_GRAPHICS_BIT) == 0)) compute = i;
+      //prefer a family that can only transfer. It's usually backed by a dma engine, which copies without occupying the graphics hardware
+      if ((flags & VK_QUEUE_TRANSFER_BIT) != 0 && (transfer == null || (flags & (VK_QUEUE_GRAPHICS_BIT | VK_QUEUE_COMPUTE_BIT)) == 0)) transfer = i;
+
+      if(surface == VK_NULL_HANDLE) continue; //headless, nothing to present to
 
       var ptr = stack.mallocInt(1);
       vkGetPhysicalDeviceSurfaceSupportKHR(dev, i, surface, ptr);
@@ -445,12 +986,13 @@ public class Application {
 
   private SwapChainConfig querySwapChainConfig(VkPhysicalDevice someDevice){
     try(var stack = MemoryStack.stackPush()){
-      var capabilities = trackMem(VkSurfaceCapabilitiesKHR.calloc());
+      //not tracked, only the chosen device's config is kept. The others are freed right after the selection
+      var capabilities = VkSurfaceCapabilitiesKHR.calloc();
       vkGetPhysicalDeviceSurfaceCapabilitiesKHR(someDevice, surface, capabilities);
 
       var cntPtr = stack.mallocInt(1);
       vkGetPhysicalDeviceSurfaceFormatsKHR(someDevice, surface, cntPtr, null);
-      var formatPtr = trackMem(VkSurfaceFormatKHR.calloc(cntPtr.get(0)));
+      var formatPtr = VkSurfaceFormatKHR.calloc(cntPtr.get(0));
       vkGetPhysicalDeviceSurfaceFormatsKHR(someDevice, surface, cntPtr, formatPtr);
 
       vkGetPhysicalDeviceSurfacePresentModesKHR(someDevice, surface, cntPtr, null);
@@ -463,24 +1005,31 @@ public class Application {
       int i = 0; while(formatPtr .remaining() > 0) formats     [i++] = formatPtr .get();
           i = 0; while(presentPtr.remaining() > 0) presentModes[i++] = presentPtr.get();
 
-      return new SwapChainConfig(capabilities, formats, presentModes);
+      return new SwapChainConfig(capabilities, formats, presentModes, formatPtr);
     }
   }
 
+  private void freeSwapChainConfig(SwapChainConfig config){
+    if(config == null) return; //headless, or the device lacks the swapchain extension
+
+    config.capabilities.free();
+    config.formatBuffer.free();
+  }
+
   private boolean checkDeviceExtensions(VkPhysicalDevice someDevice){
+    return supportedDeviceExtensions(someDevice).containsAll(requiredDeviceExtensions);
+  }
+
+  private Set<String> supportedDeviceExtensions(VkPhysicalDevice someDevice){
     try(var stack = MemoryStack.stackPush()){
       var cntPtr = stack.mallocInt(1);
       vkEnumerateDeviceExtensionProperties(someDevice, (ByteBuffer)null, cntPtr, null);
       var properties = VkExtensionProperties.calloc(cntPtr.get(0), stack);
       vkEnumerateDeviceExtensionProperties(someDevice, (ByteBuffer)null, cntPtr, properties);
 
-      var checkSet = new HashSet<>(requiredDeviceExtensions);
-
-      for(var prop : properties){
-        checkSet.remove(prop.extensionNameString());
-      }
-
-      return checkSet.isEmpty();
+      var supported = new HashSet<String>();
+      for(var prop : properties) supported.add(prop.extensionNameString());
+      return supported;
     }
   }
 
@@ -493,39 +1042,30 @@ public class Application {
     return formats[0];
   }
 
-  //vsync settings
+  //vsync settings, decided by the pacing policy
   private int chooseSwapPresentMode(int[] modes){
-    int fallback = modes[0];
-
-    Set<Integer> modeSet = new HashSet<>();
-    for(int mode : modes) modeSet.add(mode);
-
-    return modeSet.contains(VK_PRESENT_MODE_MAILBOX_KHR)      ? VK_PRESENT_MODE_MAILBOX_KHR :      //tripple buffered
-           modeSet.contains(VK_PRESENT_MODE_FIFO_RELAXED_KHR) ? VK_PRESENT_MODE_FIFO_RELAXED_KHR : //vsync, but if a frame is late acceppt tearing
-           modeSet.contains(VK_PRESENT_MODE_FIFO_KHR)         ? VK_PRESENT_MODE_FIFO_KHR :         //full vsync
-           fallback; //probably no sync at all
+    return framePacer.choosePresentMode(modes);
   }
 
   //size of the "default framebuffer"
   private VkExtent2D chooseSwapExtend(VkSurfaceCapabilitiesKHR capabilities){
-    //-1 indicates that the extent can be chosen, otherwise the provided extend has to be used
-    if(capabilities.currentExtent().width() != -1) return capabilities.currentExtent();
-
-    System.out.println("Setting up custom extent");
+    //copied, as the capabilities struct is refreshed in place on every swapchain recreation
+    var actualExtent = VkExtent2D.create();
 
-    var stack = MemoryStack.stackGet();
-    var wPtr = stack.mallocInt(1);
-    var hPtr = stack.mallocInt(1);
+    //-1 indicates that the extent can be chosen, otherwise the provided extend has to be used
+    if(capabilities.currentExtent().width() != -1) return actualExtent.set(capabilities.currentExtent());
 
-    glfwGetFramebufferSize(window, wPtr, hPtr);
+    try(var stack = MemoryStack.stackPush()){
+      var wPtr = stack.mallocInt(1).put(0, width);
+      var hPtr = stack.mallocInt(1).put(0, height);
 
-    int w = Math.max(capabilities.minImageExtent().width(),  Math.min(capabilities.maxImageExtent().width(),  wPtr.get()));
-    int h = Math.max(capabilities.minImageExtent().height(), Math.min(capabilities.maxImageExtent().height(), hPtr.get()));
+      if(window != MemoryUtil.NULL) glfwGetFramebufferSize(window, wPtr, hPtr); //a headless surface just uses the requested size
 
-    var actualExtent = VkExtent2D.create();
-    actualExtent.set(w, h);
+      int w = Math.max(capabilities.minImageExtent().width(),  Math.min(capabilities.maxImageExtent().width(),  wPtr.get()));
+      int h = Math.max(capabilities.minImageExtent().height(), Math.min(capabilities.maxImageExtent().height(), hPtr.get()));
 
-    return actualExtent;
+      return actualExtent.set(w, h);
+    }
   }
 
   private void createLogicalDevice(){
@@ -535,7 +1075,7 @@ public class Application {
       //Java-side the queues are separated logically, but some queue families might support the features of multiple logical queues, therefore pointing to the same family index
       Set<Integer> uniqueFamilies = new HashSet<>();
       uniqueFamilies.add(deviceInfo.queues.graphics);
-      uniqueFamilies.add(deviceInfo.queues.present);
+      if(deviceInfo.queues.present != null) uniqueFamilies.add(deviceInfo.queues.present); //null when headless
       uniqueFamilies.add(deviceInfo.queues.compute);
       uniqueFamilies.add(deviceInfo.queues.transfer);
 
@@ -551,11 +1091,66 @@ public class Application {
         .pQueuePriorities(priority); //automatically sets the queue count based on the amount of priorities
       }
 
-      var deviceFeatures = VkPhysicalDeviceFeatures.calloc(stack); //no features requested. TODO for later
+      var deviceFeatures = VkPhysicalDeviceFeatures.calloc(stack); //only optional features are requested, the required ones are checked in scoreDevice
+
+      if(gpuPipelineStatistics){
+        var supported = VkPhysicalDeviceFeatures.calloc(stack);
+        vkGetPhysicalDeviceFeatures(deviceInfo.device, supported);
+
+        gpuPipelineStatistics = supported.pipelineStatisticsQuery();
+        deviceFeatures.pipelineStatisticsQuery(gpuPipelineStatistics);
+        if(!gpuPipelineStatistics) System.out.println("Pipeline statistics queries not supported, only timestamps are profiled");
+
+        //the frame's statistics query stays active while the primary executes the recorded secondaries, which have to inherit it
+        if(gpuPipelineStatistics && recordWorkers > 0){
+          gpuPipelineStatistics = supported.inheritedQueries();
+          deviceFeatures.inheritedQueries(gpuPipelineStatistics);
+          if(!gpuPipelineStatistics) System.out.println("Inherited queries not supported, pipeline statistics disabled for parallel recording");
+        }
+      }
+      //the frame data is pushed straight into the cmdBuffer where possible, otherwise it gets a set per frame slot
+      pushDescriptors = supportedDeviceExtensions(deviceInfo.device).contains(VK_KHR_PUSH_DESCRIPTOR_EXTENSION_NAME);
+      if(pushDescriptors) requiredDeviceExtensions.add(VK_KHR_PUSH_DESCRIPTOR_EXTENSION_NAME);
       var deviceExtensions = getDeviceExtensionsPtr();
 
+      var supported12 = VkPhysicalDeviceVulkan12Features.calloc(stack).sType$Default();
+      var supported13 = VkPhysicalDeviceVulkan13Features.calloc(stack).sType$Default().pNext(supported12.address());
+      var supported   = VkPhysicalDeviceFeatures2.calloc(stack).sType$Default().pNext(supported13);
+      vkGetPhysicalDeviceFeatures2(deviceInfo.device, supported);
+
+      //timelines for all frame and queue synchronization
+      if(!supported12.timelineSemaphore()) throw new RuntimeException("The device lacks timeline semaphores");
+      //descriptor indexing for the bindless table, required by scoreDevice
+      deviceFeatures.shaderStorageBufferArrayDynamicIndexing(true);
+      var vulkan12Features = VkPhysicalDeviceVulkan12Features.calloc(stack).sType$Default()
+        .timelineSemaphore(true)
+        .runtimeDescriptorArray(true)
+        .descriptorBindingPartiallyBound(true)
+        .descriptorBindingStorageBufferUpdateAfterBind(true)
+        .descriptorBindingSampledImageUpdateAfterBind(true);
+
+      if(gpuDriven && useCachedCommandBuffers){
+        gpuDriven = false;
+        System.out.println("GPU-driven rendering disabled, the culled commands change every frame");
+      }
+      if(gpuDriven){
+        //an indirect count draw with many commands, which carry the object index as firstInstance
+        gpuDriven = supported.features().multiDrawIndirect() && supported.features().drawIndirectFirstInstance() && supported12.drawIndirectCount();
+        deviceFeatures.multiDrawIndirect(gpuDriven).drawIndirectFirstInstance(gpuDriven);
+        vulkan12Features.drawIndirectCount(gpuDriven);
+        if(!gpuDriven) System.out.println("Indirect count draws not supported, drawing from the host");
+      }
+
+      var vulkan13Features = VkPhysicalDeviceVulkan13Features.calloc(stack).sType$Default().pNext(vulkan12Features.address());
+      if(dynamicRendering){
+        dynamicRendering = supported13.dynamicRendering();
+        vulkan13Features.dynamicRendering(dynamicRendering);
+        if(!dynamicRendering) System.out.println("Dynamic rendering not supported, using a render pass");
+      }
+
       var deviceCreateInfo = VkDeviceCreateInfo.calloc(stack)
         .sType(VK_STRUCTURE_TYPE_DEVICE_CREATE_INFO)
+        .pNext(vulkan13Features)
         .pQueueCreateInfos(queueInfos)
         .pEnabledFeatures(deviceFeatures)
         .ppEnabledExtensionNames(deviceExtensions);
@@ -567,24 +1162,163 @@ public class Application {
 
       var queuePtr = stack.mallocPointer(1);
       vkGetDeviceQueue(device, deviceInfo.queues.graphics, 0, queuePtr); queueGraphics = new VkQueue(queuePtr.get(0), device);
-      vkGetDeviceQueue(device, deviceInfo.queues.present,  0, queuePtr); queuePresent  = new VkQueue(queuePtr.get(0), device);
-      //vkGetDeviceQueue(device, deviceInfo.queues.compute , 0, queuePtr); queueCompute  = new VkQueue(queuePtr.get(0), device);
-      //vkGetDeviceQueue(device, deviceInfo.queues.transfer, 0, queuePtr); queueTransfer = new VkQueue(queuePtr.get(0), device);
+      if(deviceInfo.queues.present != null) { vkGetDeviceQueue(device, deviceInfo.queues.present,  0, queuePtr); queuePresent  = new VkQueue(queuePtr.get(0), device); }
+      vkGetDeviceQueue(device, deviceInfo.queues.compute , 0, queuePtr); queueCompute  = new VkQueue(queuePtr.get(0), device);
+      vkGetDeviceQueue(device, deviceInfo.queues.transfer, 0, queuePtr); queueTransfer = new VkQueue(queuePtr.get(0), device);
 
       System.out.println("Created logical device with " + queueInfos.capacity() + " unique, " + 4 + " logical queues");
     }
   }
 
+  private void createGpuMemory(){
+    gpuMemory = new GpuMemory(instance, deviceInfo.device, device, VK_API_VERSION_1_3);
+  }
+
+  private void createPipelineCache(){
+    if(!usePipelineCache) return;
+    pipelineCache = new PipelineCache(device, deviceInfo.device, Paths.get("cache", "pipeline.bin"));
+  }
+
   private void createSwapChain(){
+    swapChainScope = lifetimes.scope("swapchain");
+
+    if(headless) createOffscreenTargets();
+    else         createSwapChain(VK_NULL_HANDLE);
+  }
+
+  private int findMemoryType(int typeBits, int requiredProperties, int preferredProperties){
+    try(var stack = MemoryStack.stackPush()){
+      var memProperties = VkPhysicalDeviceMemoryProperties.calloc(stack);
+      vkGetPhysicalDeviceMemoryProperties(deviceInfo.device, memProperties);
+
+      //first try with the preferred flags on top, then with the required ones only
+      for(var wanted : new int[]{requiredProperties | preferredProperties, requiredProperties}){
+        for(int i = 0; i < memProperties.memoryTypeCount(); i++){
+          var flags = memProperties.memoryTypes(i).propertyFlags();
+          if((typeBits & (1 << i)) != 0 && (flags & wanted) == wanted) return i;
+        }
+      }
+    }
+
+    throw new RuntimeException("No suitable memory type found");
+  }
+
+  private long allocateMemory(VkMemoryRequirements requirements, int requiredProperties, int preferredProperties){
+    try(var stack = MemoryStack.stackPush()){
+      var allocInfo = VkMemoryAllocateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+        .allocationSize(requirements.size())
+        .memoryTypeIndex(findMemoryType(requirements.memoryTypeBits(), requiredProperties, preferredProperties));
+
+      var ptr = stack.mallocLong(1);
+      checkResult(vkAllocateMemory(device, allocInfo, null, ptr));
+      return ptr.get();
+    }
+  }
+
+  //the headless counterpart of createSwapChain. Creates one render target per frame slot, so a slot never waits on another slot's image
+  private void createOffscreenTargets(){
+    try(var stack = MemoryStack.stackPush()){
+      var extent = VkExtent2D.create().set(width, height);
+      var format = VK_FORMAT_R8G8B8A8_SRGB;
+
+      swapChainImages = new long[framesInFlight];
+      offscreenMemory = new long[framesInFlight];
+
+      var imageInfo = VkImageCreateInfo.calloc(stack)
+        .sType        (VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
+        .imageType    (VK_IMAGE_TYPE_2D)
+        .format       (format)
+        .extent       (e -> e.set(width, height, 1))
+        .mipLevels    (1)
+        .arrayLayers  (1)
+        .samples      (VK_SAMPLE_COUNT_1_BIT)
+        .tiling       (VK_IMAGE_TILING_OPTIMAL)
+        .usage        (VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT | VK_IMAGE_USAGE_TRANSFER_SRC_BIT) //transfer src for the readback
+        .sharingMode  (VK_SHARING_MODE_EXCLUSIVE)
+        .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+
+      var ptr = stack.mallocLong(1);
+      var requirements = VkMemoryRequirements.calloc(stack);
+
+      for(int i = 0; i < framesInFlight; i++){
+        checkResult(vkCreateImage(device, imageInfo, null, ptr));
+        swapChainImages[i] = ptr.get(0);
+
+        vkGetImageMemoryRequirements(device, swapChainImages[i], requirements);
+        offscreenMemory[i] = allocateMemory(requirements, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 0);
+        checkResult(vkBindImageMemory(device, swapChainImages[i], offscreenMemory[i], 0));
+
+        var image = swapChainImages[i]; var memory = offscreenMemory[i];
+        swapChainScope.own("VkDeviceMemory", () -> vkFreeMemory  (device, memory, null));
+        swapChainScope.own("VkImage",        () -> vkDestroyImage(device, image,  null));
+      }
+
+      deviceInfoExtra = new SwapChainExtra(format, extent);
+
+      if(readbackConsumer != null) createReadbackBuffers();
+
+      System.out.println("Offscreen targets: format = " + format + ", extent = (" + width + "x" + height + "), count = " + framesInFlight + ", readback = " + (readbackConsumer != null));
+    }
+  }
+
+  private void createReadbackBuffers(){
+    try(var stack = MemoryStack.stackPush()){
+      long size = (long)width * height * 4;
+
+      readbackBuffers = new long[framesInFlight];
+      readbackMemory  = new long[framesInFlight];
+      readbackMapped  = new ByteBuffer[framesInFlight];
+      readbackFrames  = new long[framesInFlight];
+
+      var bufferInfo = VkBufferCreateInfo.calloc(stack)
+        .sType      (VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+        .size       (size)
+        .usage      (VK_BUFFER_USAGE_TRANSFER_DST_BIT)
+        .sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+
+      var ptr = stack.mallocLong(1);
+      var mappedPtr = stack.mallocPointer(1);
+      var requirements = VkMemoryRequirements.calloc(stack);
+
+      for(int i = 0; i < framesInFlight; i++){
+        checkResult(vkCreateBuffer(device, bufferInfo, null, ptr));
+        readbackBuffers[i] = ptr.get(0);
+
+        //cached memory makes host reads a lot faster, where available
+        vkGetBufferMemoryRequirements(device, readbackBuffers[i], requirements);
+        readbackMemory[i] = allocateMemory(requirements, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, VK_MEMORY_PROPERTY_HOST_CACHED_BIT);
+        checkResult(vkBindBufferMemory(device, readbackBuffers[i], readbackMemory[i], 0));
+
+        var buffer = readbackBuffers[i]; var memory = readbackMemory[i];
+        swapChainScope.own("VkDeviceMemory", () -> vkFreeMemory   (device, memory, null)); //implicitly unmaps
+        swapChainScope.own("VkBuffer",       () -> vkDestroyBuffer(device, buffer, null));
+
+        checkResult(vkMapMemory(device, readbackMemory[i], 0, size, 0, mappedPtr)); //stays mapped until disposal
+        readbackMapped[i] = mappedPtr.getByteBuffer(0, (int)size);
+        readbackFrames[i] = -1;
+      }
+    }
+  }
+
+  //hands the finished frame of a slot to the consumer. Must only be called after the slot's previous frame was waited on
+  private void deliverReadback(int slotIdx){
+    if(readbackConsumer == null || readbackFrames[slotIdx] < 0) return;
+
+    readbackConsumer.accept(readbackFrames[slotIdx], readbackMapped[slotIdx].clear(), width, height);
+    readbackFrames[slotIdx] = -1;
+  }
+
+  private void createSwapChain(long oldSwapChain){
     try(var stack = MemoryStack.stackPush()){
       var swapChainCfg = deviceInfo.swapchain;
 
       var surfaceFormat = chooseSwapSurfaceFormat(swapChainCfg.formats     );
-      var presentMode   = chooseSwapPresentMode  (swapChainCfg.presentModes);
       var extent        = chooseSwapExtend       (swapChainCfg.capabilities);
+      presentMode       = chooseSwapPresentMode  (swapChainCfg.presentModes);
 
-      var chainLength   = swapChainCfg.capabilities.minImageCount() + 1; //only tripple buffering is flexible with their length, where min == 2, so +1 is reasonable
-      if(swapChainCfg.capabilities.maxImageCount() != 0) chainLength = Math.min(swapChainCfg.capabilities.maxImageCount(), chainLength);
+      //only tripple buffering is flexible with their length, where min == 2. The policy decides whether the extra image is worth its latency
+      var chainLength   = framePacer.swapchainLength(swapChainCfg.capabilities.minImageCount(), swapChainCfg.capabilities.maxImageCount());
 
       var createInfo = VkSwapchainCreateInfoKHR.calloc(stack)
         .sType            (VK_STRUCTURE_TYPE_SWAPCHAIN_CREATE_INFO_KHR)
@@ -599,7 +1333,7 @@ public class Application {
         .preTransform     (swapChainCfg.capabilities.currentTransform()) //allows preTransformations, for things such as mobile screens that rotate by 90° and such
         .compositeAlpha   (VK_COMPOSITE_ALPHA_OPAQUE_BIT_KHR)         //can use alpha blending on the surface, deactivated for now
         .clipped          (true)                                      //means pixels that are obscured by the OS windowing system are irelevant. As read-back from the swapchain isn't a usecase here, just clip it
-        .oldSwapchain     (MemoryUtil.NULL);                          //on window resize, swapchains need to be re-created, in such a case a pointer to the old chain must be supplied
+        .oldSwapchain     (oldSwapChain);                             //on window resize, swapchains need to be re-created, in such a case the old chain is supplied so the driver can reuse its resources
 
       //if the swapchain interacts with multiple queues, there needs to be a policy how synchronization is done
       if(deviceInfo.queues.graphics != deviceInfo.queues.present){
@@ -611,17 +1345,20 @@ public class Application {
       }
 
       var ptr = stack.mallocLong(1);
-      vkCreateSwapchainKHR(device, createInfo, null, ptr);
+      checkResult(vkCreateSwapchainKHR(device, createInfo, null, ptr));
       swapChain = ptr.get();
 
+      var chain = swapChain;
+      swapChainScope.own("VkSwapchainKHR", () -> vkDestroySwapchainKHR(device, chain, null)); //owns the images
+
       var cntPtr = new int[1];//stack.mallocInt(1);
       vkGetSwapchainImagesKHR(device, swapChain, cntPtr, null);
       swapChainImages = new long[cntPtr[0]];
       vkGetSwapchainImagesKHR(device, swapChain, cntPtr, swapChainImages); //retrieves the handles to the VkImages (Textures in GL)
 
-      deviceInfoExtra = new SwapChainExtra(surfaceFormat, extent);
+      deviceInfoExtra = new SwapChainExtra(surfaceFormat.format(), extent);
 
-      System.out.println("Swapchain info: format = " + surfaceFormat + ", mode = " + presentMode + ", extent = (" + extent.width() + "x" + extent.height() + "), requested length = " + chainLength + ", provided length = " + swapChainImages.length);
+      System.out.println("Swapchain info: format = " + surfaceFormat.format() + ", mode = " + FramePacer.presentModeName(presentMode) + ", extent = (" + extent.width() + "x" + extent.height() + "), requested length = " + chainLength + ", provided length = " + swapChainImages.length);
     }
   }
 
@@ -637,7 +1374,7 @@ public class Application {
           .sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO)
           .image(image)
           .viewType(VK_IMAGE_VIEW_TYPE_2D) //view the texture as a different type, such as viewing at a 2D slice of a 2Darray
-          .format(deviceInfoExtra.usedFormat.format()) //views can have different formats, as long as they're compatible
+          .format(deviceInfoExtra.usedFormat) //views can have different formats, as long as they're compatible
           .components(VkComponentMapping.calloc(stack).r(VK_COMPONENT_SWIZZLE_IDENTITY)  //components in the view can be statically swizzled
                                                       .r(VK_COMPONENT_SWIZZLE_IDENTITY)
                                                       .r(VK_COMPONENT_SWIZZLE_IDENTITY)
@@ -650,49 +1387,61 @@ public class Application {
         var ptr = stack.mallocLong(1);
         vkCreateImageView(device, createInfo, null, ptr);
         swapChainImageViews[i++] = ptr.get(); //while the images in the swapchain are owned by the swapchain, these views need explicit cleanup
+
+        var view = ptr.get(0);
+        swapChainScope.own("VkImageView", () -> vkDestroyImageView(device, view, null));
       }
     }
   }
 
-  private ByteBuffer compileShaderStage(String path, int type){
-    String fn = path.substring(path.lastIndexOf("/")+1, path.length());
-
-    try{
-      String src = Files.readString(Paths.get(path));
-      long ptr = Shaderc.shaderc_compile_into_spv(shaderCompiler, src, type, fn, "main", compilerOptions);
-
-      var state = Shaderc.shaderc_result_get_compilation_status(ptr);
-      if(state != Shaderc.shaderc_compilation_status_success){
-        String error = Shaderc.shaderc_result_get_error_message(ptr);
-        throw new RuntimeException(error);
-      }
+  private long createShaderModule(ByteBuffer stage){
+    try(var stack = MemoryStack.stackPush()){ //also called from the compile threads, each has its own stack
+      var createInfo = VkShaderModuleCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_SHADER_MODULE_CREATE_INFO)
+        .pCode(stage);
 
-      var data = Shaderc.shaderc_result_get_bytes(ptr);
-      //shaderc talsk about guaranteed uint32_t alignment, so use that to be sure
-      var result = trackMem(MemoryUtil.memAlignedAlloc(32, data.capacity()));
-      result.put(data);
-      Shaderc.shaderc_result_release(ptr);
+      var ptr = stack.mallocLong(1);
+      checkResult(vkCreateShaderModule(device, createInfo, null, ptr));
 
-      return result.rewind();
-    } catch (IOException x){
-      throw new RuntimeException(x);
+      return ptr.get();
     }
   }
 
-  private long createShaderModule(ByteBuffer stage){
-    var stack = MemoryStack.stackGet();
+  //compiles (or loads) the stages and creates their modules, both spread across the compile threads. vkCreateShaderModule needs no external synchronization
+  private long[] createShaderModules(ShaderCompiler.Stage... stages){
+    var start = System.nanoTime();
+    var executor = compileExecutor();
+
+    var spirv = shaderCompiler.compileAll(executor, stages);
 
-    var createInfo = VkShaderModuleCreateInfo.calloc(stack)
-      .sType(VK_STRUCTURE_TYPE_SHADER_MODULE_CREATE_INFO)
-      .pCode(stage);
+    var tasks = new ArrayList<Callable<Long>>();
+    for(var code : spirv) tasks.add(() -> createShaderModule(code));
+    var modules = ShaderCompiler.invokeAll(executor, tasks);
+    for(var code : spirv) shaderCompiler.free(code); //the modules hold their own copy
 
-    var ptr = stack.mallocLong(1);
-    checkResult(vkCreateShaderModule(device, createInfo, null, ptr));
+    System.out.println(String.format("%d shader stages ready in %.1fms on %d threads, %d cores (%s start: %d cached, %d compiled, shaderc init %.1fms)",
+      stages.length, (System.nanoTime() - start) / 1e6, Math.min(compileThreads, stages.length), Runtime.getRuntime().availableProcessors(),
+      spirvCache.misses() == 0 ? "warm" : "cold", spirvCache.hits(), spirvCache.misses(), shaderCompiler.initNanos() / 1e6));
+
+    return modules.stream().mapToLong(Long::longValue).toArray();
+  }
 
-    return ptr.get();
+  //also used by the reload thread, so the first use is synchronized
+  private synchronized ExecutorService compileExecutor(){
+    if(compileExecutor == null){
+      compileExecutor = Executors.newFixedThreadPool(compileThreads, task -> {
+        var thread = new Thread(() -> { NativeMemoryStats.watchStack(); task.run(); }, "shader-compile");
+        thread.setDaemon(true); //idle workers must not keep the process alive
+        return thread;
+      });
+    }
+    return compileExecutor;
   }
 
   private void createRenderPass(){
+    if(dynamicRendering) return; //the attachments are described when rendering begins
+
+    var start = System.nanoTime();
     //apparently this is optional, and can be skipped by an extension
     //those passes are supposedly only useful for mobile devices tile rendering
 
@@ -703,14 +1452,15 @@ public class Application {
 
     try(var stack = MemoryStack.stackPush()){
       var attachInfo = VkAttachmentDescription.calloc(1, stack)
-        .format        (deviceInfoExtra.usedFormat.format())
+        .format        (deviceInfoExtra.usedFormat)
         .samples       (VK_SAMPLE_COUNT_1_BIT           )
         .loadOp        (VK_ATTACHMENT_LOAD_OP_CLEAR     ) //its handy to specify what happens for the load. don't care, clear, or load previous contents
         .storeOp       (VK_ATTACHMENT_STORE_OP_STORE    ) //can also specify don't care
         .stencilLoadOp (VK_ATTACHMENT_LOAD_OP_DONT_CARE )
         .stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE)
         .initialLayout (VK_IMAGE_LAYOUT_UNDEFINED       )  //the internal layout of VkImages on the GPU may chaneg depending on the use cases. UNDEFINED because its going to be cleared anyway
-        .finalLayout   (VK_IMAGE_LAYOUT_PRESENT_SRC_KHR ); //as the image is pushed straight to the swapchain after the triangle, put it into the optimal present mode
+        .finalLayout   (headless ? VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL  //headless frames are only ever copied out
+                                 : VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);     //as the image is pushed straight to the swapchain after the triangle, put it into the optimal present mode
 
 
       //each subpass references one or more attachmentRefs, and each attachment is in the end an VkImage, so they'll have the referenced layout. Only after all subpasses finished will the image transition
@@ -749,6 +1499,7 @@ public class Application {
 
       System.out.println("Render pass object created successfully");
     }
+    renderTargetNanos += System.nanoTime() - start;
   }
 
   private void createPipeline(){
@@ -785,46 +1536,124 @@ public class Application {
     //or have fire-and-forget cmdBuffers, and re-record them for every object drawn
     //in addition, this could mean either a buffer per object, or a buffer per subpass
 
+    //the pipeline also specifies what uniforms will be available
+    pipelineLayout = descriptors.pipelineLayout();
+
+    var set = createPipelineSet(pipelineCache != null ? pipelineCache.handle() : MemoryUtil.NULL, particlesEnabled());
+    vertModule         = set.vertModule;
+    fragModule         = set.fragModule;
+    particleVertModule = set.particleVertModule;
+    computeModule      = set.computeModule;
+    pipeline           = set.pipeline;
+    particlePipeline   = set.particlePipeline;
+  }
+
+  private List<ShaderCompiler.Stage> pipelineStages(boolean withCompute){
+    //using ShaderC for cpmpilation. All stages are compiled at once, so they spread across the cores
+    var stages = new ArrayList<ShaderCompiler.Stage>();
+    stages.add(new ShaderCompiler.Stage("assets/shaders/vert.vsh", Shaderc.shaderc_vertex_shader  ));
+    stages.add(new ShaderCompiler.Stage("assets/shaders/frag.fsh", Shaderc.shaderc_fragment_shader));
+    if(particlesEnabled()) stages.add(new ShaderCompiler.Stage("assets/shaders/particle.vsh",  Shaderc.shaderc_vertex_shader ));
+    if(withCompute)        stages.add(new ShaderCompiler.Stage("assets/shaders/particles.csh", Shaderc.shaderc_compute_shader));
+    return stages;
+  }
+
+  //compiles the stages and creates the graphics pipelines from them. Runs on the render thread at startup and on the reload thread afterwards,
+  //so it only reads state that is fixed after init. The compute pipeline lives in the ParticleSystem, only its module is created here
+  private PipelineSet createPipelineSet(long cacheHandle, boolean withCompute){
+    //creates a vulkan-known wrapper around the spv bytecode
+    var modules = createShaderModules(pipelineStages(withCompute).toArray(new ShaderCompiler.Stage[0]));
+    var vert         = modules[0];
+    var frag         = modules[1];
+    var particleVert = particlesEnabled() ? modules[2] : VK_NULL_HANDLE;
+    var compute      = withCompute ? modules[modules.length - 1] : VK_NULL_HANDLE;
+
     try(var stack = MemoryStack.stackPush()){
-      //using ShaderC for cpmpilation
-      var vert = compileShaderStage("assets/shaders/vert.vsh", Shaderc.shaderc_vertex_shader);
-      var frag = compileShaderStage("assets/shaders/frag.fsh", Shaderc.shaderc_fragment_shader);
+      //vertex layout is actually part of the pipeline/shader, not the vertex buffer
+      var vertInputCreateInfo = VkPipelineVertexInputStateCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO)
+        .pVertexBindingDescriptions(Mesh.bindingDescriptions(stack))
+        .pVertexAttributeDescriptions(Mesh.attributeDescriptions(stack));
+
+      var pipelines = new ArrayList<GraphicsPipeline>();
+      pipelines.add(new GraphicsPipeline(vert, frag, VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST, vertInputCreateInfo));
+      if(particlesEnabled()){
+        var particleInputCreateInfo = VkPipelineVertexInputStateCreateInfo.calloc(stack)
+          .sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO)
+          .pVertexBindingDescriptions(ParticleSystem.bindingDescriptions(stack))
+          .pVertexAttributeDescriptions(ParticleSystem.attributeDescriptions(stack));
+
+        pipelines.add(new GraphicsPipeline(particleVert, frag, VK_PRIMITIVE_TOPOLOGY_POINT_LIST, particleInputCreateInfo));
+      }
+
+      var start = System.nanoTime();
+      long[] handles;
+      try{
+        handles = createGraphicsPipelines(cacheHandle, pipelines.toArray(new GraphicsPipeline[0]));
+      }catch(RuntimeException x){
+        for(var module : modules) vkDestroyShaderModule(device, module, null); //a failed reload keeps the previous set, nothing else uses these
+        throw x;
+      }
 
-      //creates a vulkan-known wrapper around the spv bytecode
-      vertModule = createShaderModule(vert);
-      fragModule = createShaderModule(frag);
+      var cacheState = pipelineCache == null ? "disabled" : pipelineCache.warm() ? "warm" : "cold";
+      System.out.println(String.format("%d pipelines created in one batch in %.2fms (pipeline cache %s)", handles.length, (System.nanoTime() - start) / 1e6, cacheState));
 
-      var stagesCreateInfo = VkPipelineShaderStageCreateInfo.calloc(2, stack);
-      var entryPoint = stack.UTF8("main");
+      return new PipelineSet(vert, frag, particleVert, compute, handles[0], particlesEnabled() ? handles[1] : VK_NULL_HANDLE);
+    }
+  }
+
+  private void destroyPipelineSet(PipelineSet set){
+    vkDestroyPipeline(device, set.pipeline, null);
+    vkDestroyPipeline(device, set.particlePipeline, null); //destroying VK_NULL_HANDLE is a no-op
+    vkDestroyShaderModule(device, set.vertModule, null);
+    vkDestroyShaderModule(device, set.fragModule, null);
+    vkDestroyShaderModule(device, set.particleVertModule, null);
+    vkDestroyShaderModule(device, set.computeModule, null);
+  }
+
+  private void createShaderReloader(){
+    if(!shaderHotReload) return;
+
+    reloadCache    = pipelineCache != null ? pipelineCache.createChild() : MemoryUtil.NULL;
+    shaderReloader = new ShaderReloader<>(Paths.get("assets", "shaders"), () -> createPipelineSet(reloadCache, false), this::destroyPipelineSet);
+  }
+
+  //swaps in the pipelines of a finished reload. The old ones are retired, as the frames in flight still use them
+  private void applyReloadedPipelines(){
+    if(shaderReloader == null) return;
+
+    var set = shaderReloader.poll();
+    if(set == null) return;
+
+    //the compute module is not reloaded, the compute pipeline was created from it once
+    var old = new PipelineSet(vertModule, fragModule, particleVertModule, VK_NULL_HANDLE, pipeline, particlePipeline);
+    retire("pipeline set", () -> destroyPipelineSet(old));
 
-      stagesCreateInfo.get(0)
-        .sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
-        .stage(VK_SHADER_STAGE_VERTEX_BIT)
-        .module(vertModule)
-        .pName(entryPoint);
+    vertModule         = set.vertModule;
+    fragModule         = set.fragModule;
+    particleVertModule = set.particleVertModule;
+    pipeline           = set.pipeline;
+    particlePipeline   = set.particlePipeline;
 
-      stagesCreateInfo.get(1)
-        .sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
-        .stage(VK_SHADER_STAGE_FRAGMENT_BIT)
-        .module(fragModule)
-        .pName(entryPoint);
+    invalidateCommandBuffers(); //cached cmdBuffers still reference the old pipeline
+  }
+
+  //the particles need cmdBuffers recorded every frame
+  private boolean particlesEnabled(){
+    return particleCount > 0 && !useCachedCommandBuffers;
+  }
+
+  //everything but the shaders, the vertex layout and the topology is shared by all graphics pipelines, as is the layout.
+  //All pipelines are created with one vkCreateGraphicsPipelines call, which lets the driver compile them in parallel
+  private long[] createGraphicsPipelines(long cacheHandle, GraphicsPipeline... pipelines){
+    try(var stack = MemoryStack.stackPush()){
+      var entryPoint = stack.UTF8("main");
 
       var statePtr = stack.ints(VK_DYNAMIC_STATE_VIEWPORT, VK_DYNAMIC_STATE_SCISSOR);
       var dynStateCreateInfo = VkPipelineDynamicStateCreateInfo.calloc(stack)
         .sType(VK_STRUCTURE_TYPE_PIPELINE_DYNAMIC_STATE_CREATE_INFO)
         .pDynamicStates(statePtr);
 
-      //vertex layout is actually part of the pipeline/shader, not the vertex buffer
-      var vertInputCreateInfo = VkPipelineVertexInputStateCreateInfo.calloc(stack)
-        .sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO);
-        //.pVertexBindingDescriptions(null)
-        //.pVertexAttributeDescriptions(null);
-
-      //what was the old "geoMode" is also part of the pipeline/shader
-      var vertAssemblyCreateInfo = VkPipelineInputAssemblyStateCreateInfo.calloc(stack)
-        .sType(VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO)
-        .topology(VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST)
-        .primitiveRestartEnable(false); //can be part of dynamic state
 
       var viewportCreateInfo = VkPipelineViewportStateCreateInfo.calloc(stack)
         .sType(VK_STRUCTURE_TYPE_PIPELINE_VIEWPORT_STATE_CREATE_INFO)
@@ -878,48 +1707,72 @@ public class Application {
         .pAttachments(blendCreateInfo)
         .blendConstants(stack.floats(0,0,0,0));
 
-      //the pipeline also specifies what uniforms will be available
-      var layoutCreateInfo = VkPipelineLayoutCreateInfo.calloc(stack)
-        .sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO);
-        //.pSetLayouts(null)
-        //.pPushConstantRanges(null);
-
-      var layoutPtr = stack.mallocLong(1);
-      checkResult(vkCreatePipelineLayout(device, layoutCreateInfo, null, layoutPtr));
-      pipelineLayout = layoutPtr.get();
-
-      var pipelinecreateInfo = VkGraphicsPipelineCreateInfo.calloc(1, stack)
-        .sType              (VK_STRUCTURE_TYPE_GRAPHICS_PIPELINE_CREATE_INFO)
-        .pStages            (stagesCreateInfo      )
-        .pVertexInputState  (vertInputCreateInfo   )
-        .pInputAssemblyState(vertAssemblyCreateInfo)
-        .pViewportState     (viewportCreateInfo    )
-        .pRasterizationState(rasterizerCreateInfo  )
-        .pMultisampleState  (multisampleCreateInfo )
-        //.pDepthStencilState (depthCreateInfo       ) //TODO
-        .pColorBlendState   (blendStateCreateInfo  )
-        .pDynamicState      (dynStateCreateInfo    )
-        .layout             (pipelineLayout        )
-        .renderPass         (renderPass            )
-        .subpass            (0                     )  //this uses the 1st subpass
-        .basePipelineHandle (VK_NULL_HANDLE        )  //possible to derive from already existing pipelines
-        .basePipelineIndex  (-1                    ); //could also reference an index in this buffer of createInfos for derivation
-
-      //instead of MemoryUtil.NULL, it is possible to supply a pipeline cache, i.e. a ShaderCache
-      var pipelinePtr = stack.mallocLong(1);
-      checkResult(vkCreateGraphicsPipelines(device, MemoryUtil.NULL, pipelinecreateInfo, null, pipelinePtr));
-      pipeline = pipelinePtr.get();
-
-      System.out.println("Pipeline created");
+      //dynamic rendering: the pipeline is only told the attachment formats, instead of a compatible render pass
+      var renderingCreateInfo = VkPipelineRenderingCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PIPELINE_RENDERING_CREATE_INFO)
+        .pColorAttachmentFormats(stack.ints(deviceInfoExtra.usedFormat));
+
+      var pipelinecreateInfo = VkGraphicsPipelineCreateInfo.calloc(pipelines.length, stack);
+      for(int i = 0; i < pipelines.length; i++){
+        var desc = pipelines[i];
+
+        var stagesCreateInfo = VkPipelineShaderStageCreateInfo.calloc(2, stack);
+        stagesCreateInfo.get(0)
+          .sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
+          .stage(VK_SHADER_STAGE_VERTEX_BIT)
+          .module(desc.vertModule)
+          .pName(entryPoint);
+
+        stagesCreateInfo.get(1)
+          .sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
+          .stage(VK_SHADER_STAGE_FRAGMENT_BIT)
+          .module(desc.fragModule)
+          .pName(entryPoint);
+
+        //what was the old "geoMode" is also part of the pipeline/shader
+        var vertAssemblyCreateInfo = VkPipelineInputAssemblyStateCreateInfo.calloc(stack)
+          .sType(VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO)
+          .topology(desc.topology)
+          .primitiveRestartEnable(false); //can be part of dynamic state
+
+        pipelinecreateInfo.get(i)
+          .sType              (VK_STRUCTURE_TYPE_GRAPHICS_PIPELINE_CREATE_INFO)
+          .pNext              (dynamicRendering ? renderingCreateInfo.address() : MemoryUtil.NULL)
+          .pStages            (stagesCreateInfo      )
+          .pVertexInputState  (desc.vertexInput      )
+          .pInputAssemblyState(vertAssemblyCreateInfo)
+          .pViewportState     (viewportCreateInfo    )
+          .pRasterizationState(rasterizerCreateInfo  )
+          .pMultisampleState  (multisampleCreateInfo )
+          //.pDepthStencilState (depthCreateInfo       ) //TODO
+          .pColorBlendState   (blendStateCreateInfo  )
+          .pDynamicState      (dynStateCreateInfo    )
+          .layout             (pipelineLayout        )
+          .renderPass         (renderPass            )
+          .subpass            (0                     )  //this uses the 1st subpass
+          .basePipelineHandle (VK_NULL_HANDLE        )  //possible to derive from already existing pipelines
+          .basePipelineIndex  (-1                    ); //could also reference an index in this buffer of createInfos for derivation
+      }
+
+      //the pipeline cache lets the driver skip its own backend compilation of already known shader/state combinations
+      var pipelinePtr = stack.mallocLong(pipelines.length);
+      checkResult(vkCreateGraphicsPipelines(device, cacheHandle, pipelinecreateInfo, null, pipelinePtr));
+
+      var handles = new long[pipelines.length];
+      pipelinePtr.get(handles);
+      return handles;
     }
   }
 
   private void createFramebuffers(){
+    //with dynamic rendering there are no framebuffers. The array stays, filled with VK_NULL_HANDLE, as it also sizes the per image cmdBuffers
+    swapChainFramebuffers = new long[swapChainImageViews.length];
+    if(dynamicRendering) return;
+
+    var start = System.nanoTime();
     try(var stack = MemoryStack.stackPush()){
       //framebuffers are a bit thinner than their openGL counterpart
 
-      swapChainFramebuffers = new long[swapChainImageViews.length];
-
       var i = 0;
       var ptr = stack.mallocLong(1);
       for(var imgView : swapChainImageViews){
@@ -934,8 +1787,12 @@ public class Application {
 
         checkResult(vkCreateFramebuffer(device, createinfo, null, ptr));
         swapChainFramebuffers[i++] = ptr.get(0);
+
+        var fbo = ptr.get(0);
+        swapChainScope.own("VkFramebuffer", () -> vkDestroyFramebuffer(device, fbo, null));
       }
     }
+    renderTargetNanos += System.nanoTime() - start;
   }
 
   private void createCommandPool(){
@@ -951,43 +1808,391 @@ public class Application {
     }
   }
 
-  private void createCommandBuffer(){
+  private void createDescriptors(){
+    frameAllocator = new FrameAllocator(device, gpuMemory, framesInFlight, 64 << 10);
+    descriptors    = new DescriptorSystem(device, gpuMemory, frameAllocator, framesInFlight, pushDescriptors);
+
+    //a white and a warm material, each drawn by a contiguous range of the draw list
+    materials = new int[]{
+      descriptors.createMaterial(1.0f, 1.0f, 1.0f, 1.0f),
+      descriptors.createMaterial(1.0f, 0.7f, 0.4f, 1.0f)
+    };
+    animationStart = System.nanoTime();
+  }
+
+  //the draws of the same material are next to each other, so it only changes a few times per draw list
+  private int materialOf(int draw){
+    return materials[bucketOf(draw)];
+  }
+
+  //the index in materials, which is also the draw's bucket with gpu culling
+  private int bucketOf(int draw){
+    return (int)((long)draw * materials.length / drawCount);
+  }
+
+  private void createUploadEngine(){
+    uploads = new UploadEngine(device, queueTransfer, deviceInfo.queues.transfer, queueGraphics, deviceInfo.queues.graphics, gpuMemory, 16L << 20);
+  }
+
+  private void createMeshes(){
+    //the triangle that used to be hardcoded in the vertex shader. position, color
+    float[] vertices = {
+       0.0f, -0.5f,   1.0f, 0.0f, 0.0f,
+       0.5f,  0.5f,   0.0f, 1.0f, 0.0f,
+      -0.5f,  0.5f,   0.0f, 0.0f, 1.0f
+    };
+    short[] indices = {0, 1, 2};
+
+    var radius = 0.0f; //of the bounding circle around the origin
+    for(int i = 0; i < vertices.length; i += Mesh.FLOATS_PER_VERTEX) radius = Math.max(radius, (float)Math.hypot(vertices[i], vertices[i + 1]));
+
+    //the draws are laid out in a grid of instances. With gpu culling the grid covers four times the visible area, so the culling has something to reject
+    sceneExtent  = gpuDriven && drawCount > 1 ? 2.0f : 1.0f;
+    sceneColumns = (int)Math.ceil(Math.sqrt(drawCount));
+    scene        = new SceneStore(drawCount);
+    var scale    = sceneExtent / sceneColumns;
+    for(int i = 0; i < drawCount; i++) scene.add(gridX(i), gridY(i), scale, scale, 0xFFFFFFFF, 0);
+
+    //the bounds are in object space, the culling pass moves them with the instance
+    var records = gpuDriven ? MemoryUtil.memAlloc(drawCount * GpuCulling.RECORD_SIZE) : null;
+    for(int i = 0; records != null && i < drawCount; i++) GpuCulling.putRecord(records, indices.length, 0, 0, bucketOf(i), 0, 0, radius);
+
+    var vertexBuffer = gpuMemory.createBuffer(GpuMemory.Usage.VERTEX, (long)vertices.length * Float.BYTES);
+    var indexBuffer  = gpuMemory.createBuffer(GpuMemory.Usage.INDEX,  (long)indices.length  * Short.BYTES);
+
+    try(var stack = MemoryStack.stackPush()){
+      uploads.uploadBuffer(vertexBuffer, 0, MemoryUtil.memByteBuffer(stack.floats(vertices)));
+      uploads.uploadBuffer(indexBuffer,  0, MemoryUtil.memByteBuffer(stack.shorts(indices)));
+    }
+    //an animated scene may upload everything every frame, a static one only the odd change
+    var budget  = sceneAnimation > 0 ? (long)drawCount * SceneStore.INSTANCE_SIZE : 1L << 20;
+    sceneBuffer = new SceneBuffer(gpuMemory, scene, uploads, framesInFlight, Math.min(budget, 32L << 20));
+    if(records != null){
+      drawRecords = gpuMemory.createBuffer(GpuMemory.Usage.STORAGE, records.capacity());
+      uploads.uploadBuffer(drawRecords, 0, records.flip());
+    }
+    uploads.finish(); //there is nothing to draw without them
+    MemoryUtil.memFree(records);
+
+    mesh = new Mesh(vertexBuffer, indexBuffer, indices.length);
+    objectBufferSlot = descriptors.table().registerBuffer(sceneBuffer.instances());
+  }
+
+  //the center of a grid cell
+  private float gridX(int i){ return -sceneExtent + (i % sceneColumns + 0.5f) * 2 * sceneExtent / sceneColumns; }
+  private float gridY(int i){ return -sceneExtent + (i / sceneColumns + 0.5f) * 2 * sceneExtent / sceneColumns; }
+
+  //moves the next window of instances around their cell centers. The windows wrap around, so every instance moves now and then
+  private void animateScene(float time){
+    var count = scene.count();
+    var moved = (int)Math.ceil(count * sceneAnimation);
+    var wobble = 0.25f * sceneExtent / sceneColumns;
+
+    for(int n = 0; n < moved; n++){
+      var i = animationCursor;
+      animationCursor = (animationCursor + 1) % count;
+      scene.setPosition(i, gridX(i) + wobble * (float)Math.cos(time + i), gridY(i) + wobble * (float)Math.sin(time + i));
+    }
+  }
+
+  private void createFrameStructs(){
+    frameStructs = new FrameStructs(renderPass, headless ? VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL : VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+    frameStructs.setTarget(deviceInfoExtra.usedExtent, swapChain);
+  }
+
+  private VkCommandBuffer[] allocateCommandBuffers(int count){
     try(var stack = MemoryStack.stackPush()){
       var createinfo = VkCommandBufferAllocateInfo.calloc(stack)
         .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
         .commandPool(commandPool)
         .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY) //there are also secondary cmdBuffers, but they can only be invoked by primarey cmdBuffers
-        .commandBufferCount(1);
+        .commandBufferCount(count);
 
-      var ptr = stack.mallocPointer(1);
+      var ptr = stack.mallocPointer(count);
       checkResult(vkAllocateCommandBuffers(device, createinfo, ptr));
-      cmdBuffer = new VkCommandBuffer(ptr.get(), device);
+
+      var buffers = new VkCommandBuffer[count];
+      for(int i = 0; i < count; i++) buffers[i] = new VkCommandBuffer(ptr.get(i), device);
+      return buffers;
     }
   }
 
-  private void createSyncObjects(){
+  private void freeCommandBuffers(VkCommandBuffer[] buffers){
+    try(var stack = MemoryStack.stackPush()){
+      var ptr = stack.mallocPointer(buffers.length);
+      for(var buffer : buffers) ptr.put(buffer);
+      vkFreeCommandBuffers(device, commandPool, ptr.flip());
+    }
+  }
+
+  private void createCommandBuffers(){
+    //one per frame slot. The slots are completed in createSyncObjects
+    frameSlots = new FrameSlot[framesInFlight];
+
+    var buffers = allocateCommandBuffers(framesInFlight);
+    for(int i = 0; i < framesInFlight; i++) frameSlots[i] = new FrameSlot(buffers[i], VK_NULL_HANDLE);
+  }
+
+  private void createGpuProfiler(){
+    if(!gpuProfiling) return;
+
+    if(useCachedCommandBuffers){
+      System.out.println("GPU profiler disabled, it needs cmdBuffers recorded every frame");
+      return;
+    }
+
+    //frame, render pass and draw. Leaves room for further passes
+    gpuProfiler = new GpuProfiler(device, deviceInfo.device, deviceInfo.queues.graphics, framesInFlight, 16, gpuPipelineStatistics);
+  }
+
+  private void createAsyncCompute(){
+    if(particleCount == 0) return;
+
+    if(useCachedCommandBuffers){
+      System.out.println("Async compute disabled, the particles need cmdBuffers recorded every frame");
+      return;
+    }
+
+    //the modules and the particle pipeline were created with the other pipelines
+    var cacheHandle = pipelineCache != null ? pipelineCache.handle() : MemoryUtil.NULL;
+    asyncCompute = new AsyncCompute(device, queueCompute, deviceInfo.queues.compute, framesInFlight);
+    particles    = new ParticleSystem(device, gpuMemory, computeModule, cacheHandle, particleCount, framesInFlight, deviceInfo.queues.compute, deviceInfo.queues.graphics);
+  }
+
+  private void createParallelRecorder(){
+    if(recordWorkers == 0) return;
+
+    if(useCachedCommandBuffers){
+      System.out.println("Parallel recording disabled, cached cmdBuffers aren't re-recorded");
+      return;
+    }
+    if(gpuDriven){
+      System.out.println("Parallel recording disabled, GPU-driven rendering only records a draw per material");
+      return;
+    }
+
+    var inheritedStatistics = gpuProfiler != null && gpuPipelineStatistics ? GpuProfiler.PIPELINE_STATISTICS : 0;
+    parallelRecorder = new ParallelRecorder(device, deviceInfo.queues.graphics, framesInFlight, recordWorkers, renderPass, deviceInfoExtra.usedFormat, drawCount, inheritedStatistics, this::recordDraws);
+  }
+
+  private void createGpuCulling(){
+    if(!gpuDriven) return;
+
+    var module = createShaderModules(CULL_STAGE)[0];
+
+    var bucketSizes = new int[materials.length];
+    for(int i = 0; i < drawCount; i++) bucketSizes[bucketOf(i)]++;
+
+    var cacheHandle = pipelineCache != null ? pipelineCache.handle() : MemoryUtil.NULL;
+    gpuCulling = new GpuCulling(device, gpuMemory, module, cacheHandle, drawRecords, sceneBuffer.instances(), bucketSizes, framesInFlight);
+    vkDestroyShaderModule(device, module, null); //the pipeline doesn't need it anymore
+  }
+
+  //records a range of the draw list. Runs on the worker threads with parallel recording, so it only reads state that is fixed while recording
+  private void recordDraws(VkCommandBuffer cmd, int slot, int first, int count){
+    vkCmdBindPipeline(cmd, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline);
+
+    vkCmdSetViewport(cmd, 0, frameStructs.viewports());
+    vkCmdSetScissor (cmd, 0, frameStructs.scissors() );
+
+    //secondary cmdBuffers don't inherit bound sets, so every chunk binds its own
+    descriptors.bindFrame(cmd, slot);
+
+    mesh.bind(cmd);
+    if(instancing){
+      //the instance index is the object index, so the pushed one stays 0
+      descriptors.pushDraw(cmd, 0, objectBufferSlot);
+      for(int run = first, end = first + count; run < end;){
+        var material = materialOf(run);
+        var runEnd   = run + 1;
+        while(runEnd < end && materialOf(runEnd) == material) runEnd++;
+
+        descriptors.bindMaterial(cmd, material);
+        mesh.drawInstanced(cmd, runEnd - run, run);
+        run = runEnd;
+      }
+    }else{
+      var boundMaterial = -1;
+      for(int i = first; i < first + count; i++){
+        var material = materialOf(i);
+        if(material != boundMaterial){
+          descriptors.bindMaterial(cmd, material);
+          boundMaterial = material;
+        }
+        descriptors.pushDraw(cmd, i, objectBufferSlot);
+        mesh.drawBound(cmd);
+      }
+    }
+
+    if(first + count == drawCount) recordParticles(cmd, slot); //drawn once, after the last chunk's meshes
+  }
+
+  //the whole draw list from the commands the culling pass compacted, one indirect count draw per material
+  private void recordCulledDraws(VkCommandBuffer cmd, int slot){
+    vkCmdBindPipeline(cmd, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline);
+
+    vkCmdSetViewport(cmd, 0, frameStructs.viewports());
+    vkCmdSetScissor (cmd, 0, frameStructs.scissors() );
+
+    descriptors.bindFrame(cmd, slot);
+    descriptors.pushDraw(cmd, 0, objectBufferSlot); //the object index comes from the commands' firstInstance
+
+    mesh.bind(cmd);
+    for(int bucket = 0; bucket < gpuCulling.buckets(); bucket++){
+      descriptors.bindMaterial(cmd, materials[bucket]);
+      gpuCulling.draw(cmd, slot, bucket);
+    }
+
+    recordParticles(cmd, slot);
+  }
+
+  private void recordParticles(VkCommandBuffer cmd, int slot){
+    if(particles == null) return;
+
+    vkCmdBindPipeline(cmd, VK_PIPELINE_BIND_POINT_GRAPHICS, particlePipeline);
+    particles.draw(cmd, slot); //only recorded per frame, so the cmdBuffer belongs to the current slot
+  }
+
+  //records and submits the compute work of the current frame. Only called right before the graphics submit that waits on the returned compute
+  //timeline value, so a frame that is skipped (e.g. out of date) doesn't simulate. 0 if there is no compute work
+  private long simulateParticles(){
+    if(particles == null) return 0;
+
+    var now = System.nanoTime();
+    var deltaTime = lastSimulation == 0 ? 0 : Math.min((now - lastSimulation) / 1e9f, 0.1f); //don't let particles jump after a stall
+    lastSimulation = now;
+
+    particles.simulate(asyncCompute.begin(currentFrame), currentFrame, deltaTime);
+    return asyncCompute.submit(currentFrame);
+  }
+
+  //allocated from the same resettable pool. They are only recorded on first use
+  private void createCachedCommandBuffers(){
+    if(!useCachedCommandBuffers) return;
+
+    cachedCmdBuffers     = allocateCommandBuffers(swapChainFramebuffers.length);
+    cachedCmdBufferDirty = new boolean[cachedCmdBuffers.length];
+
+    var buffers = cachedCmdBuffers;
+    swapChainScope.own("cached VkCommandBuffers", () -> freeCommandBuffers(buffers)); //one entry for the whole set, they are freed in one call
+    invalidateCommandBuffers();
+  }
+
+  //returns the cmdBuffer to submit for the image. A cached cmdBuffer can be (re)recorded here safely, as the image's previous frame has finished
+  private VkCommandBuffer prepareCommandBuffer(FrameSlot slot, int imageIndex){
+    if(!useCachedCommandBuffers){
+      recordCommandBuffer(slot.cmdBuffer, imageIndex);
+      return slot.cmdBuffer;
+    }
+
+    if(cachedCmdBufferDirty[imageIndex]){
+      recordCommandBuffer(cachedCmdBuffers[imageIndex], imageIndex);
+      cachedCmdBufferDirty[imageIndex] = false;
+    }
+    return cachedCmdBuffers[imageIndex];
+  }
+
+  private long createSemaphore(){
     try(var stack = MemoryStack.stackPush()){
       var semaInfo = VkSemaphoreCreateInfo.calloc(stack)
         .sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
 
-      var fenceInfo = VkFenceCreateInfo.calloc(stack)
-        .sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO)
-        .flags(VK_FENCE_CREATE_SIGNALED_BIT); //the loop is setup in a way that the 1st operation will be a wait, so instance the fence already signaled
+      var ptr = stack.mallocLong(1);
+      checkResult(vkCreateSemaphore(device, semaInfo, null, ptr));
+      return ptr.get();
+    }
+  }
+
+  private void createSyncObjects(){
+    //the loop is setup in a way that the 1st operation will be a wait. The timeline starts at 0, which counts as reached, so the first waits return right away
+    graphicsTimeline = new Timeline(device, "Graphics");
+    for(int i = 0; i < framesInFlight; i++){
+      frameSlots[i] = new FrameSlot(frameSlots[i].cmdBuffer, createSemaphore());
+    }
 
-      var semPtr1 = stack.mallocLong(1);
-      var semPtr2 = stack.mallocLong(1);
-      var fenPtr  = stack.mallocLong(1);
+    createPerImageSyncObjects();
 
-      vkCreateSemaphore(device, semaInfo,  null, semPtr1);
-      vkCreateSemaphore(device, semaInfo,  null, semPtr2);
-      vkCreateFence    (device, fenceInfo, null, fenPtr);
+    System.out.println("Created " + framesInFlight + " frame slots for " + swapChainImages.length + " swapchain images");
+  }
 
-      imgAvailableSem   = semPtr1.get();
-      renderFinishedSem = semPtr2.get();
-      inFlightFence     = fenPtr.get();
+  //depends on the swapchain image count, so it's rebuilt with the swapchain
+  private void createPerImageSyncObjects(){
+    renderFinishedSems = new long[swapChainImages.length];
+    imagesInFlight     = new long[swapChainImages.length]; //VK_NULL_HANDLE == 0, so no image is in flight initially
+    for(int i = 0; i < renderFinishedSems.length; i++){
+      var sem = renderFinishedSems[i] = createSemaphore();
+      swapChainScope.own("VkSemaphore", () -> vkDestroySemaphore(device, sem, null));
     }
   }
 
+  /**
+   * Recreates the swapchain for the current surface extent, without waiting for the device to idle.
+   * The old chain is handed to the driver via oldSwapchain, after which it is retired: images that were already acquired can still be presented,
+   * so the old chain, its views and framebuffers are destroyed only once every frame that was in flight at this point has finished.
+   * The render pass and pipeline don't depend on the extent (viewport and scissor are dynamic), so they are kept
+   * @return false if the surface currently has a zero extent (minimized), in which case nothing was recreated
+   */
+  private boolean recreateSwapChain(){
+    var start = System.nanoTime();
+
+    //the capabilities queried during device selection are stale by now. Refreshed in place, as deviceInfo holds the (tracked) struct
+    var capabilities = deviceInfo.swapchain.capabilities;
+    checkResult(vkGetPhysicalDeviceSurfaceCapabilitiesKHR(deviceInfo.device, surface, capabilities));
+
+    var extent = chooseSwapExtend(capabilities);
+    if(extent.width() == 0 || extent.height() == 0) return false;
+
+    var oldSwapChain = swapChain;
+    var oldScope     = swapChainScope;
+    var oldFormat    = deviceInfoExtra.usedFormat;
+
+    swapChainScope = lifetimes.scope("swapchain");
+    createSwapChain(oldSwapChain);
+    if(deviceInfoExtra.usedFormat != oldFormat) throw new RuntimeException("Surface format changed during swapchain recreation"); //would need a new render pass & pipeline
+
+    createImageViews();
+    createFramebuffers();
+    createPerImageSyncObjects();
+    frameStructs.setTarget(deviceInfoExtra.usedExtent, swapChain);
+
+    //they reference the old framebuffers. Some may still be pending, so they're freed with the rest of the old chain
+    createCachedCommandBuffers();
+
+    lifetimes.retire(graphicsTimeline.pending(), oldScope); //the value of the last submitted frame
+
+    swapChainRecreations++;
+    System.out.println(String.format("Swapchain recreated in %.2fms", (System.nanoTime() - start) / 1e6));
+    return true;
+  }
+
+  /**
+   * Queues an destruction that has to wait until the frames currently in flight have finished executing
+   * @param type what is destroyed, for the live object counts
+   * @param destroy the destruction, run on the render thread
+   */
+  private void retire(String type, Runnable destroy){
+    lifetimes.retire(graphicsTimeline.pending(), type, destroy); //the value of the last submitted frame
+  }
+
+  //destroys everything whose frames the graphics timeline has passed. Reads the counter at most once, and only if something is waiting
+  private void collectRetired(){
+    if(!lifetimes.hasRetired()) return;
+
+    lifetimes.collect(graphicsTimeline.completed());
+  }
+
+  //blocks until frame n finished on the gpu. Frames that were never submitted (negative, before the first frame) count as finished
+  private void awaitFrame(long frame){
+    graphicsTimeline.await(frame + 1);
+  }
+
+  /**
+   * @return the number of frames the gpu has finished, read from the graphics timeline
+   */
+  public long gpuFramesCompleted(){
+    return graphicsTimeline.completed();
+  }
+
   private void checkResult(int code){
     //TODO extend to all VK error codes. There is a description/list of all codes in the javadoc / vulkan spec
     String error = switch (code){
@@ -1011,111 +2216,288 @@ public class Application {
   public void run(){
     System.out.println("Setup completed successfully");
 
-    while(!glfwWindowShouldClose(window)){
-      glfwPollEvents();
-      drawFrame();
+    var start = System.nanoTime();
+
+    var last  = start;
+
+    //the steady state should not allocate on the java heap. Measured like gc.alloc.rate.norm, as bytes per frame, after a warmup
+    var threads   = ManagementFactory.getThreadMXBean();
+    var allocBean = threads instanceof com.sun.management.ThreadMXBean bean && bean.isThreadAllocatedMemorySupported() ? bean : null;
+    var warmup    = 100;
+    var allocStart = 0L;
+
+    while(!shouldClose()){
+      framePacer.pace();
+      if(!framePacer.samplesLate()) sampleInput();
+      if(resizeStorm > 0 && !headless && framesRendered > 0 && framesRendered % resizeStorm == 0) simulateResize();
+
+      if(allocBean != null && framesRendered == warmup) allocStart = allocBean.getCurrentThreadAllocatedBytes();
+
+      if(framesRendered == 0) drawFirstFrame();
+      else                    drawFrame();
+
+      var now = System.nanoTime();
+      frameTimes.add(now - last);
+      last = now;
+    }
+
+    if(allocBean != null && framesRendered > warmup){
+      allocatedBytes   = allocBean.getCurrentThreadAllocatedBytes() - allocStart;
+      allocationFrames = framesRendered - warmup;
     }
 
     vkDeviceWaitIdle(device);
+
+    //the last frames are done now too, oldest first
+    for(int i = 0; i < framesInFlight; i++){
+      var slotIdx = (currentFrame + i) % framesInFlight;
+      if(headless)            deliverReadback(slotIdx);
+      if(gpuProfiler != null) gpuProfiler.collect(slotIdx);
+    }
+
+    reportFrameRate(System.nanoTime() - start);
   }
 
-  private void drawFrame(){
-    try(var stack = MemoryStack.stackPush()){
-      //makes sure the cmdBuffer was used up and can be rerecorded
-      vkWaitForFences(device, inFlightFence, true, -1L);
-      vkResetFences(device, stack.longs(inFlightFence));
+  //the first frame is part of the startup: it's traced, and completes the time to first frame
+  private void drawFirstFrame(){
+    initTrace.run("first frame", this::drawFrame);
+    if(framesRendered == 0) return; //nothing was submitted (e.g. minimized), the next attempt is traced again
+
+    System.out.println(String.format("Time to first frame: %.1fms, init phases (start, duration, thread):", initTrace.elapsed() / 1e6));
+    System.out.print(initTrace.summary());
+
+    if(initTraceFile == null) return;
+    try{
+      initTrace.writeChromeTrace(initTraceFile);
+      System.out.println("Init trace written to " + initTraceFile);
+    }catch(IOException x){
+      System.err.println("Init trace not written: " + x); //only diagnostics, the frame loop goes on
+    }
+  }
+
+  //polls the window events, which is where input arrives, and starts the frame's latency measurement
+  private void sampleInput(){
+    if(window != MemoryUtil.NULL) glfwPollEvents();
+    framePacer.inputSampled();
+  }
 
-      var idxPtr = stack.mallocInt(1);
-      checkResult(vkAcquireNextImageKHR(device, swapChain, -1L, imgAvailableSem, VK_NULL_HANDLE, idxPtr)); //returns the next image from the chain, and signals the semaphore as soon as the returned
-                                                                                                           //image is no longer needed by the swapchain. It returns the index in the swapchain, the
-                                                                                                           //corresponding image/view has to be retrieved afterwards
-      var imageIndex = idxPtr.get();
-      recordCommandBuffer(cmdBuffer, imageIndex);
+  private boolean shouldClose(){
+    if(frameLimit > 0 && framesRendered >= frameLimit) return true;
 
-      var submitInfo = VkSubmitInfo.calloc(stack)
-        .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
-        .waitSemaphoreCount(1)                         //mind the lwjgl API inconsistency
-        .pWaitSemaphores(stack.longs(imgAvailableSem)) //wait (after then reset) on the following semaphores (which will be when the swapchain says its no longer needed)
-        .pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)) //the semaphore wait isn't binary, but can be for certain stages. Currently the img just have to be ready to be an color attachment
-        .pCommandBuffers(stack.pointers(cmdBuffer.address()))
-        .pSignalSemaphores(stack.longs(renderFinishedSem)); //semaphores to signal
+    return window != MemoryUtil.NULL && glfwWindowShouldClose(window);
+  }
 
-      var presentInfo = VkPresentInfoKHR.calloc(stack)
-        .sType(VK_STRUCTURE_TYPE_PRESENT_INFO_KHR)
-        .pWaitSemaphores(stack.longs(renderFinishedSem)) //wait on those semaphores before presenting
-        .swapchainCount(1)                               //mind the lwjgl API inconsistency
-        .pSwapchains(stack.longs(swapChain))             //the chain to present to
-        .pImageIndices(stack.ints(imageIndex));          //the index in the chain to present
+  //alternates between the initial size and a smaller one
+  private void simulateResize(){
+    var shrink = (framesRendered / resizeStorm) % 2 == 1;
+    var w = shrink ? width  / 2 : width;
+    var h = shrink ? height / 2 : height;
 
-      checkResult(vkQueueSubmit(queueGraphics, submitInfo, inFlightFence)); //signals the fence when the cmdBuffer has finished executing
-      checkResult(vkQueuePresentKHR(queuePresent, presentInfo));
+    if(window != MemoryUtil.NULL){
+      glfwSetWindowSize(window, w, h); //triggers the framebuffer size callback
+    }else{
+      //the headless surface reports no extent of its own, so the next recreation picks up the requested size from here
+      width  = w;
+      height = h;
+      framebufferResized = true;
     }
+  }
 
+  private void reportFrameRate(long nanos){
+    var seconds = nanos / 1e9;
+    System.out.println(String.format("Rendered %d frames in %.3fs with %d frames in flight: %.1f fps", framesRendered, seconds, framesInFlight, framesRendered / seconds));
+    System.out.println("Frame times: " + frameTimes.summaryMs() + ", " + swapChainRecreations + " swapchain recreations");
+    var presenting = headless ? "headless" : FramePacer.presentModeName(presentMode);
+    System.out.println("Frame pacing (" + framePacer.policy() + ", " + presenting + ", " + framesInFlight + " frames in flight" + String.format(", %.1fms slept):", framePacer.sleptNanos() / 1e6));
+    System.out.println("  input to submit:  " + framePacer.inputToSubmit().summaryMs());
+    if(!headless) System.out.println("  input to present: " + framePacer.inputToPresent().summaryMs());
+    System.out.println("Graphics timeline: " + graphicsTimeline.completed() + " of " + graphicsTimeline.pending() + " frames finished, the host waited on " + graphicsTimeline.hostWaits() + " of them");
+    System.out.print("Live objects:\n" + lifetimes.report());
+    var nativeMemory = NativeMemoryStats.installed();
+    if(nativeMemory != null) System.out.print(nativeMemory.report(10));
+    var recording = useCachedCommandBuffers ? "cached" : parallelRecorder != null ? "re-recorded by " + recordWorkers + " workers" : gpuCulling != null ? "gpu culled" : instancing ? "instanced" : "re-recorded";
+    var backend   = dynamicRendering ? "dynamic rendering" : "render pass";
+    System.out.println("Frame CPU times (" + backend + ", " + recording + " cmdBuffers, " + drawCount + " draws): " + cpuFrameTimes.summaryMs());
+    System.out.println(String.format("Render pass & framebuffer creation: %.2fms total, including %d recreations", renderTargetNanos / 1e6, swapChainRecreations));
+    if(allocationFrames > 0) System.out.println(String.format("Heap allocation: %.1f B/frame over %d frames", (double)allocatedBytes / allocationFrames, allocationFrames));
+    var frames = Math.max(1, framesRendered);
+    System.out.println(String.format("Descriptors: %.1f binds, %.1f push descriptors, %.1f push constants per frame, %d set updates, %s",
+      (double)descriptors.binds() / frames, (double)descriptors.pushes() / frames, (double)descriptors.pushedConstants() / frames, descriptors.updates(), descriptors.poolSummary()));
+    System.out.println("Frame allocator: " + frameAllocator.highWater() + " of " + frameAllocator.slotSize() + " bytes per slot used at most");
+    System.out.println(String.format("Scene: %d instances, %.1f%% animated, %.2f MB/frame uploaded", scene.count(), sceneAnimation * 100, sceneBuffer.bytesUploaded() / 1e6 / frames));
   }
 
-  private void recordCommandBuffer(VkCommandBuffer useBuffer, int target){
-    try(var stack = MemoryStack.stackPush()){
+  private void drawFrame(){
+    var slot = frameSlots[currentFrame];
+
+    //everything handed to vulkan comes from frameStructs, which are only patched here. No java objects are created per frame
+
+    //makes sure the cmdBuffer of this slot was used up and can be rerecorded, i.e. the slot's previous frame finished. The other slots may still be executing
+    awaitFrame(framesRendered - framesInFlight);
+    collectRetired();
+    applyReloadedPipelines(); //at the frame boundary, before anything of this frame is recorded
+    //cached cmdBuffers are replayed by whichever slot renders their image, so their frame data stays as it was initialized
+    if(!useCachedCommandBuffers){
+      var time = (System.nanoTime() - animationStart) / 1e9f;
+      frameAllocator.begin(currentFrame); //the slot's previous frame finished, so its frame data was consumed
+      descriptors.updateFrame(currentFrame, time);
+      if(sceneAnimation > 0) animateScene(time);
+    }
+    uploads.update(); //acquires finished uploads on the graphics queue, never waits
+    if(gpuProfiler != null) gpuProfiler.collect(currentFrame); //the slot's previous frame is done, so its queries are available
 
-      /* possible flags:
-        VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT:      The command buffer will be rerecorded right after executing it once.
-        VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT: This is a secondary command buffer that will be entirely within a single render pass.
-        VK_COMMAND_BUFFER_USAGE_SIMULTANEOUS_USE_BIT:     The command buffer can be resubmitted while it is also already pending execution.
-      */
+    if(headless){
+      drawOffscreenFrame(slot);
+      return;
+    }
 
-      var cmdBeginInfo = VkCommandBufferBeginInfo.calloc(stack)
-        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
-        .flags(0)
-        .pInheritanceInfo(null);
+    if(framebufferResized){
+      framebufferResized = false;
+      if(!recreateSwapChain()){
+        //minimized, nothing to draw into. Retry once the window changes again
+        framebufferResized = true;
+        if(window != MemoryUtil.NULL) glfwWaitEvents();
+        return;
+      }
+    }
 
-      var passBeginInfo = VkRenderPassBeginInfo.calloc(stack)
-        .sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO)
-        .renderPass(renderPass)
-        .framebuffer(swapChainFramebuffers[target])
-        .renderArea(VkRect2D.calloc(stack)
-          .offset(VkOffset2D.calloc(stack)
-            .x(0)
-            .y(0))
-          .extent(deviceInfoExtra.usedExtent))
-        .pClearValues(VkClearValue.calloc(1, stack)
-          .color(VkClearColorValue.calloc(stack)
-            .uint32(stack.ints(0))));
-
-      //use the dx way of mapping depth
-      var viewports = VkViewport.calloc(1, stack)
-        .x(0)
-        .y(9)
-        .width(deviceInfoExtra.usedExtent.width())
-        .height(deviceInfoExtra.usedExtent.height())
-        .minDepth(1)
-        .maxDepth(0);
+    var idxPtr = frameStructs.imageIndex();
+    var acquireResult = vkAcquireNextImageKHR(device, swapChain, -1L, slot.imgAvailableSem, VK_NULL_HANDLE, idxPtr); //returns the next image from the chain, and signals the semaphore as soon as the returned
+                                                                                                                     //image is no longer needed by the swapchain. It returns the index in the swapchain, the
+                                                                                                                     //corresponding image/view has to be retrieved afterwards
+    if(acquireResult == VK_ERROR_OUT_OF_DATE_KHR){
+      //nothing was acquired and the semaphore stays unsignaled, so the slot can simply be reused next frame
+      framebufferResized = true;
+      return;
+    }
+    if(acquireResult != VK_SUBOPTIMAL_KHR) checkResult(acquireResult); //suboptimal still acquired an image, render it and recreate after presenting
+
+    var imageIndex = idxPtr.get(0);
+
+    //with more slots than images (or an out of order acquire) the image might still be rendered to by another slot
+    graphicsTimeline.await(imagesInFlight[imageIndex]); //0 if no frame rendered into it yet
+    imagesInFlight[imageIndex] = framesRendered + 1;
+
+    if(framePacer.samplesLate()) sampleInput(); //the image is acquired, nothing blocks between here and the submit
+    var cpuStart = System.nanoTime();
+
+    var cmdBuffer = prepareCommandBuffer(slot, imageIndex);
+    frameAllocator.flush(currentFrame); //recording is done, so is allocating
+
+    var computeValue = simulateParticles();
+    var computeSem   = computeValue != 0 ? asyncCompute.timeline().handle() : VK_NULL_HANDLE;
 
-      var scissors = VkRect2D.calloc(1, stack)
-        .offset(VkOffset2D.calloc(stack)
-          .x(0)
-          .y(0))
-        .extent(deviceInfoExtra.usedExtent);
+    var submitInfo = frameStructs.submit(slot.imgAvailableSem, computeSem, computeValue, cmdBuffer, renderFinishedSems[imageIndex], graphicsTimeline.handle(), graphicsTimeline.next());
+    checkResult(vkQueueSubmit(queueGraphics, submitInfo, VK_NULL_HANDLE)); //the timeline reaches the frame's value when the cmdBuffer has finished executing
+    cpuFrameTimes.add(System.nanoTime() - cpuStart);
+    framePacer.submitted();
 
-      checkResult(vkResetCommandBuffer(useBuffer, 0)); //fencing should make sure this is done only after the buffer was executed entirely
-      checkResult(vkBeginCommandBuffer(useBuffer, cmdBeginInfo));
+    var presentResult = vkQueuePresentKHR(queuePresent, frameStructs.present(imageIndex));
+    framePacer.presented();
+    if(presentResult == VK_ERROR_OUT_OF_DATE_KHR || presentResult == VK_SUBOPTIMAL_KHR || acquireResult == VK_SUBOPTIMAL_KHR) framebufferResized = true;
+    else checkResult(presentResult);
 
-      //Framebuffer.BINDING.bind(...)
-      vkCmdBeginRenderPass(useBuffer, passBeginInfo, VK_SUBPASS_CONTENTS_INLINE); //vkCmd... returns void, the result can be checked when the buffer is submitted
-                                                                                  //VK_SUBPASS_CONTENTS_INLINE menas no usage of secondary cmdBuffers (?)
-      //material.bind(...)
-      vkCmdBindPipeline(useBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline);
+    advanceFrame();
+  }
+
+  private void advanceFrame(){
+    currentFrame = (currentFrame + 1) % framesInFlight;
+    framesRendered++;
+  }
+
+  //no acquire and no present. Each slot renders into its own image, which the wait for the slot's previous frame already guards
+  private void drawOffscreenFrame(FrameSlot slot){
+    deliverReadback(currentFrame);
 
-      vkCmdSetViewport(useBuffer, 0, viewports);
-      vkCmdSetScissor (useBuffer, 0, scissors );
+    if(framePacer.samplesLate()) sampleInput();
+    var cpuStart = System.nanoTime();
 
-      //mesh.draw(...)
-      //this works, as while there is no vertex buffer, 3 vertices are emitted, gl_VertexIndex will be advanced, and the position read from the static array in the vertex shader
-      vkCmdDraw(useBuffer, 3, 1, 0, 0);
+    var cmdBuffer = prepareCommandBuffer(slot, currentFrame);
+    frameAllocator.flush(currentFrame);
 
-      vkCmdEndRenderPass(useBuffer);
-      checkResult(vkEndCommandBuffer(useBuffer));
+    var computeValue = simulateParticles();
+    var computeSem   = computeValue != 0 ? asyncCompute.timeline().handle() : VK_NULL_HANDLE;
+
+    checkResult(vkQueueSubmit(queueGraphics, frameStructs.submitOffscreen(computeSem, computeValue, cmdBuffer, graphicsTimeline.handle(), graphicsTimeline.next()), VK_NULL_HANDLE));
+    cpuFrameTimes.add(System.nanoTime() - cpuStart);
+    framePacer.submitted();
+
+    if(readbackConsumer != null) readbackFrames[currentFrame] = framesRendered;
+
+    advanceFrame();
+  }
+
+  //copies the rendered (and already transitioned by the render pass) image into the slot's readback buffer
+  private void recordReadback(VkCommandBuffer useBuffer, int target){
+    vkCmdPipelineBarrier(useBuffer, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, frameStructs.toTransfer(), null, null);
+    vkCmdCopyImageToBuffer(useBuffer, swapChainImages[target], VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, readbackBuffers[target], frameStructs.readbackRegion());
+    vkCmdPipelineBarrier(useBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0, frameStructs.toHost(), null, null);
+  }
+
+  //either the render pass with the target's framebuffer, or dynamic rendering into the target's view
+  private void beginRendering(VkCommandBuffer cmd, int target, boolean secondaries){
+    if(dynamicRendering){
+      //waits for the same stage the acquire semaphore is waited on, like the render pass' external dependency
+      vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, 0, null, null, frameStructs.toAttachment(swapChainImages[target]));
+      vkCmdBeginRendering(cmd, frameStructs.renderingBegin(swapChainImageViews[target], secondaries ? VK_RENDERING_CONTENTS_SECONDARY_COMMAND_BUFFERS_BIT : 0));
+    }else{
+      //vkCmd... returns void, the result can be checked when the buffer is submitted. VK_SUBPASS_CONTENTS_INLINE means no usage of secondary cmdBuffers
+      vkCmdBeginRenderPass(cmd, frameStructs.passBegin(swapChainFramebuffers[target]), secondaries ? VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS : VK_SUBPASS_CONTENTS_INLINE);
+    }
+  }
+
+  private void endRendering(VkCommandBuffer cmd, int target){
+    if(dynamicRendering){
+      vkCmdEndRendering(cmd);
+      //the render pass' finalLayout transition. Present and the readback copy are ordered by the semaphore and the readback barriers respectively
+      var dstStage = headless ? VK_PIPELINE_STAGE_TRANSFER_BIT : VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT;
+      vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, dstStage, 0, null, null, frameStructs.toFinal(swapChainImages[target]));
+    }else{
+      vkCmdEndRenderPass(cmd);
     }
   }
 
+  private void recordCommandBuffer(VkCommandBuffer useBuffer, int target){
+    checkResult(vkResetCommandBuffer(useBuffer, 0)); //the timeline waits make sure this is done only after the buffer was executed entirely
+    checkResult(vkBeginCommandBuffer(useBuffer, frameStructs.cmdBegin()));
+
+    //the profiler is only active with per frame recording, so the cmdBuffer belongs to the current slot
+    var profiler = gpuProfiler;
+    if(profiler != null) profiler.beginFrame(useBuffer, currentFrame);
+    var frameScope = profiler != null ? profiler.begin(useBuffer, currentFrame, "frame") : -1;
+    //cached cmdBuffers are recorded once, so they don't upload anything. Their scene doesn't change
+    if(!useCachedCommandBuffers){
+      var uploadScope = profiler != null ? profiler.begin(useBuffer, currentFrame, "scene upload") : -1;
+      sceneBuffer.record(useBuffer, currentFrame);
+      if(profiler != null) profiler.end(useBuffer, currentFrame, uploadScope);
+    }
+    if(gpuCulling != null){
+      var cullScope = profiler != null ? profiler.begin(useBuffer, currentFrame, "culling") : -1;
+      gpuCulling.cull(useBuffer, currentFrame, -1, -1, 1, 1); //clip space is the view until there is a camera
+      if(profiler != null) profiler.end(useBuffer, currentFrame, cullScope);
+    }
+    var passScope  = profiler != null ? profiler.begin(useBuffer, currentFrame, "render pass") : -1;
+
+    //Framebuffer.BINDING.bind(...)
+    beginRendering(useBuffer, target, parallelRecorder != null);
+    if(parallelRecorder != null){
+      //the primary may only execute secondaries in this subpass, so there's no "draws" scope
+      parallelRecorder.record(useBuffer, currentFrame, swapChainFramebuffers[target]);
+    }else{
+      var drawScope = profiler != null ? profiler.begin(useBuffer, currentFrame, "draws") : -1;
+      if(gpuCulling != null) recordCulledDraws(useBuffer, currentFrame);
+      else                   recordDraws(useBuffer, currentFrame, 0, drawCount);
+      if(profiler != null) profiler.end(useBuffer, currentFrame, drawScope);
+    }
+    endRendering(useBuffer, target);
+    if(profiler != null) profiler.end(useBuffer, currentFrame, passScope);
+
+    if(headless && readbackConsumer != null) recordReadback(useBuffer, target);
+
+    if(profiler != null) profiler.end(useBuffer, currentFrame, frameScope);
+    checkResult(vkEndCommandBuffer(useBuffer));
+  }
+
   public void dispose(){
     disposeVulkan();
     disposeGlfw();
@@ -1126,28 +2508,66 @@ public class Application {
   private void disposeVulkan(){
     System.out.println("Disposing vulkan specifics");
 
-    vkDestroyFence(device, inFlightFence, null);
-    vkDestroySemaphore(device, imgAvailableSem, null);
-    vkDestroySemaphore(device, renderFinishedSem, null);
+    if(shaderReloader != null) shaderReloader.dispose(); //waits for a running rebuild, which creates vulkan objects
+    if(compileExecutor != null) compileExecutor.shutdown();
+
+    //run() waited for the device to idle, so everything retired is safe to destroy now
+    lifetimes.collect(Long.MAX_VALUE);
+    swapChainScope.close(); //frees the cached cmdBuffers, so before their pool
+
+    for(var slot : frameSlots) vkDestroySemaphore(device, slot.imgAvailableSem, null);
+    graphicsTimeline.dispose();
 
     vkDestroyCommandPool(device, commandPool, null);
-    for(var fbo : swapChainFramebuffers) vkDestroyFramebuffer(device, fbo, null);
     vkDestroyPipeline(device, pipeline, null);
-    vkDestroyPipelineLayout(device, pipelineLayout, null);
     vkDestroyRenderPass(device, renderPass, null);
     vkDestroyShaderModule(device, vertModule, null);
     vkDestroyShaderModule(device, fragModule, null);
 
-    for(var view : swapChainImageViews) vkDestroyImageView(device, view, null);
+    if(particles != null){
+      particles.dispose();
+      asyncCompute.dispose();
+      vkDestroyPipeline(device, particlePipeline, null);
+      vkDestroyShaderModule(device, particleVertModule, null);
+      vkDestroyShaderModule(device, computeModule, null);
+    }
+
+    if(parallelRecorder != null) parallelRecorder.dispose();
+    if(gpuCulling != null){
+      gpuCulling.dispose();
+      gpuMemory.destroyBuffer(drawRecords);
+    }
+
+    frameStructs.free();
+
+    if(gpuProfiler != null){
+      gpuProfiler.dump();
+      gpuProfiler.dispose();
+    }
+
+    if(pipelineCache != null){
+      if(reloadCache != MemoryUtil.NULL) pipelineCache.merge(reloadCache);
+      pipelineCache.save();
+      pipelineCache.dispose();
+    }
+
+    uploads.dispose();
+    mesh.dispose(gpuMemory);
+    descriptors.table().releaseBuffer(objectBufferSlot);
+    sceneBuffer.dispose();
+    scene.dispose();
+    descriptors.dispose(); //also destroys the pipeline layout
+    frameAllocator.dispose();
+    gpuMemory.dump();
+    gpuMemory.dispose();
 
-    vkDestroySwapchainKHR(device, swapChain, null);
     vkDestroyDevice(device, null);
 
     if(debug) {
       vkDestroyDebugUtilsMessengerEXT(instance, debugMessenger, null);
     }
 
-    vkDestroySurfaceKHR(instance, surface, null);
+    if(!headless) vkDestroySurfaceKHR(instance, surface, null);
     vkDestroyInstance(instance, null);
 
     if(debug){
@@ -1156,19 +2576,23 @@ public class Application {
   }
 
   private void disposeShaderC(){
-    Shaderc.shaderc_compile_options_release(compilerOptions);
-    Shaderc.shaderc_compiler_release(shaderCompiler);
+    shaderCompiler.dispose(); //also frees the compiled SPIR-V
   }
 
   private void disposeGlfw(){
+    if(window == MemoryUtil.NULL) return; //headless surface, glfw was never initialized
+
     System.out.println("Disposing glfw window & api");
+    Callbacks.glfwFreeCallbacks(window);
     glfwDestroyWindow(window);
     glfwTerminate();
   }
 
   private void freeMemory(){
-    for(var mem : ownedMemoryCustom) MemoryUtil.memFree(mem); //make sure to free the BUFFER, not the pointers in it
-    for(var mem : ownedMemoryNIO   ) MemoryUtil.memFree(mem);
-    for(var mem : ownedMemoryObj   ) mem.free();
+    appScope.close();
+
+    //anything left was owned by a scope that was never closed
+    var live = lifetimes.liveCounts();
+    if(!live.isEmpty()) System.out.println("Still live after dispose: " + live);
   }
 }
@@ -0,0 +1,141 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.LongBuffer;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * Submits compute work on its own queue, next to the graphics queue. Every frame slot owns a cmdBuffer, and every submit signals the next value
+ * of the compute queue's {@link Timeline}. The graphics submit of the same frame waits for that value only at the stage that consumes the results. So the
+ * dispatches of frame n overlap the rasterization of frame n-1, and on a device with a compute-only family they run on separate hardware queues.
+ *
+ * The cmdBuffers are re-recorded every frame. Recording and submitting doesn't allocate.
+ */
+public class AsyncCompute {
+
+  private VkDevice device;
+  private VkQueue  queue;
+  private int      family;
+
+  private long              commandPool;
+  private VkCommandBuffer[] cmdBuffers;
+  private Timeline          timeline;
+
+  private VkCommandBufferBeginInfo beginInfo;
+  private VkSubmitInfo             submitInfo;
+  private PointerBuffer            submitCmd;
+  private LongBuffer               submitSignal;
+  private LongBuffer               submitValue;
+  private VkTimelineSemaphoreSubmitInfo timelineInfo;
+
+  /**
+   * @param dev the logical device
+   * @param computeQueue the queue the work is submitted to
+   * @param computeFamily the family of the queue
+   * @param frameSlots the amount of frames in flight
+   */
+  public AsyncCompute(VkDevice dev, VkQueue computeQueue, int computeFamily, int frameSlots){
+    device = dev;
+    queue  = computeQueue;
+    family = computeFamily;
+
+    try(var stack = MemoryStack.stackPush()){
+      var poolInfo = VkCommandPoolCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+        .flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT)
+        .queueFamilyIndex(family);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreateCommandPool(device, poolInfo, null, ptr), "command pool");
+      commandPool = ptr.get(0);
+
+      var allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+        .commandPool(commandPool)
+        .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+        .commandBufferCount(frameSlots);
+
+      var cmdPtr = stack.mallocPointer(frameSlots);
+      check(vkAllocateCommandBuffers(device, allocInfo, cmdPtr), "cmdBuffers");
+
+      cmdBuffers = new VkCommandBuffer[frameSlots];
+      for(int i = 0; i < frameSlots; i++) cmdBuffers[i] = new VkCommandBuffer(cmdPtr.get(i), device);
+    }
+
+    timeline = new Timeline(device, "Compute");
+
+    //patched per submit, see FrameStructs
+    submitCmd    = MemoryUtil.memCallocPointer(1);
+    submitSignal = MemoryUtil.memAllocLong(1).put(0, timeline.handle());
+    submitValue  = MemoryUtil.memCallocLong(1);
+
+    beginInfo = VkCommandBufferBeginInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+      .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+
+    timelineInfo = VkTimelineSemaphoreSubmitInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_TIMELINE_SEMAPHORE_SUBMIT_INFO)
+      .pSignalSemaphoreValues(submitValue)
+      .signalSemaphoreValueCount(1);
+
+    submitInfo = VkSubmitInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+      .pNext(timelineInfo)
+      .pCommandBuffers(submitCmd)
+      .pSignalSemaphores(submitSignal);
+
+    System.out.println("Async compute on queue family " + family);
+  }
+
+  /**
+   * Starts recording the slot's compute work. The slot's previous graphics frame (which consumed the previous results) has to be finished
+   * @param slot the frame slot index
+   * @return the cmdBuffer to record the dispatches into
+   */
+  public VkCommandBuffer begin(int slot){
+    var cmd = cmdBuffers[slot];
+    check(vkResetCommandBuffer(cmd, 0), "reset");
+    check(vkBeginCommandBuffer(cmd, beginInfo), "begin");
+    return cmd;
+  }
+
+  /**
+   * Submits what was recorded since {@link #begin(int)}. Unlike a binary semaphore, the value may be waited on by any number of submits, or none
+   * @param slot the frame slot index
+   * @return the value of {@link #timeline()} reached once the compute work finished
+   */
+  public long submit(int slot){
+    var cmd = cmdBuffers[slot];
+    check(vkEndCommandBuffer(cmd), "end");
+
+    submitCmd.put(0, cmd);
+    submitValue.put(0, timeline.next());
+    check(vkQueueSubmit(queue, submitInfo, VK_NULL_HANDLE), "submit"); //the graphics timeline value of the frame covers the compute work, as the frame waits on it
+    return submitValue.get(0);
+  }
+
+  public int      family()  { return family;   }
+  public Timeline timeline(){ return timeline; }
+
+  private static void check(int result, String what){
+    if(result != VK_SUCCESS) throw new RuntimeException("Async compute: " + what + " failed with " + result);
+  }
+
+  /**
+   * The device must be idle
+   */
+  public void dispose(){
+    timeline.dispose();
+    vkDestroyCommandPool(device, commandPool, null);
+
+    beginInfo.free();
+    submitInfo.free();
+    timelineInfo.free();
+    MemoryUtil.memFree(submitCmd);
+    MemoryUtil.memFree(submitSignal);
+    MemoryUtil.memFree(submitValue);
+  }
+}
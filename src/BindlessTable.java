@@ -0,0 +1,198 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+/**
+ * One global descriptor set holding arrays of every storage buffer and sampled image, indexed by shaders with an index the draw provides
+ * (descriptor indexing, core in Vulkan 1.2). The set is bound once per cmdBuffer. Draws only push their indices, so switching resources
+ * needs no new sets and no rebinding.
+ *
+ * Slots are written with UPDATE_AFTER_BIND and PARTIALLY_BOUND, so resources can be registered while the set is bound in pending cmdBuffers,
+ * and unused slots may stay empty. A released slot must no longer be used by any pending frame.
+ *
+ * Bindings: 0 = storage buffers, 1 = combined image samplers.
+ */
+public class BindlessTable {
+
+  public static final int BINDING_BUFFERS = 0;
+  public static final int BINDING_IMAGES  = 1;
+
+  private VkDevice device;
+  private long     layout;
+  private long     pool;
+  private long     set;
+
+  private SlotList bufferSlots;
+  private SlotList imageSlots;
+
+  private AtomicLong updates = new AtomicLong();
+
+  //free list over the slots of one binding
+  private static class SlotList {
+    int[] free;
+    int   freeCount;
+    int   next;
+    int   capacity;
+
+    SlotList(int slots){
+      capacity = slots;
+      free     = new int[slots];
+    }
+
+    int acquire(String what){
+      if(freeCount > 0) return free[--freeCount];
+      if(next == capacity) throw new RuntimeException("Bindless table: all " + capacity + " " + what + " slots are in use");
+      return next++;
+    }
+
+    void release(int slot){
+      free[freeCount++] = slot;
+    }
+  }
+
+  /**
+   * @param dev the logical device, with the descriptor indexing features enabled
+   * @param maxBuffers the requested number of storage buffer slots, clamped to the device limit
+   * @param maxImages the requested number of image slots, clamped to the device limit
+   */
+  public BindlessTable(VkDevice dev, int maxBuffers, int maxImages){
+    device = dev;
+
+    try(var stack = MemoryStack.stackPush()){
+      var limits = VkPhysicalDeviceVulkan12Properties.calloc(stack).sType$Default();
+      vkGetPhysicalDeviceProperties2(device.getPhysicalDevice(), VkPhysicalDeviceProperties2.calloc(stack).sType$Default().pNext(limits));
+
+      //half of what a stage may access, leaving room for the other sets
+      var buffers = Math.max(1, Math.min(maxBuffers, limits.maxPerStageDescriptorUpdateAfterBindStorageBuffers() / 2));
+      var images  = Math.max(1, Math.min(maxImages,  limits.maxPerStageDescriptorUpdateAfterBindSampledImages()  / 2));
+      bufferSlots = new SlotList(buffers);
+      imageSlots  = new SlotList(images);
+
+      var stages = VK_SHADER_STAGE_VERTEX_BIT | VK_SHADER_STAGE_FRAGMENT_BIT | VK_SHADER_STAGE_COMPUTE_BIT;
+      var bindings = VkDescriptorSetLayoutBinding.calloc(2, stack);
+      bindings.get(0).binding(BINDING_BUFFERS).descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER        ).descriptorCount(buffers).stageFlags(stages);
+      bindings.get(1).binding(BINDING_IMAGES ).descriptorType(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER).descriptorCount(images ).stageFlags(stages);
+
+      var flags = VK_DESCRIPTOR_BINDING_PARTIALLY_BOUND_BIT | VK_DESCRIPTOR_BINDING_UPDATE_AFTER_BIND_BIT;
+      var bindingFlags = VkDescriptorSetLayoutBindingFlagsCreateInfo.calloc(stack)
+        .sType$Default()
+        .pBindingFlags(stack.ints(flags, flags));
+
+      var layoutInfo = VkDescriptorSetLayoutCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO)
+        .pNext(bindingFlags)
+        .flags(VK_DESCRIPTOR_SET_LAYOUT_CREATE_UPDATE_AFTER_BIND_POOL_BIT)
+        .pBindings(bindings);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreateDescriptorSetLayout(device, layoutInfo, null, ptr), "set layout");
+      layout = ptr.get(0);
+
+      var sizes = VkDescriptorPoolSize.calloc(2, stack);
+      sizes.get(0).type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER        ).descriptorCount(buffers);
+      sizes.get(1).type(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER).descriptorCount(images );
+
+      var poolInfo = VkDescriptorPoolCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+        .flags(VK_DESCRIPTOR_POOL_CREATE_UPDATE_AFTER_BIND_BIT)
+        .maxSets(1)
+        .pPoolSizes(sizes);
+
+      check(vkCreateDescriptorPool(device, poolInfo, null, ptr), "pool");
+      pool = ptr.get(0);
+
+      var allocInfo = VkDescriptorSetAllocateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+        .descriptorPool(pool)
+        .pSetLayouts(stack.longs(layout));
+
+      check(vkAllocateDescriptorSets(device, allocInfo, ptr), "set");
+      set = ptr.get(0);
+
+      System.out.println("Bindless table: " + buffers + " buffer slots, " + images + " image slots");
+    }
+  }
+
+  /**
+   * Writes the whole buffer into a free slot
+   * @return the slot index, which shaders use to index the buffer array
+   */
+  public synchronized int registerBuffer(GpuMemory.Buffer buffer){
+    var slot = bufferSlots.acquire("buffer");
+
+    try(var stack = MemoryStack.stackPush()){
+      var info = VkDescriptorBufferInfo.calloc(1, stack).buffer(buffer.handle()).offset(0).range(VK_WHOLE_SIZE);
+      var write = VkWriteDescriptorSet.calloc(1, stack)
+        .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+        .dstSet(set)
+        .dstBinding(BINDING_BUFFERS)
+        .dstArrayElement(slot)
+        .descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+        .descriptorCount(1)
+        .pBufferInfo(info);
+
+      vkUpdateDescriptorSets(device, write, null);
+    }
+    updates.incrementAndGet();
+    return slot;
+  }
+
+  /**
+   * Writes the image into a free slot
+   * @param view a view of an image in SHADER_READ_ONLY_OPTIMAL layout
+   * @param sampler the sampler to combine it with
+   * @return the slot index, which shaders use to index the image array
+   */
+  public synchronized int registerImage(long view, long sampler){
+    var slot = imageSlots.acquire("image");
+
+    try(var stack = MemoryStack.stackPush()){
+      var info = VkDescriptorImageInfo.calloc(1, stack).imageView(view).sampler(sampler).imageLayout(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+      var write = VkWriteDescriptorSet.calloc(1, stack)
+        .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+        .dstSet(set)
+        .dstBinding(BINDING_IMAGES)
+        .dstArrayElement(slot)
+        .descriptorType(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER)
+        .descriptorCount(1)
+        .pImageInfo(info);
+
+      vkUpdateDescriptorSets(device, write, null);
+    }
+    updates.incrementAndGet();
+    return slot;
+  }
+
+  /**
+   * Makes the buffer slot available again. No pending frame may still use it
+   */
+  public synchronized void releaseBuffer(int slot){
+    bufferSlots.release(slot);
+  }
+
+  /**
+   * Makes the image slot available again. No pending frame may still use it
+   */
+  public synchronized void releaseImage(int slot){
+    imageSlots.release(slot);
+  }
+
+  public long layout() { return layout; }
+  public long set()    { return set;    }
+  public long updates(){ return updates.get(); }
+
+  private static void check(int result, String what){
+    if(result != VK_SUCCESS) throw new RuntimeException("Bindless table: " + what + " failed with " + result);
+  }
+
+  /**
+   * The device must be idle
+   */
+  public void dispose(){
+    vkDestroyDescriptorPool(device, pool, null); //frees the set
+    vkDestroyDescriptorSetLayout(device, layout, null);
+  }
+}
@@ -0,0 +1,52 @@
+import org.lwjgl.system.Configuration;
+
+/**
+ * Compares host issued draws with GPU-driven rendering (compute culling and indirect count draws) over growing object counts.
+ * Every count is rendered headless once per path, and the frame CPU times and the gpu frame times are compared.
+ * The host path is skipped above 100k objects, recording a million draws per frame only measures how slow that is.
+ *
+ * Args: [frames] [objects...]
+ */
+public class CullingBenchmark {
+  private static final int MAX_HOST_DRAWS = 100_000;
+
+  public static void main(String[] args){
+    Configuration.MEMORY_ALLOCATOR.set("rpmalloc");
+
+    var frames  = args.length > 0 ? Long.parseLong(args[0]) : 300;
+    var objects = new int[]{10_000, 100_000, 1_000_000};
+    if(args.length > 1){
+      objects = new int[args.length - 1];
+      for(int i = 1; i < args.length; i++) objects[i - 1] = Integer.parseInt(args[i]);
+    }
+
+    var results = new StringBuilder();
+    for(var count : objects){
+      for(var gpuDriven : new boolean[]{false, true}){
+        var path = gpuDriven ? "gpu" : "host";
+        if(!gpuDriven && count > MAX_HOST_DRAWS){
+          results.append(String.format("%9d %-5s skipped%n", count, path));
+          continue;
+        }
+
+        var app = new Application(1920, 1080, false, Application.MIN_FRAMES_IN_FLIGHT);
+        app.useHeadless(true);
+        app.setFrameLimit(frames);
+        app.setDrawCount(count);
+        app.useGpuDrivenRendering(gpuDriven);
+        app.enableGpuProfiler(false);
+
+        app.init();
+        app.run();
+        var cpu = app.cpuFrameTimes();
+        var gpu = app.gpuProfiler() != null ? app.gpuProfiler().durations("frame") : null;
+        results.append(String.format("%9d %-5s cpu p50 %8.3fms  p99 %8.3fms  gpu p50 %8.3fms%n", count, path,
+          cpu.percentile(50) / 1e6, cpu.percentile(99) / 1e6, gpu != null ? gpu.percentile(50) / 1e6 : Double.NaN));
+        app.dispose();
+      }
+    }
+
+    System.out.println("Objects, " + frames + " frames per run:");
+    System.out.print(results);
+  }
+}
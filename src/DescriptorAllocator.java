@@ -0,0 +1,110 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+/**
+ * Allocates descriptor sets from a growing list of pools. When the current pool runs out, a new one is created, so callers never have to
+ * size a pool up front. Every pool holds the same number of sets, with a fixed number of descriptors of each type per set.
+ */
+public class DescriptorAllocator {
+
+  private VkDevice device;
+  private int      setsPerPool;
+  private int[]    types;
+  private int[]    perSet;
+
+  private List<Long> pools = new ArrayList<>();
+  private int        current = -1; //index of the pool allocated from
+  private int        setsAllocated;
+
+  /**
+   * @param dev the logical device
+   * @param sets the number of sets per pool
+   * @param descriptorTypes the descriptor types the sets contain
+   * @param descriptorsPerSet the number of descriptors of each type a set needs at most
+   */
+  public DescriptorAllocator(VkDevice dev, int sets, int[] descriptorTypes, int[] descriptorsPerSet){
+    device      = dev;
+    setsPerPool = sets;
+    types       = descriptorTypes;
+    perSet      = descriptorsPerSet;
+  }
+
+  private long createPool(){
+    try(var stack = MemoryStack.stackPush()){
+      var sizes = VkDescriptorPoolSize.calloc(types.length, stack);
+      for(int i = 0; i < types.length; i++) sizes.get(i).type(types[i]).descriptorCount(perSet[i] * setsPerPool);
+
+      var poolInfo = VkDescriptorPoolCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+        .maxSets(setsPerPool)
+        .pPoolSizes(sizes);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreateDescriptorPool(device, poolInfo, null, ptr), "descriptor pool");
+      pools.add(ptr.get(0));
+      return ptr.get(0);
+    }
+  }
+
+  //the next pool after a reset, or a new one
+  private long nextPool(){
+    current++;
+    return current < pools.size() ? pools.get(current) : createPool();
+  }
+
+  /**
+   * @param layout the layout of the set
+   * @return a new set, freed with the pools
+   */
+  public long allocate(long layout){
+    var pool = current < 0 ? nextPool() : pools.get(current);
+
+    try(var stack = MemoryStack.stackPush()){
+      var allocInfo = VkDescriptorSetAllocateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+        .descriptorPool(pool)
+        .pSetLayouts(stack.longs(layout));
+
+      var ptr = stack.mallocLong(1);
+      var result = vkAllocateDescriptorSets(device, allocInfo, ptr);
+      if(result == VK_ERROR_OUT_OF_POOL_MEMORY || result == VK_ERROR_FRAGMENTED_POOL){
+        //full, continue with the next pool. The full one stays alive for the sets in it
+        allocInfo.descriptorPool(nextPool());
+        result = vkAllocateDescriptorSets(device, allocInfo, ptr);
+      }
+      check(result, "descriptor set");
+
+      setsAllocated++;
+      return ptr.get(0);
+    }
+  }
+
+  /**
+   * Frees all sets at once. None of them may be in use by the device
+   */
+  public void reset(){
+    for(var pool : pools) vkResetDescriptorPool(device, pool, 0);
+    current = pools.isEmpty() ? -1 : 0;
+    setsAllocated = 0;
+  }
+
+  public int setsAllocated(){ return setsAllocated; }
+  public int pools()        { return pools.size(); }
+
+  private static void check(int result, String what){
+    if(result != VK_SUCCESS) throw new RuntimeException("Descriptor allocator: " + what + " failed with " + result);
+  }
+
+  /**
+   * Destroys all pools, which frees their sets. The device must be idle
+   */
+  public void dispose(){
+    for(var pool : pools) vkDestroyDescriptorPool(device, pool, null);
+    pools.clear();
+  }
+}
@@ -0,0 +1,270 @@
+import static org.lwjgl.vulkan.VK13.*;
+import static org.lwjgl.vulkan.KHRPushDescriptor.*;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * The descriptor layout shared by all graphics pipelines, sorted by how often the data changes:
+ * <ul>
+ * <li>set 0: the {@link BindlessTable}, bound once per cmdBuffer</li>
+ * <li>set 1: the material, a uniform buffer per material. The sets come from a {@link DescriptorAllocator}, and are only rebound when the material changes</li>
+ * <li>set 2: per frame data, streamed through the {@link FrameAllocator}. Pushed with VK_KHR_push_descriptor if available, otherwise a single
+ * set with a dynamic uniform buffer, bound with the frame's offset</li>
+ * <li>push constants: per draw data, the object index and the bindless slot of the object buffer</li>
+ * </ul>
+ * Binding and pushing doesn't allocate and can be done from multiple recording threads. Binds, pushes and updates are counted for the frame report.
+ */
+public class DescriptorSystem {
+
+  public static final int SET_GLOBAL   = 0;
+  public static final int SET_MATERIAL = 1;
+  public static final int SET_FRAME    = 2;
+
+  public static final int PUSH_CONSTANT_SIZE = 2 * Integer.BYTES; //uint objectIndex, uint objectBuffer
+  public static final int FRAME_DATA_SIZE    = 4 * Float.BYTES;   //float time, padded to a vec4
+  private static final int STAGES = VK_SHADER_STAGE_VERTEX_BIT | VK_SHADER_STAGE_FRAGMENT_BIT;
+
+  private VkDevice       device;
+  private GpuMemory      memory;
+  private FrameAllocator frameAllocator;
+  private boolean        pushDescriptors;
+
+  private BindlessTable       table;
+  private DescriptorAllocator allocator;
+  private long                materialLayout;
+  private long                frameLayout;
+  private long                pipelineLayout;
+
+  //the single element arrays vkCmdBindDescriptorSets reads, allocated once per set
+  private LongBuffer             globalSet;
+  private List<GpuMemory.Buffer> materialBuffers = new ArrayList<>();
+  private List<LongBuffer>       materialSets    = new ArrayList<>();
+
+  //patched with the offset of the slot's frame data in updateFrame, before the slot is recorded
+  private LongBuffer                    frameSet;      //without push descriptors
+  private IntBuffer[]                   frameOffsets;  //without push descriptors, the dynamic offset
+  private VkWriteDescriptorSet.Buffer[] frameWrites;   //with push descriptors
+
+  private LongAdder binds           = new LongAdder();
+  private LongAdder pushes          = new LongAdder(); //push descriptors
+  private LongAdder pushedConstants = new LongAdder();
+  private long      updates;
+
+  /**
+   * @param dev the logical device, with the descriptor indexing features enabled
+   * @param gpuMemory the memory the material buffers are allocated from
+   * @param frames the allocator the frame data is streamed through, one slot per frame in flight
+   * @param frameSlots the amount of frames in flight
+   * @param usePushDescriptors whether VK_KHR_push_descriptor is enabled on the device
+   */
+  public DescriptorSystem(VkDevice dev, GpuMemory gpuMemory, FrameAllocator frames, int frameSlots, boolean usePushDescriptors){
+    device          = dev;
+    memory          = gpuMemory;
+    frameAllocator  = frames;
+    pushDescriptors = usePushDescriptors;
+
+    table     = new BindlessTable(device, 1024, 1024);
+    allocator = new DescriptorAllocator(device, 64, new int[]{VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC}, new int[]{1, 1});
+
+    //push descriptors can't be dynamic, but as they are written into the cmdBuffer, the offset can simply be pushed with them
+    materialLayout = createUniformLayout(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, 0);
+    frameLayout    = pushDescriptors ? createUniformLayout(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, VK_DESCRIPTOR_SET_LAYOUT_CREATE_PUSH_DESCRIPTOR_BIT_KHR)
+                                     : createUniformLayout(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC, 0);
+
+    try(var stack = MemoryStack.stackPush()){
+      var pushRange = VkPushConstantRange.calloc(1, stack)
+        .stageFlags(STAGES)
+        .offset(0)
+        .size(PUSH_CONSTANT_SIZE);
+
+      var layoutInfo = VkPipelineLayoutCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO)
+        .pSetLayouts(stack.longs(table.layout(), materialLayout, frameLayout))
+        .pPushConstantRanges(pushRange);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreatePipelineLayout(device, layoutInfo, null, ptr), "pipeline layout");
+      pipelineLayout = ptr.get(0);
+    }
+
+    globalSet = MemoryUtil.memAllocLong(1).put(0, table.set());
+
+    var frameBuffer = frameAllocator.buffer();
+    if(pushDescriptors){
+      //written into the cmdBuffer on every push, so the write is kept instead of a set
+      frameWrites = new VkWriteDescriptorSet.Buffer[frameSlots];
+      for(int i = 0; i < frameSlots; i++){
+        var info = VkDescriptorBufferInfo.calloc(1).buffer(frameBuffer.handle()).offset(0).range(FRAME_DATA_SIZE);
+        frameWrites[i] = VkWriteDescriptorSet.calloc(1)
+          .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+          .dstBinding(0)
+          .descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER)
+          .descriptorCount(1)
+          .pBufferInfo(info);
+      }
+    }else{
+      frameSet     = MemoryUtil.memAllocLong(1).put(0, allocateUniformSet(frameLayout, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC, frameBuffer, FRAME_DATA_SIZE));
+      frameOffsets = new IntBuffer[frameSlots];
+      for(int i = 0; i < frameSlots; i++) frameOffsets[i] = MemoryUtil.memAllocInt(1);
+    }
+
+    //every slot starts with valid frame data. Cached cmdBuffers keep using it, as the slots are never reset for them
+    for(int i = 0; i < frameSlots; i++) updateFrame(i, 0);
+
+    System.out.println("Descriptors: bindless table, pooled material sets, frame data " + (pushDescriptors ? "pushed" : "in a set per frame slot"));
+  }
+
+  private long createUniformLayout(int type, int flags){
+    try(var stack = MemoryStack.stackPush()){
+      var binding = VkDescriptorSetLayoutBinding.calloc(1, stack)
+        .binding(0)
+        .descriptorType(type)
+        .descriptorCount(1)
+        .stageFlags(STAGES);
+
+      var layoutInfo = VkDescriptorSetLayoutCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO)
+        .flags(flags)
+        .pBindings(binding);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreateDescriptorSetLayout(device, layoutInfo, null, ptr), "set layout");
+      return ptr.get(0);
+    }
+  }
+
+  private long allocateUniformSet(long layout, int type, GpuMemory.Buffer buffer, long range){
+    var set = allocator.allocate(layout);
+
+    try(var stack = MemoryStack.stackPush()){
+      var info = VkDescriptorBufferInfo.calloc(1, stack).buffer(buffer.handle()).offset(0).range(range);
+      var write = VkWriteDescriptorSet.calloc(1, stack)
+        .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+        .dstSet(set)
+        .dstBinding(0)
+        .descriptorType(type)
+        .descriptorCount(1)
+        .pBufferInfo(info);
+
+      vkUpdateDescriptorSets(device, write, null);
+    }
+    updates++;
+    return set;
+  }
+
+  /**
+   * Creates a material with its own uniform buffer and set. Not thread safe, materials are created while loading
+   * @return the material id for {@link #bindMaterial(VkCommandBuffer, int)}
+   */
+  public int createMaterial(float r, float g, float b, float a){
+    var buffer = memory.createBuffer(GpuMemory.Usage.UNIFORM, 4 * Float.BYTES); //vec4 tint
+    MemoryUtil.memFloatBuffer(buffer.mapped(), 4).put(0, r).put(1, g).put(2, b).put(3, a);
+    memory.flush(buffer, 0, buffer.size());
+
+    materialBuffers.add(buffer);
+    materialSets.add(MemoryUtil.memAllocLong(1).put(0, allocateUniformSet(materialLayout, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, buffer, VK_WHOLE_SIZE)));
+    return materialSets.size() - 1;
+  }
+
+  /**
+   * Streams the frame data of the slot through the frame allocator. Called on the render thread after {@link FrameAllocator#begin(int)},
+   * before the slot is recorded
+   */
+  public void updateFrame(int slot, float time){
+    var offset = frameAllocator.allocate(slot, FRAME_DATA_SIZE);
+    MemoryUtil.memPutFloat(frameAllocator.address(offset), time);
+
+    if(pushDescriptors) frameWrites[slot].pBufferInfo().offset(offset);
+    else                frameOffsets[slot].put(0, offset);
+  }
+
+  /**
+   * Binds the bindless table and the slot's frame data. Needed once per cmdBuffer, secondaries included
+   */
+  public void bindFrame(VkCommandBuffer cmd, int slot){
+    vkCmdBindDescriptorSets(cmd, VK_PIPELINE_BIND_POINT_GRAPHICS, pipelineLayout, SET_GLOBAL, globalSet, null);
+    binds.increment();
+
+    if(pushDescriptors){
+      vkCmdPushDescriptorSetKHR(cmd, VK_PIPELINE_BIND_POINT_GRAPHICS, pipelineLayout, SET_FRAME, frameWrites[slot]);
+      pushes.increment();
+    }else{
+      vkCmdBindDescriptorSets(cmd, VK_PIPELINE_BIND_POINT_GRAPHICS, pipelineLayout, SET_FRAME, frameSet, frameOffsets[slot]);
+      binds.increment();
+    }
+  }
+
+  public void bindMaterial(VkCommandBuffer cmd, int material){
+    vkCmdBindDescriptorSets(cmd, VK_PIPELINE_BIND_POINT_GRAPHICS, pipelineLayout, SET_MATERIAL, materialSets.get(material), null);
+    binds.increment();
+  }
+
+  /**
+   * Pushes the per draw data. Goes through the calling thread's MemoryStack, so recording threads don't share a buffer
+   * @param objectIndex the index of the object in the object buffer
+   * @param objectBuffer the bindless slot of the object buffer
+   */
+  public void pushDraw(VkCommandBuffer cmd, int objectIndex, int objectBuffer){
+    var stack = MemoryStack.stackGet();
+    var frame = stack.getPointer();
+
+    var address = stack.nmalloc(Integer.BYTES, PUSH_CONSTANT_SIZE); //no buffer object, just the address
+    MemoryUtil.memPutInt(address, objectIndex);
+    MemoryUtil.memPutInt(address + Integer.BYTES, objectBuffer);
+    nvkCmdPushConstants(cmd, pipelineLayout, STAGES, 0, PUSH_CONSTANT_SIZE, address);
+
+    stack.setPointer(frame);
+    pushedConstants.increment();
+  }
+
+  public BindlessTable table()         { return table;          }
+  public long          pipelineLayout(){ return pipelineLayout; }
+
+  public long binds()          { return binds.sum();           }
+  public long pushes()         { return pushes.sum();          }
+  public long pushedConstants(){ return pushedConstants.sum(); }
+  public long updates()        { return updates + table.updates(); }
+
+  /**
+   * @return e.g. "1 sets in 1 pools"
+   */
+  public String poolSummary(){
+    return allocator.setsAllocated() + " sets in " + allocator.pools() + " pools";
+  }
+
+  private static void check(int result, String what){
+    if(result != VK_SUCCESS) throw new RuntimeException("Descriptor system: " + what + " failed with " + result);
+  }
+
+  /**
+   * The device must be idle
+   */
+  public void dispose(){
+    vkDestroyPipelineLayout(device, pipelineLayout, null);
+    vkDestroyDescriptorSetLayout(device, materialLayout, null);
+    vkDestroyDescriptorSetLayout(device, frameLayout, null);
+    allocator.dispose();
+    table.dispose();
+
+    for(var buffer : materialBuffers) memory.destroyBuffer(buffer);
+    for(var set : materialSets) MemoryUtil.memFree(set);
+    if(pushDescriptors){
+      for(var write : frameWrites){
+        write.pBufferInfo().free();
+        write.free();
+      }
+    }else{
+      MemoryUtil.memFree(frameSet);
+      for(var offset : frameOffsets) MemoryUtil.memFree(offset);
+    }
+    MemoryUtil.memFree(globalSet);
+  }
+}
@@ -0,0 +1,152 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceIDProperties;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties2;
+
+/**
+ * Remembers which physical device was chosen and why, so the next start can skip scoring every device.
+ *
+ * Devices are identified by their deviceUUID and driver version, both of which only take a vkGetPhysicalDeviceProperties2 call per device.
+ * The entry is only valid for the exact set of devices it was chosen from: a device added, removed or updated to another driver changes the
+ * fingerprint and forces a full scan. It is also bound to the selection setup (headless, required extensions), as those change the scores.
+ * The queue family mapping and the score are stored, everything depending on the surface has to be queried again.
+ */
+public class DeviceSelectionCache {
+
+  /**
+   * What identifies a device across restarts
+   */
+  public static record Identity(String uuid, int vendorID, int deviceID, int driverVersion){
+    public String key(){
+      return String.format("%04x:%04x:%s:%08x", vendorID, deviceID, uuid, driverVersion);
+    }
+  }
+
+  /**
+   * @param present the present family, -1 if there is none (headless)
+   */
+  public static record Entry(String fingerprint, String setup, String device, String deviceName, int score, int graphics, int present, int compute, int transfer){}
+
+  private Path file;
+
+  public DeviceSelectionCache(Path path){
+    file = path;
+  }
+
+  public static Identity identify(VkPhysicalDevice someDevice){
+    try(var stack = MemoryStack.stackPush()){
+      var ids = VkPhysicalDeviceIDProperties.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_ID_PROPERTIES);
+
+      var properties = VkPhysicalDeviceProperties2.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_PROPERTIES_2)
+        .pNext(ids.address());
+
+      vkGetPhysicalDeviceProperties2(someDevice, properties);
+
+      var uuid = new StringBuilder();
+      for(int i = 0; i < VK_UUID_SIZE; i++) uuid.append(String.format("%02x", ids.deviceUUID(i)));
+
+      var core = properties.properties();
+      return new Identity(uuid.toString(), core.vendorID(), core.deviceID(), core.driverVersion());
+    }
+  }
+
+  /**
+   * @return a key for the set of devices, independent of the order they were enumerated in
+   */
+  public static String fingerprint(List<Identity> devices){
+    var keys = new ArrayList<String>();
+    for(var device : devices) keys.add(device.key());
+    keys.sort(null);
+    return String.join(",", keys);
+  }
+
+  /**
+   * @return the entry chosen from exactly these devices with this setup, or null if there is none
+   */
+  public Entry lookup(List<Identity> devices, String setup){
+    if(!Files.exists(file)) return null;
+
+    var properties = new Properties();
+    try{
+      properties.load(new StringReader(Files.readString(file)));
+    }catch(IOException | IllegalArgumentException x){
+      System.out.println("Failed to read device selection cache " + file + ": " + x.getMessage());
+      return null;
+    }
+
+    Entry entry;
+    try{
+      entry = new Entry(
+        properties.getProperty("fingerprint", ""),
+        properties.getProperty("setup", ""),
+        properties.getProperty("device", ""),
+        properties.getProperty("deviceName", ""),
+        Integer.parseInt(properties.getProperty("score")),
+        Integer.parseInt(properties.getProperty("graphics")),
+        Integer.parseInt(properties.getProperty("present")),
+        Integer.parseInt(properties.getProperty("compute")),
+        Integer.parseInt(properties.getProperty("transfer")));
+    }catch(NumberFormatException x){
+      return discard("malformed entry");
+    }
+
+    if(!entry.setup.equals(setup))                        return discard("written for a different setup");
+    if(!entry.fingerprint.equals(fingerprint(devices)))   return discard("devices or drivers changed");
+
+    return entry;
+  }
+
+  private Entry discard(String reason){
+    System.out.println("Ignoring device selection cache " + file + ": " + reason);
+    return null;
+  }
+
+  /**
+   * Replaces the stored entry. A failure only costs the next start its fast path
+   */
+  public void store(Entry entry){
+    var properties = new Properties();
+    properties.setProperty("fingerprint", entry.fingerprint);
+    properties.setProperty("setup",       entry.setup);
+    properties.setProperty("device",      entry.device);
+    properties.setProperty("deviceName",  entry.deviceName);
+    properties.setProperty("score",       Integer.toString(entry.score));
+    properties.setProperty("graphics",    Integer.toString(entry.graphics));
+    properties.setProperty("present",     Integer.toString(entry.present));
+    properties.setProperty("compute",     Integer.toString(entry.compute));
+    properties.setProperty("transfer",    Integer.toString(entry.transfer));
+
+    var text = new StringWriter();
+    try{
+      properties.store(text, "physical device selection");
+    }catch(IOException x){
+      throw new RuntimeException(x); //a StringWriter doesn't throw
+    }
+
+    var bytes = text.toString().getBytes(StandardCharsets.ISO_8859_1); //Properties escapes everything outside latin-1
+    var data  = MemoryUtil.memAlloc(bytes.length);
+    try{
+      data.put(bytes).flip();
+      FileUtil.writeAtomic(file, data);
+    }catch(IOException x){
+      System.out.println("Failed to write device selection cache " + file + ": " + x.getMessage());
+    }finally{
+      MemoryUtil.memFree(data);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public final class FileUtil {
+
+  private FileUtil(){}
+
+  /**
+   * Writes the buffer next to the target and then moves it into place atomically, so readers (or a crashed process) never see a partially written file
+   * @param target the file to replace. Its directory is created if necessary
+   * @param data the bytes from position to limit. The position is not changed
+   */
+  public static void writeAtomic(Path target, ByteBuffer data) throws IOException {
+    var dir = target.toAbsolutePath().getParent();
+    Files.createDirectories(dir);
+
+    var tmp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+    try{
+      try(var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)){
+        var src = data.duplicate();
+        while(src.hasRemaining()) channel.write(src);
+        channel.force(true); //the rename must not become visible before the content
+      }
+
+      Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }finally{
+      Files.deleteIfExists(tmp); //only still there if something went wrong
+    }
+  }
+}
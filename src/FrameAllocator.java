@@ -0,0 +1,111 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * Streams per frame data (camera, lighting, line data, ...) to shaders. One persistently mapped uniform buffer is split into a region per
+ * frame slot, and every allocation just bumps the slot's head, so there are no per draw buffers and nothing to free.
+ * A region is reset with {@link #begin(int)} once the slot's previous frame finished, as the device is done reading it by then.
+ *
+ * Allocating is lock free, so recording threads can allocate from the same slot concurrently. Allocations are aligned to
+ * minUniformBufferOffsetAlignment, so any offset can be bound as a dynamic offset or written into a descriptor.
+ */
+public class FrameAllocator {
+
+  private GpuMemory        memory;
+  private GpuMemory.Buffer buffer;
+  private long             slotSize;
+  private long             alignment;
+
+  private AtomicLong[] heads;
+  private long         highWater; //most bytes a slot used in one frame, only updated by begin
+
+  /**
+   * @param dev the logical device, for the alignment limit
+   * @param gpuMemory the memory the buffer is allocated from
+   * @param slots the amount of frames in flight
+   * @param bytesPerSlot how much a single frame may allocate
+   */
+  public FrameAllocator(VkDevice dev, GpuMemory gpuMemory, int slots, long bytesPerSlot){
+    memory = gpuMemory;
+
+    try(var stack = MemoryStack.stackPush()){
+      var properties = VkPhysicalDeviceProperties.calloc(stack);
+      vkGetPhysicalDeviceProperties(dev.getPhysicalDevice(), properties);
+      alignment = Math.max(16, properties.limits().minUniformBufferOffsetAlignment()); //std140 vec4 alignment at least
+    }
+
+    slotSize = align(bytesPerSlot);
+    if(slotSize * slots > Integer.MAX_VALUE) throw new RuntimeException("Frame allocator: " + slots + " slots of " + slotSize + " bytes exceed the dynamic offset range");
+
+    buffer = memory.createBuffer(GpuMemory.Usage.UNIFORM, slotSize * slots);
+    heads  = new AtomicLong[slots];
+    for(int i = 0; i < slots; i++) heads[i] = new AtomicLong();
+  }
+
+  private long align(long size){
+    return (size + alignment - 1) / alignment * alignment;
+  }
+
+  /**
+   * Frees everything the slot allocated in its previous frame. That frame must have finished
+   */
+  public void begin(int slot){
+    highWater = Math.max(highWater, heads[slot].get());
+    heads[slot].set(0);
+  }
+
+  /**
+   * Reserves space in the slot's region. Can be called from any thread
+   * @param size the size in bytes
+   * @return the offset of the allocation in {@link #buffer()}. Write to it through {@link #address(int)}
+   */
+  public int allocate(int slot, long size){
+    var aligned = align(size);
+    var head = heads[slot].getAndAdd(aligned);
+    if(head + aligned > slotSize) throw new RuntimeException("Frame allocator: slot " + slot + " is full, " + slotSize + " bytes per frame");
+    return (int)(slot * slotSize + head);
+  }
+
+  /**
+   * Allocates in the slot's region and copies the data into it
+   * @param data the bytes between position and limit are copied
+   * @return the offset of the copy in {@link #buffer()}
+   */
+  public int write(int slot, ByteBuffer data){
+    var offset = allocate(slot, data.remaining());
+    MemoryUtil.memCopy(MemoryUtil.memAddress(data), address(offset), data.remaining());
+    return offset;
+  }
+
+  /**
+   * @return the host address of an offset returned by {@link #allocate(int, long)}
+   */
+  public long address(int offset){
+    return buffer.mapped() + offset;
+  }
+
+  /**
+   * Makes the slot's allocations visible to the device. Called once before the slot's cmdBuffer is submitted, a no-op on coherent memory
+   */
+  public void flush(int slot){
+    var used = Math.min(heads[slot].get(), slotSize);
+    if(used > 0) memory.flush(buffer, slot * slotSize, used);
+  }
+
+  public GpuMemory.Buffer buffer()   { return buffer;    }
+  public long             slotSize() { return slotSize;  }
+  public long             highWater(){ return highWater; }
+
+  /**
+   * The device must no longer use the buffer
+   */
+  public void dispose(){
+    memory.destroyBuffer(buffer);
+  }
+}
@@ -0,0 +1,147 @@
+import static org.lwjgl.vulkan.KHRSurface.*;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides how frames are queued and paced, and measures the latency that results from it.
+ *
+ * A {@link Policy} picks the present mode, the number of frames in flight and the swapchain length, and when input is sampled:
+ * at the top of the loop, or just before the frame is recorded. The power capped policy also sleeps to hold a target frame rate.
+ *
+ * Per frame the time from the input sample to the submit and to the present is recorded. The present time is when vkQueuePresentKHR returned,
+ * i.e. the frame was handed to the presentation engine. What the display adds on top depends on the present mode and isn't observable without
+ * a present timing extension. Recording a frame doesn't allocate. Not thread safe, all calls come from the render thread.
+ */
+public class FramePacer {
+
+  public enum Policy {
+    /** Keeps the gpu fed: a deep frame queue, input sampled at the top of the loop. Tearing free if possible, without blocking on vsync */
+    THROUGHPUT,
+    /** The shortest queue, input sampled right before recording and a present mode that doesn't hold finished frames back */
+    LOW_LATENCY,
+    /** Vsync and a frame rate cap, the host sleeps instead of running ahead */
+    POWER_CAPPED
+  }
+
+  private Policy policy;
+  private long   frameInterval; //ns between frames with POWER_CAPPED, 0 otherwise
+  private long   nextDeadline;
+  private long   sleptNanos;
+
+  private long inputTime;
+  private RollingStats inputToSubmit;
+  private RollingStats inputToPresent;
+
+  /**
+   * @param pacingPolicy the policy
+   * @param targetFps the frame rate cap of POWER_CAPPED, ignored by the other policies
+   */
+  public FramePacer(Policy pacingPolicy, int targetFps){
+    if(pacingPolicy == Policy.POWER_CAPPED && targetFps <= 0) throw new IllegalArgumentException("Power capped pacing needs a target frame rate, got " + targetFps);
+
+    policy        = pacingPolicy;
+    frameInterval = policy == Policy.POWER_CAPPED ? 1_000_000_000L / targetFps : 0;
+
+    inputToSubmit  = new RollingStats(4096);
+    inputToPresent = new RollingStats(4096);
+  }
+
+  /**
+   * @param supported the present modes of the surface
+   * @return the first supported mode of the policy's preference, or the first supported one
+   */
+  public int choosePresentMode(int[] supported){
+    var preference = switch(policy){
+      //mailbox replaces queued frames instead of blocking, relaxed fifo at least doesn't wait for the next vblank when a frame is late
+      case THROUGHPUT   -> new int[]{VK_PRESENT_MODE_MAILBOX_KHR, VK_PRESENT_MODE_FIFO_RELAXED_KHR, VK_PRESENT_MODE_FIFO_KHR};
+      //the newest frame is shown at the next vblank (mailbox) or right away (immediate, tears). Fifo would queue up to a full chain of old frames
+      case LOW_LATENCY  -> new int[]{VK_PRESENT_MODE_MAILBOX_KHR, VK_PRESENT_MODE_IMMEDIATE_KHR, VK_PRESENT_MODE_FIFO_RELAXED_KHR, VK_PRESENT_MODE_FIFO_KHR};
+      //fifo never renders frames that are never shown
+      case POWER_CAPPED -> new int[]{VK_PRESENT_MODE_FIFO_KHR, VK_PRESENT_MODE_FIFO_RELAXED_KHR};
+    };
+
+    for(var mode : preference){
+      for(var available : supported) if(available == mode) return mode;
+    }
+    return supported[0]; //fifo is always supported, so this is only reached by odd drivers
+  }
+
+  /**
+   * @param requested the frames in flight asked for by the application
+   * @return the frames in flight of the policy, within [min, max]
+   */
+  public int framesInFlight(int requested, int min, int max){
+    return switch(policy){
+      case THROUGHPUT   -> Math.min(max, Math.max(requested, 3)); //the host records two frames ahead, so a slow frame doesn't starve the gpu
+      case LOW_LATENCY  -> min;
+      case POWER_CAPPED -> min; //the cap keeps the queue empty anyway
+    };
+  }
+
+  /**
+   * @param minImages the minImageCount of the surface
+   * @param maxImages the maxImageCount of the surface, 0 for no limit
+   * @return the swapchain length to request
+   */
+  public int swapchainLength(int minImages, int maxImages){
+    var length = policy == Policy.LOW_LATENCY ? minImages : minImages + 1; //every image more is a frame that may wait for the display
+    return maxImages != 0 ? Math.min(maxImages, length) : length;
+  }
+
+  /**
+   * @return whether input is sampled right before recording instead of at the top of the loop
+   */
+  public boolean samplesLate(){
+    return policy == Policy.LOW_LATENCY;
+  }
+
+  /**
+   * Sleeps until the next frame is due. Only POWER_CAPPED sleeps, a frame that is late starts right away and the schedule is not made up for
+   */
+  public void pace(){
+    if(frameInterval == 0) return;
+
+    var now = System.nanoTime();
+    nextDeadline = Math.max(nextDeadline + frameInterval, now);
+
+    //parking may return early, so it's repeated until the deadline
+    for(var remaining = nextDeadline - now; remaining > 0; remaining = nextDeadline - System.nanoTime()) LockSupport.parkNanos(remaining);
+    sleptNanos += System.nanoTime() - now;
+  }
+
+  /**
+   * The input of the frame being recorded was just sampled
+   */
+  public void inputSampled(){
+    inputTime = System.nanoTime();
+  }
+
+  /**
+   * The frame was submitted to the graphics queue
+   */
+  public void submitted(){
+    inputToSubmit.add(System.nanoTime() - inputTime);
+  }
+
+  /**
+   * vkQueuePresentKHR returned for the frame
+   */
+  public void presented(){
+    inputToPresent.add(System.nanoTime() - inputTime);
+  }
+
+  public Policy       policy()        { return policy;         }
+  public RollingStats inputToSubmit() { return inputToSubmit;  }
+  public RollingStats inputToPresent(){ return inputToPresent; }
+  public long         sleptNanos()    { return sleptNanos;     }
+
+  public static String presentModeName(int mode){
+    return switch(mode){
+      case VK_PRESENT_MODE_IMMEDIATE_KHR    -> "immediate";
+      case VK_PRESENT_MODE_MAILBOX_KHR      -> "mailbox";
+      case VK_PRESENT_MODE_FIFO_KHR         -> "fifo";
+      case VK_PRESENT_MODE_FIFO_RELAXED_KHR -> "fifo relaxed";
+      default                               -> "mode " + mode;
+    };
+  }
+}
@@ -0,0 +1,343 @@
+import static org.lwjgl.vulkan.VK13.*;
+import static org.lwjgl.vulkan.KHRSwapchain.*;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * All the info structs the frame loop hands to vulkan, built once and only patched in place afterwards.
+ * Building them per frame (even on the MemoryStack) creates java wrapper objects and buffers every frame, which is exactly the garbage the loop should not produce.
+ * Everything here lives in malloc'd memory and must be released with {@link #free()}.
+ */
+final class FrameStructs {
+
+  //single element arrays the structs point into. Patching their content is enough, the structs keep pointing at the same addresses
+  private final IntBuffer     imageIndex;
+  private final LongBuffer    waitSemaphore; //acquire semaphore, and optionally the compute timeline
+  private final LongBuffer    waitValue;     //ignored for the binary acquire semaphore
+  private final IntBuffer     waitStage;
+  private final LongBuffer    computeSemaphore; //the only wait of an offscreen submit
+  private final LongBuffer    computeValue;
+  private final IntBuffer     computeStage;
+  private final PointerBuffer cmdBuffer;
+  private final LongBuffer    signalSemaphore; //render finished semaphore and the graphics timeline
+  private final LongBuffer    signalValue;
+  private final LongBuffer    timelineSemaphore; //the only signal of an offscreen submit
+  private final LongBuffer    timelineValue;
+  private final LongBuffer    presentWait;
+  private final LongBuffer    swapChain;
+  private final IntBuffer     presentIndex;
+
+  //binary and timeline semaphores mix in one submit, the values of the binary ones are ignored
+  private final VkTimelineSemaphoreSubmitInfo timelineInfo;
+  private final VkTimelineSemaphoreSubmitInfo offscreenTimelineInfo;
+  private final VkSubmitInfo      submitInfo;
+  private final VkSubmitInfo      offscreenSubmitInfo; //no binary semaphores, there is nothing to acquire or present
+  private final VkPresentInfoKHR  presentInfo;
+
+  private final VkCommandBufferBeginInfo cmdBeginInfo;
+  private final VkClearValue.Buffer      clearValues;
+  private final VkRenderPassBeginInfo    passBeginInfo;
+  private final VkViewport.Buffer        viewports;
+  private final VkRect2D.Buffer          scissors;
+
+  //dynamic rendering: no render pass, so the attachment and its layout transitions are spelled out
+  private final VkRenderingAttachmentInfo.Buffer colorAttachment;
+  private final VkRenderingInfo                  renderingInfo;
+  private final VkImageMemoryBarrier.Buffer      toAttachment;
+  private final VkImageMemoryBarrier.Buffer      toFinal;
+
+  //headless readback
+  private final VkMemoryBarrier.Buffer   toTransfer;
+  private final VkBufferImageCopy.Buffer readbackRegion;
+  private final VkMemoryBarrier.Buffer   toHost;
+
+  /**
+   * @param renderPass the render pass of the legacy path, VK_NULL_HANDLE with dynamic rendering
+   * @param finalLayout the layout the target ends up in with dynamic rendering, i.e. what the render pass' finalLayout would be
+   */
+  FrameStructs(long renderPass, int finalLayout){
+    imageIndex      = MemoryUtil.memCallocInt(1);
+    waitSemaphore   = MemoryUtil.memCallocLong(2);
+    waitValue       = MemoryUtil.memCallocLong(2);
+    waitStage       = MemoryUtil.memCallocInt(2).put(0, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT); //the semaphore wait isn't binary, but can be for certain stages. Currently the img just have to be ready to be an color attachment
+    waitStage.put(1, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT); //compute results are only needed once they are read as vertices, everything before overlaps the dispatches
+    computeSemaphore = MemoryUtil.memCallocLong(1);
+    computeValue     = MemoryUtil.memCallocLong(1);
+    computeStage     = MemoryUtil.memCallocInt(1).put(0, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT);
+    cmdBuffer       = MemoryUtil.memCallocPointer(1);
+    signalSemaphore = MemoryUtil.memCallocLong(2);
+    signalValue     = MemoryUtil.memCallocLong(2);
+    timelineSemaphore = MemoryUtil.memCallocLong(1);
+    timelineValue     = MemoryUtil.memCallocLong(1);
+    presentWait     = MemoryUtil.memCallocLong(1);
+    swapChain       = MemoryUtil.memCallocLong(1);
+    presentIndex    = MemoryUtil.memCallocInt(1);
+
+    timelineInfo = VkTimelineSemaphoreSubmitInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_TIMELINE_SEMAPHORE_SUBMIT_INFO)
+      .pWaitSemaphoreValues(waitValue)
+      .pSignalSemaphoreValues(signalValue)
+      .signalSemaphoreValueCount(2); //set explicitly, the counts are separate fields. The wait count is patched per submit
+
+    offscreenTimelineInfo = VkTimelineSemaphoreSubmitInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_TIMELINE_SEMAPHORE_SUBMIT_INFO)
+      .pWaitSemaphoreValues(computeValue)
+      .pSignalSemaphoreValues(timelineValue)
+      .signalSemaphoreValueCount(1);
+
+    submitInfo = VkSubmitInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+      .pNext(timelineInfo)
+      .waitSemaphoreCount(1)             //mind the lwjgl API inconsistency
+      .pWaitSemaphores(waitSemaphore)    //wait (after then reset) on the following semaphores (which will be when the swapchain says its no longer needed)
+      .pWaitDstStageMask(waitStage)
+      .pCommandBuffers(cmdBuffer)
+      .pSignalSemaphores(signalSemaphore); //semaphores to signal
+
+    offscreenSubmitInfo = VkSubmitInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+      .pNext(offscreenTimelineInfo)
+      .pWaitSemaphores(computeSemaphore)
+      .pWaitDstStageMask(computeStage)
+      .pCommandBuffers(cmdBuffer)
+      .pSignalSemaphores(timelineSemaphore);
+
+    presentInfo = VkPresentInfoKHR.calloc()
+      .sType(VK_STRUCTURE_TYPE_PRESENT_INFO_KHR)
+      .pWaitSemaphores(presentWait) //wait on the binary semaphore the submit signals before presenting, the present engine can't wait on timelines
+      .swapchainCount(1)                //mind the lwjgl API inconsistency
+      .pSwapchains(swapChain)           //the chain to present to
+      .pImageIndices(presentIndex);     //the index in the chain to present
+
+    /* possible flags:
+      VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT:      The command buffer will be rerecorded right after executing it once.
+      VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT: This is a secondary command buffer that will be entirely within a single render pass.
+      VK_COMMAND_BUFFER_USAGE_SIMULTANEOUS_USE_BIT:     The command buffer can be resubmitted while it is also already pending execution.
+    */
+    cmdBeginInfo = VkCommandBufferBeginInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+      .flags(0)
+      .pInheritanceInfo(null);
+
+    clearValues = VkClearValue.calloc(1); //calloc'd, so the clear color is already 0
+
+    passBeginInfo = VkRenderPassBeginInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO)
+      .renderPass(renderPass)
+      .pClearValues(clearValues);
+
+    //use the dx way of mapping depth
+    viewports = VkViewport.calloc(1)
+      .x(0)
+      .y(9)
+      .minDepth(1)
+      .maxDepth(0);
+
+    scissors = VkRect2D.calloc(1);
+
+    colorAttachment = VkRenderingAttachmentInfo.calloc(1)
+      .sType(VK_STRUCTURE_TYPE_RENDERING_ATTACHMENT_INFO)
+      .imageLayout(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL)
+      .resolveMode(VK_RESOLVE_MODE_NONE)
+      .loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR)
+      .storeOp(VK_ATTACHMENT_STORE_OP_STORE); //the clear value is calloc'd to 0, like clearValues
+
+    renderingInfo = VkRenderingInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_RENDERING_INFO)
+      .layerCount(1)
+      .viewMask(0)
+      .pColorAttachments(colorAttachment);
+
+    //what the render pass did implicitly: the external subpass dependency, and the transition from UNDEFINED (the content is cleared anyway)
+    toAttachment = VkImageMemoryBarrier.calloc(1)
+      .sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+      .srcAccessMask(0)
+      .dstAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT)
+      .oldLayout(VK_IMAGE_LAYOUT_UNDEFINED)
+      .newLayout(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL)
+      .srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+      .dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+    toAttachment.subresourceRange().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).levelCount(1).layerCount(1);
+
+    toFinal = VkImageMemoryBarrier.calloc(1)
+      .sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+      .srcAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT)
+      .dstAccessMask(finalLayout == VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL ? VK_ACCESS_TRANSFER_READ_BIT : 0) //presenting needs no access, the semaphore makes the writes available
+      .oldLayout(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL)
+      .newLayout(finalLayout)
+      .srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+      .dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+    toFinal.subresourceRange().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).levelCount(1).layerCount(1);
+
+    //the render pass only guarantees the layout transition, not that the color writes are visible to the transfer
+    toTransfer = VkMemoryBarrier.calloc(1)
+      .sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+      .srcAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT)
+      .dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT);
+
+    readbackRegion = VkBufferImageCopy.calloc(1)
+      .bufferOffset(0)
+      .bufferRowLength(0)   //0 means tightly packed
+      .bufferImageHeight(0);
+    readbackRegion.imageSubresource().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).mipLevel(0).baseArrayLayer(0).layerCount(1);
+
+    //makes the copy visible to host reads once the timeline reached the frame
+    toHost = VkMemoryBarrier.calloc(1)
+      .sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+      .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+      .dstAccessMask(VK_ACCESS_HOST_READ_BIT);
+  }
+
+  /**
+   * Patches everything that depends on the swapchain configuration. Called once the swapchain (or the offscreen targets) exist, and after every recreation
+   * @param extent the size of the render targets
+   * @param chain the swapchain handle, VK_NULL_HANDLE when headless
+   */
+  void setTarget(VkExtent2D extent, long chain){
+    swapChain.put(0, chain);
+
+    passBeginInfo.renderArea().offset().set(0, 0);
+    passBeginInfo.renderArea().extent().set(extent);
+
+    viewports.get(0)
+      .width(extent.width())
+      .height(extent.height());
+
+    scissors.get(0).offset().set(0, 0);
+    scissors.get(0).extent().set(extent);
+
+    renderingInfo.renderArea().offset().set(0, 0);
+    renderingInfo.renderArea().extent().set(extent);
+
+    readbackRegion.imageExtent().set(extent.width(), extent.height(), 1);
+  }
+
+  IntBuffer imageIndex(){
+    return imageIndex;
+  }
+
+  /**
+   * @param waitSem the binary acquire semaphore
+   * @param computeTimeline the timeline of the async compute queue, VK_NULL_HANDLE if the frame has no compute work
+   * @param computeValue the value the frame's compute submit signals
+   * @param signalSem the binary render finished semaphore, waited on by the present
+   * @param timeline the graphics timeline
+   * @param frameValue the value the submit signals on the graphics timeline
+   */
+  VkSubmitInfo submit(long waitSem, long computeTimeline, long computeValue, VkCommandBuffer cmd, long signalSem, long timeline, long frameValue){
+    var waits = computeTimeline != VK_NULL_HANDLE ? 2 : 1;
+    waitSemaphore.put(0, waitSem);
+    waitSemaphore.put(1, computeTimeline);
+    waitValue.put(1, computeValue);
+    cmdBuffer.put(0, cmd);
+    signalSemaphore.put(0, signalSem);
+    signalSemaphore.put(1, timeline);
+    signalValue.put(1, frameValue);
+    presentWait.put(0, signalSem);
+    timelineInfo.waitSemaphoreValueCount(waits); //has to match the submit's count
+    return submitInfo.waitSemaphoreCount(waits);
+  }
+
+  VkSubmitInfo submitOffscreen(long computeTimeline, long computeWait, VkCommandBuffer cmd, long timeline, long frameValue){
+    var waits = computeTimeline != VK_NULL_HANDLE ? 1 : 0;
+    computeSemaphore.put(0, computeTimeline);
+    computeValue.put(0, computeWait);
+    cmdBuffer.put(0, cmd);
+    timelineSemaphore.put(0, timeline);
+    timelineValue.put(0, frameValue);
+    offscreenTimelineInfo.waitSemaphoreValueCount(waits);
+    return offscreenSubmitInfo.waitSemaphoreCount(waits);
+  }
+
+  //presents with the semaphore of the last submit
+  VkPresentInfoKHR present(int index){
+    presentIndex.put(0, index);
+    return presentInfo;
+  }
+
+  VkCommandBufferBeginInfo cmdBegin(){
+    return cmdBeginInfo;
+  }
+
+  VkRenderPassBeginInfo passBegin(long framebuffer){
+    return passBeginInfo.framebuffer(framebuffer);
+  }
+
+  /**
+   * @param view the view of the target image
+   * @param flags VK_RENDERING_CONTENTS_SECONDARY_COMMAND_BUFFERS_BIT if the draws are recorded into secondaries, otherwise 0
+   */
+  VkRenderingInfo renderingBegin(long view, int flags){
+    colorAttachment.get(0).imageView(view);
+    return renderingInfo.flags(flags);
+  }
+
+  VkImageMemoryBarrier.Buffer toAttachment(long image){
+    return toAttachment.image(image);
+  }
+
+  VkImageMemoryBarrier.Buffer toFinal(long image){
+    return toFinal.image(image);
+  }
+
+  VkViewport.Buffer viewports(){
+    return viewports;
+  }
+
+  VkRect2D.Buffer scissors(){
+    return scissors;
+  }
+
+  VkMemoryBarrier.Buffer toTransfer(){
+    return toTransfer;
+  }
+
+  VkBufferImageCopy.Buffer readbackRegion(){
+    return readbackRegion;
+  }
+
+  VkMemoryBarrier.Buffer toHost(){
+    return toHost;
+  }
+
+  void free(){
+    MemoryUtil.memFree(imageIndex);
+    MemoryUtil.memFree(waitSemaphore);
+    MemoryUtil.memFree(waitValue);
+    MemoryUtil.memFree(waitStage);
+    MemoryUtil.memFree(computeSemaphore);
+    MemoryUtil.memFree(computeValue);
+    MemoryUtil.memFree(computeStage);
+    MemoryUtil.memFree(cmdBuffer);
+    MemoryUtil.memFree(signalSemaphore);
+    MemoryUtil.memFree(signalValue);
+    MemoryUtil.memFree(timelineSemaphore);
+    MemoryUtil.memFree(timelineValue);
+    MemoryUtil.memFree(presentWait);
+    MemoryUtil.memFree(swapChain);
+    MemoryUtil.memFree(presentIndex);
+
+    timelineInfo.free();
+    offscreenTimelineInfo.free();
+    submitInfo.free();
+    offscreenSubmitInfo.free();
+    presentInfo.free();
+    cmdBeginInfo.free();
+    clearValues.free();
+    passBeginInfo.free();
+    viewports.free();
+    scissors.free();
+    colorAttachment.free();
+    renderingInfo.free();
+    toAttachment.free();
+    toFinal.free();
+    toTransfer.free();
+    readbackRegion.free();
+    toHost.free();
+  }
+}
@@ -0,0 +1,267 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * GPU-driven drawing: a compute shader (cull.csh) tests every object's bounds against the view and compacts the visible ones into indirect
+ * draw commands, which are drawn with vkCmdDrawIndexedIndirectCount. The host records the same few commands no matter how many objects there are.
+ *
+ * Objects are described by draw records in a storage buffer, written once at load time, and placed by their instance in the
+ * {@link SceneBuffer}, which may change every frame. Objects are sorted into buckets (e.g. by material),
+ * every bucket has its own command range and count, so state can change between the buckets' draws. Every frame slot owns its command and
+ * count buffers, so a frame never overwrites commands an earlier frame still draws.
+ */
+public class GpuCulling {
+
+  //struct DrawRecord in cull.csh: uint indexCount, uint firstIndex, int vertexOffset, uint bucket, vec4 bounds (in object space)
+  public static final int RECORD_SIZE  = 8 * Integer.BYTES;
+  //VkDrawIndexedIndirectCommand
+  public static final int COMMAND_SIZE = 5 * Integer.BYTES;
+  public static final int MAX_BUCKETS  = 8;
+
+  private static final int WORKGROUP_SIZE     = 256;
+  private static final int PUSH_CONSTANT_SIZE = (4 + 1 + MAX_BUCKETS) * Integer.BYTES; //vec4 view, uint objectCount, uint bucketBase[]
+
+  private VkDevice device;
+  private int      objectCount;
+  private int      slots;
+  private int[]    bucketBase;
+  private int[]    bucketSize;
+
+  private GpuMemory          memory;
+  private GpuMemory.Buffer[] commands;
+  private GpuMemory.Buffer[] counts;
+
+  private long   descriptorSetLayout;
+  private long   descriptorPool;
+  private long[] descriptorSets;
+  private long   pipelineLayout;
+  private long   pipeline;
+
+  //preallocated, so recording doesn't allocate
+  private ByteBuffer             pushConstants;
+  private VkMemoryBarrier.Buffer clearBarrier;
+  private VkMemoryBarrier.Buffer commandBarrier;
+  private LongBuffer[]           bindSets;
+
+  /**
+   * Writes a draw record, see cull.csh
+   * @param records the buffer to put it at the position of
+   * @param bucket the index of the bucket the object is drawn in
+   * @param x the x of the bounding circle's center, in object space
+   * @param y the y of the bounding circle's center, in object space
+   * @param radius the radius of the bounding circle, in object space
+   */
+  public static void putRecord(ByteBuffer records, int indexCount, int firstIndex, int vertexOffset, int bucket, float x, float y, float radius){
+    records.putInt(indexCount).putInt(firstIndex).putInt(vertexOffset).putInt(bucket);
+    records.putFloat(x).putFloat(y).putFloat(radius).putFloat(0);
+  }
+
+  /**
+   * @param dev the logical device, with multiDrawIndirect, drawIndirectFirstInstance and drawIndirectCount enabled
+   * @param gpuMemory the memory the command and count buffers are allocated from
+   * @param computeModule the module of cull.csh, only needed during construction
+   * @param pipelineCache the cache to create the compute pipeline with, or NULL
+   * @param records the draw records, uploaded and owned by the caller
+   * @param instances the instance buffer of the scene, record i is placed by instance i
+   * @param bucketSizes the number of objects in every bucket. The records of a bucket don't have to be contiguous
+   * @param frameSlots the amount of frames in flight
+   */
+  public GpuCulling(VkDevice dev, GpuMemory gpuMemory, long computeModule, long pipelineCache, GpuMemory.Buffer records, GpuMemory.Buffer instances, int[] bucketSizes, int frameSlots){
+    if(bucketSizes.length > MAX_BUCKETS) throw new RuntimeException("GPU culling: " + bucketSizes.length + " buckets, at most " + MAX_BUCKETS + " are supported");
+
+    device = dev;
+    memory = gpuMemory;
+    slots  = frameSlots;
+
+    bucketSize = bucketSizes.clone();
+    bucketBase = new int[bucketSize.length];
+    for(int i = 0; i < bucketSize.length; i++){
+      bucketBase[i] = objectCount;
+      objectCount  += bucketSize[i];
+    }
+
+    commands = new GpuMemory.Buffer[slots];
+    counts   = new GpuMemory.Buffer[slots];
+    for(int i = 0; i < slots; i++){
+      commands[i] = memory.createBuffer(GpuMemory.Usage.INDIRECT, (long)objectCount * COMMAND_SIZE);
+      counts[i]   = memory.createBuffer(GpuMemory.Usage.INDIRECT, MAX_BUCKETS * Integer.BYTES);
+    }
+
+    createDescriptors(records, instances);
+    createPipeline(computeModule, pipelineCache);
+
+    pushConstants = MemoryUtil.memCalloc(PUSH_CONSTANT_SIZE);
+    pushConstants.putInt(16, objectCount);
+    for(int i = 0; i < bucketBase.length; i++) pushConstants.putInt(20 + i * Integer.BYTES, bucketBase[i]);
+
+    clearBarrier = VkMemoryBarrier.calloc(1)
+      .sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+      .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+      .dstAccessMask(VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_SHADER_WRITE_BIT);
+    commandBarrier = VkMemoryBarrier.calloc(1)
+      .sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+      .srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT)
+      .dstAccessMask(VK_ACCESS_INDIRECT_COMMAND_READ_BIT);
+
+    bindSets = new LongBuffer[slots];
+    for(int i = 0; i < slots; i++) bindSets[i] = MemoryUtil.memAllocLong(1).put(0, descriptorSets[i]);
+
+    System.out.println("GPU culling: " + objectCount + " objects in " + bucketSize.length + " buckets");
+  }
+
+  private void createDescriptors(GpuMemory.Buffer records, GpuMemory.Buffer instances){
+    try(var stack = MemoryStack.stackPush()){
+      var bindings = VkDescriptorSetLayoutBinding.calloc(4, stack);
+      for(int i = 0; i < 4; i++){
+        bindings.get(i)
+          .binding(i)
+          .descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+          .descriptorCount(1)
+          .stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+      }
+
+      var layoutInfo = VkDescriptorSetLayoutCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO)
+        .pBindings(bindings);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreateDescriptorSetLayout(device, layoutInfo, null, ptr), "descriptor set layout");
+      descriptorSetLayout = ptr.get(0);
+
+      var poolSizes = VkDescriptorPoolSize.calloc(1, stack)
+        .type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+        .descriptorCount(4 * slots);
+
+      var poolInfo = VkDescriptorPoolCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+        .maxSets(slots)
+        .pPoolSizes(poolSizes);
+
+      check(vkCreateDescriptorPool(device, poolInfo, null, ptr), "descriptor pool");
+      descriptorPool = ptr.get(0);
+
+      var layouts = stack.mallocLong(slots);
+      for(int i = 0; i < slots; i++) layouts.put(i, descriptorSetLayout);
+
+      var allocInfo = VkDescriptorSetAllocateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+        .descriptorPool(descriptorPool)
+        .pSetLayouts(layouts);
+
+      var setPtr = stack.mallocLong(slots);
+      check(vkAllocateDescriptorSets(device, allocInfo, setPtr), "descriptor sets");
+      descriptorSets = new long[slots];
+      setPtr.get(descriptorSets);
+
+      var writes = VkWriteDescriptorSet.calloc(4 * slots, stack);
+      for(int i = 0; i < slots; i++){
+        long[] buffers = {records.handle(), commands[i].handle(), counts[i].handle(), instances.handle()};
+        for(int b = 0; b < 4; b++){
+          writes.get(4 * i + b)
+            .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+            .dstSet(descriptorSets[i])
+            .dstBinding(b)
+            .descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+            .descriptorCount(1)
+            .pBufferInfo(VkDescriptorBufferInfo.calloc(1, stack).buffer(buffers[b]).offset(0).range(VK_WHOLE_SIZE));
+        }
+      }
+      vkUpdateDescriptorSets(device, writes, null);
+    }
+  }
+
+  private void createPipeline(long computeModule, long pipelineCache){
+    try(var stack = MemoryStack.stackPush()){
+      var pushRange = VkPushConstantRange.calloc(1, stack)
+        .stageFlags(VK_SHADER_STAGE_COMPUTE_BIT)
+        .offset(0)
+        .size(PUSH_CONSTANT_SIZE);
+
+      var layoutInfo = VkPipelineLayoutCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO)
+        .pSetLayouts(stack.longs(descriptorSetLayout))
+        .pPushConstantRanges(pushRange);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreatePipelineLayout(device, layoutInfo, null, ptr), "pipeline layout");
+      pipelineLayout = ptr.get(0);
+
+      var stage = VkPipelineShaderStageCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
+        .stage(VK_SHADER_STAGE_COMPUTE_BIT)
+        .module(computeModule)
+        .pName(stack.UTF8("main"));
+
+      var createInfo = VkComputePipelineCreateInfo.calloc(1, stack)
+        .sType(VK_STRUCTURE_TYPE_COMPUTE_PIPELINE_CREATE_INFO)
+        .stage(stage)
+        .layout(pipelineLayout)
+        .basePipelineHandle(VK_NULL_HANDLE)
+        .basePipelineIndex(-1);
+
+      check(vkCreateComputePipelines(device, pipelineCache, createInfo, null, ptr), "compute pipeline");
+      pipeline = ptr.get(0);
+    }
+  }
+
+  /**
+   * Records the culling of all objects into the slot's commands. Has to be outside of a render pass, before the slot's {@link #draw(VkCommandBuffer, int, int)}
+   * @param cmd a cmdBuffer of the graphics family
+   * @param slot the frame slot index
+   * @param minX the visible rect, objects completely outside of it are culled
+   */
+  public void cull(VkCommandBuffer cmd, int slot, float minX, float minY, float maxX, float maxY){
+    //the slot's previous frame, which drew these commands, has finished. So only the clear has to be ordered before the dispatch
+    vkCmdFillBuffer(cmd, counts[slot].handle(), 0, VK_WHOLE_SIZE, 0);
+    vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, clearBarrier, null, null);
+
+    pushConstants.putFloat(0, minX).putFloat(4, minY).putFloat(8, maxX).putFloat(12, maxY);
+
+    vkCmdBindPipeline(cmd, VK_PIPELINE_BIND_POINT_COMPUTE, pipeline);
+    vkCmdBindDescriptorSets(cmd, VK_PIPELINE_BIND_POINT_COMPUTE, pipelineLayout, 0, bindSets[slot], null);
+    vkCmdPushConstants(cmd, pipelineLayout, VK_SHADER_STAGE_COMPUTE_BIT, 0, pushConstants);
+    vkCmdDispatch(cmd, (objectCount + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE, 1, 1);
+
+    vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT, 0, commandBarrier, null, null);
+  }
+
+  /**
+   * Records the draw of a bucket's visible objects. Needs a bound pipeline, and the mesh the records refer to bound
+   */
+  public void draw(VkCommandBuffer cmd, int slot, int bucket){
+    vkCmdDrawIndexedIndirectCount(cmd, commands[slot].handle(), (long)bucketBase[bucket] * COMMAND_SIZE, counts[slot].handle(), (long)bucket * Integer.BYTES, bucketSize[bucket], COMMAND_SIZE);
+  }
+
+  public int buckets()    { return bucketSize.length; }
+  public int objectCount(){ return objectCount;       }
+
+  private static void check(int result, String what){
+    if(result != VK_SUCCESS) throw new RuntimeException("GPU culling: " + what + " failed with " + result);
+  }
+
+  /**
+   * The device must be idle
+   */
+  public void dispose(){
+    vkDestroyPipeline(device, pipeline, null);
+    vkDestroyPipelineLayout(device, pipelineLayout, null);
+    vkDestroyDescriptorPool(device, descriptorPool, null); //frees the sets
+    vkDestroyDescriptorSetLayout(device, descriptorSetLayout, null);
+
+    for(int i = 0; i < slots; i++){
+      memory.destroyBuffer(commands[i]);
+      memory.destroyBuffer(counts[i]);
+      MemoryUtil.memFree(bindSets[i]);
+    }
+
+    MemoryUtil.memFree(pushConstants);
+    clearBarrier.free();
+    commandBarrier.free();
+  }
+}
@@ -0,0 +1,264 @@
+import static org.lwjgl.util.vma.Vma.*;
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.util.vma.VmaAllocationCreateInfo;
+import org.lwjgl.util.vma.VmaAllocationInfo;
+import org.lwjgl.util.vma.VmaAllocatorCreateInfo;
+import org.lwjgl.util.vma.VmaPoolCreateInfo;
+import org.lwjgl.util.vma.VmaPoolStats;
+import org.lwjgl.util.vma.VmaStats;
+import org.lwjgl.util.vma.VmaVulkanFunctions;
+import org.lwjgl.vulkan.VkBufferCreateInfo;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkInstance;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+
+/**
+ * Buffer memory on top of VMA. Every kind of buffer gets its own pool of large device memory blocks, which the buffers are sub-allocated from.
+ * So a new buffer costs a vkCreateBuffer and a bind, but (mostly) no vkAllocateMemory. The number of those is limited by the driver
+ * (maxMemoryAllocationCount, as low as 4096) and each one is slow.
+ */
+public class GpuMemory {
+
+  /**
+   * What a buffer is used for. Decides the pool, and with it the memory type
+   */
+  public enum Usage {
+    //device local, filled through a staging buffer
+    VERTEX (VK_BUFFER_USAGE_VERTEX_BUFFER_BIT  | VK_BUFFER_USAGE_TRANSFER_DST_BIT, false, 16L << 20),
+    INDEX  (VK_BUFFER_USAGE_INDEX_BUFFER_BIT   | VK_BUFFER_USAGE_TRANSFER_DST_BIT, false, 16L << 20),
+    //device local, written by shaders. Also usable as vertex input, e.g. for simulated particles
+    STORAGE(VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT, false, 16L << 20),
+    //device local, indirect draw arguments and counts written by shaders. Cleared with vkCmdFillBuffer
+    INDIRECT(VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT, false, 16L << 20),
+    //written by the host every frame, so persistently mapped. Device local if the device offers host visible vram
+    UNIFORM(VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT,                                   true,   4L << 20),
+    STAGING(VK_BUFFER_USAGE_TRANSFER_SRC_BIT,                                     true,  32L << 20);
+
+    final int     bufferUsage;
+    final boolean hostVisible;
+    final long    blockSize;
+
+    Usage(int bufferUsage, boolean hostVisible, long blockSize){
+      this.bufferUsage = bufferUsage;
+      this.hostVisible = hostVisible;
+      this.blockSize   = blockSize;
+    }
+  }
+
+  /**
+   * A buffer and the part of a memory block it is bound to
+   * @param handle the VkBuffer
+   * @param allocation the VmaAllocation, needed to free it again
+   * @param size the requested size in bytes
+   * @param mapped the host address of the buffer, NULL unless the usage is host visible
+   * @param usage the pool the buffer was created in
+   */
+  public static record Buffer(long handle, long allocation, long size, long mapped, Usage usage){}
+
+  /**
+   * @param blocks device memory blocks allocated
+   * @param allocations buffers living in the blocks
+   * @param bytes the size of all blocks
+   * @param unusedBytes the bytes not used by any buffer
+   * @param unusedRanges the number of free ranges between the buffers
+   */
+  public static record PoolStats(long blocks, long allocations, long bytes, long unusedBytes, long unusedRanges){}
+
+  private VkDevice device;
+  private long     allocator;
+  private Map<Usage, Long> pools = new EnumMap<>(Usage.class);
+
+  private long buffersCreated;
+  private long buffersAlive;
+
+  public GpuMemory(VkInstance instance, VkPhysicalDevice physicalDevice, VkDevice dev, int apiVersion){
+    device = dev;
+
+    try(var stack = MemoryStack.stackPush()){
+      //vma loads nothing itself, it gets lwjgl's function pointers
+      var functions = VmaVulkanFunctions.calloc(stack).set(instance, device);
+
+      var createInfo = VmaAllocatorCreateInfo.calloc(stack)
+        .instance(instance)
+        .physicalDevice(physicalDevice)
+        .device(device)
+        .vulkanApiVersion(apiVersion)
+        .pVulkanFunctions(functions);
+
+      var ptr = stack.mallocPointer(1);
+      if(vmaCreateAllocator(createInfo, ptr) != VK_SUCCESS) throw new RuntimeException("Failed to create memory allocator");
+      allocator = ptr.get(0);
+    }
+
+    for(var usage : Usage.values()) pools.put(usage, createPool(usage));
+  }
+
+  private VmaAllocationCreateInfo allocationInfo(Usage usage, MemoryStack stack){
+    var info = VmaAllocationCreateInfo.calloc(stack)
+      .usage(usage.hostVisible ? VMA_MEMORY_USAGE_AUTO : VMA_MEMORY_USAGE_AUTO_PREFER_DEVICE);
+
+    //sequential writes only, so write combined memory is fine (and preferred for device local, host visible memory)
+    if(usage.hostVisible) info.flags(VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT | VMA_ALLOCATION_CREATE_MAPPED_BIT);
+    return info;
+  }
+
+  private VkBufferCreateInfo bufferInfo(Usage usage, long size, MemoryStack stack){
+    return VkBufferCreateInfo.calloc(stack)
+      .sType      (VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+      .size       (size)
+      .usage      (usage.bufferUsage)
+      .sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+  }
+
+  //concurrent buffers can be used by all listed families without ownership transfers, at a possible cost in access speed
+  private VkBufferCreateInfo bufferInfo(Usage usage, long size, int[] families, MemoryStack stack){
+    var distinct = Arrays.stream(families).distinct().toArray();
+    if(distinct.length < 2) return bufferInfo(usage, size, stack);
+
+    return bufferInfo(usage, size, stack)
+      .sharingMode(VK_SHARING_MODE_CONCURRENT)
+      .pQueueFamilyIndices(stack.ints(distinct)); //also sets the count
+  }
+
+  private long createPool(Usage usage){
+    try(var stack = MemoryStack.stackPush()){
+      //a pool is bound to one memory type. Pick it with an example buffer, the size doesn't influence the choice
+      var typePtr = stack.mallocInt(1);
+      if(vmaFindMemoryTypeIndexForBufferInfo(allocator, bufferInfo(usage, 1024, stack), allocationInfo(usage, stack), typePtr) != VK_SUCCESS){
+        throw new RuntimeException("No memory type for " + usage + " buffers");
+      }
+
+      var createInfo = VmaPoolCreateInfo.calloc(stack)
+        .memoryTypeIndex(typePtr.get(0))
+        .blockSize(usage.blockSize); //blocks are only allocated on demand, there is no minimum count
+
+      var ptr = stack.mallocPointer(1);
+      if(vmaCreatePool(allocator, createInfo, ptr) != VK_SUCCESS) throw new RuntimeException("Failed to create " + usage + " memory pool");
+      return ptr.get(0);
+    }
+  }
+
+  /**
+   * Creates a buffer in the pool of the usage. Host visible buffers stay mapped for their whole lifetime
+   * @param usage what the buffer is used for
+   * @param size the size in bytes
+   * @return the buffer, to be released with {@link #destroyBuffer(Buffer)}
+   */
+  public Buffer createBuffer(Usage usage, long size){
+    return createBuffer(usage, size, new int[0]);
+  }
+
+  /**
+   * Creates a buffer that is shared by multiple queue families, e.g. written by async compute and read by graphics
+   * @param usage what the buffer is used for
+   * @param size the size in bytes
+   * @param queueFamilies the families accessing the buffer. If they are all the same, the buffer is exclusive
+   * @return the buffer, to be released with {@link #destroyBuffer(Buffer)}
+   */
+  public Buffer createBuffer(Usage usage, long size, int... queueFamilies){
+    try(var stack = MemoryStack.stackPush()){
+      var allocInfo = allocationInfo(usage, stack).pool(pools.get(usage));
+      //a pool can't hold anything larger than its blocks, so big buffers (e.g. a scene's worth of objects) get their own memory
+      if(size > usage.blockSize) allocInfo.pool(MemoryUtil.NULL).flags(allocInfo.flags() | VMA_ALLOCATION_CREATE_DEDICATED_MEMORY_BIT);
+
+      var bufferPtr = stack.mallocLong(1);
+      var allocPtr  = stack.mallocPointer(1);
+      var result    = VmaAllocationInfo.calloc(stack);
+      if(vmaCreateBuffer(allocator, bufferInfo(usage, size, queueFamilies, stack), allocInfo, bufferPtr, allocPtr, result) != VK_SUCCESS){
+        throw new RuntimeException("Failed to allocate " + size + " bytes of " + usage + " memory");
+      }
+
+      buffersCreated++;
+      buffersAlive++;
+      return new Buffer(bufferPtr.get(0), allocPtr.get(0), size, result.pMappedData(), usage);
+    }
+  }
+
+  /**
+   * Copies data into a host visible buffer and makes it visible to the device
+   * @param buffer a buffer of a host visible usage
+   * @param offset the byte offset in the buffer
+   * @param data the bytes between position and limit are copied
+   */
+  public void write(Buffer buffer, long offset, ByteBuffer data){
+    if(buffer.mapped() == MemoryUtil.NULL) throw new IllegalArgumentException(buffer.usage() + " buffers aren't host visible");
+    if(offset + data.remaining() > buffer.size()) throw new IllegalArgumentException("Write exceeds the buffer size");
+
+    MemoryUtil.memCopy(MemoryUtil.memAddress(data), buffer.mapped() + offset, data.remaining());
+    vmaFlushAllocation(allocator, buffer.allocation(), offset, data.remaining()); //no-op on coherent memory
+  }
+
+  /**
+   * Makes host writes through the mapped pointer visible to the device, for data written in place instead of through {@link #write(Buffer, long, ByteBuffer)}
+   * @param buffer a buffer of a host visible usage
+   * @param offset the byte offset of the written range
+   * @param size the size of the written range
+   */
+  public void flush(Buffer buffer, long offset, long size){
+    vmaFlushAllocation(allocator, buffer.allocation(), offset, size); //no-op on coherent memory
+  }
+
+  /**
+   * Frees the buffer. The device must no longer use it
+   */
+  public void destroyBuffer(Buffer buffer){
+    vmaDestroyBuffer(allocator, buffer.handle(), buffer.allocation());
+    buffersAlive--;
+  }
+
+  public PoolStats poolStats(Usage usage){
+    try(var stack = MemoryStack.stackPush()){
+      var stats = VmaPoolStats.calloc(stack);
+      vmaGetPoolStats(allocator, pools.get(usage), stats);
+      return new PoolStats(stats.blockCount(), stats.allocationCount(), stats.size(), stats.unusedSize(), stats.unusedRangeCount());
+    }
+  }
+
+  /**
+   * How scattered the free memory is, over all pools: 0 if it's one contiguous range, approaching 1 the more it's split into small ranges.
+   * A high value means new buffers need new blocks, even though there would be enough free memory in total
+   */
+  public double fragmentation(){
+    try(var stack = MemoryStack.stackPush()){
+      var stats = VmaStats.calloc(stack);
+      vmaCalculateStats(allocator, stats);
+
+      var total = stats.total();
+      if(total.unusedBytes() == 0) return 0;
+      return 1.0 - (double)total.unusedRangeSizeMax() / total.unusedBytes();
+    }
+  }
+
+  public long buffersCreated(){ return buffersCreated; }
+  public long buffersAlive()  { return buffersAlive;   }
+
+  /**
+   * Prints the usage of every pool and the fragmentation
+   */
+  public void dump(){
+    System.out.println(String.format("GPU memory: %d buffers created, %d alive, fragmentation %.2f", buffersCreated, buffersAlive, fragmentation()));
+    for(var usage : Usage.values()){
+      var stats = poolStats(usage);
+      System.out.println(String.format("  %-8s %d blocks, %d buffers, %.2f/%.2f MB used, %d free ranges", usage, stats.blocks, stats.allocations,
+        (stats.bytes - stats.unusedBytes) / 1e6, stats.bytes / 1e6, stats.unusedRanges));
+    }
+  }
+
+  /**
+   * Destroys the pools and the allocator. All buffers must have been destroyed before
+   */
+  public void dispose(){
+    if(buffersAlive != 0) System.out.println("GPU memory disposed with " + buffersAlive + " buffers still alive");
+
+    for(var pool : pools.values()) vmaDestroyPool(allocator, pool);
+    vmaDestroyAllocator(allocator);
+  }
+}
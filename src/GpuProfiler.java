@@ -0,0 +1,265 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+import org.lwjgl.vulkan.VkQueueFamilyProperties;
+
+/**
+ * Measures gpu time of named scopes inside the recorded cmdBuffers, using timestamp queries (and optionally pipeline statistics).
+ *
+ * Every frame slot owns a range of queries. The range is reset when the slot's cmdBuffer is recorded, and read back when the slot comes around again,
+ * after its previous frame was waited on. So the results are always complete and reading them never stalls, they just arrive framesInFlight frames late.
+ * Durations are aggregated per scope name into rolling windows.
+ */
+public class GpuProfiler {
+
+  /**
+   * The pipeline statistics collected for top level scopes, in the order the query returns them (sorted by bit)
+   */
+  public static final int PIPELINE_STATISTICS = VK_QUERY_PIPELINE_STATISTIC_INPUT_ASSEMBLY_VERTICES_BIT
+                                              | VK_QUERY_PIPELINE_STATISTIC_VERTEX_SHADER_INVOCATIONS_BIT
+                                              | VK_QUERY_PIPELINE_STATISTIC_CLIPPING_PRIMITIVES_BIT
+                                              | VK_QUERY_PIPELINE_STATISTIC_FRAGMENT_SHADER_INVOCATIONS_BIT
+                                              | VK_QUERY_PIPELINE_STATISTIC_COMPUTE_SHADER_INVOCATIONS_BIT;
+  private static final String[] STATISTIC_NAMES = {"ia vertices", "vs invocations", "clip primitives", "fs invocations", "cs invocations"};
+
+  private static final int WINDOW = 1024; //samples kept per scope
+
+  private VkDevice device;
+  private int      maxScopes;
+  private double   timestampPeriod; //ns per tick
+  private long     timestampMask;   //only the valid bits of a timestamp may be used
+
+  private long timestampPool;
+  private long statisticsPool; //VK_NULL_HANDLE if pipeline statistics are disabled
+
+  //per slot: the scope names in the order they were begun, and whether the scope collects statistics
+  private String[][]  scopeNames;
+  private boolean[][] scopeHasStats;
+  private int[]       scopeCount;
+  private int         activeDepth;
+
+  private Map<String, RollingStats> durations;
+  private Map<String, long[]>       statistics; //sum per scope, one entry per statistic
+  private long[]                    results;    //scratch for the readback, so collecting doesn't allocate
+
+  //malloc'd once, the MemoryStack would create a new buffer object per collect
+  private LongBuffer timestampResults;
+  private LongBuffer statisticResults;
+
+  /**
+   * @param dev the logical device
+   * @param physicalDevice the device, for the timestamp period and valid bits
+   * @param queueFamily the family the profiled cmdBuffers are submitted to
+   * @param frameSlots the amount of frames in flight
+   * @param scopesPerFrame the maximum amount of scopes per frame
+   * @param pipelineStatistics whether to collect statistics. Requires the pipelineStatisticsQuery feature to be enabled on the device
+   */
+  public GpuProfiler(VkDevice dev, VkPhysicalDevice physicalDevice, int queueFamily, int frameSlots, int scopesPerFrame, boolean pipelineStatistics){
+    device    = dev;
+    maxScopes = scopesPerFrame;
+
+    try(var stack = MemoryStack.stackPush()){
+      var properties = VkPhysicalDeviceProperties.calloc(stack);
+      vkGetPhysicalDeviceProperties(physicalDevice, properties);
+      timestampPeriod = properties.limits().timestampPeriod();
+
+      var cntPtr = stack.mallocInt(1);
+      vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, cntPtr, null);
+      var families = VkQueueFamilyProperties.calloc(cntPtr.get(0), stack);
+      vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, cntPtr, families);
+
+      var validBits = families.get(queueFamily).timestampValidBits();
+      if(validBits == 0) throw new RuntimeException("Queue family " + queueFamily + " doesn't support timestamps");
+      timestampMask = validBits == 64 ? -1L : (1L << validBits) - 1;
+
+      timestampPool = createPool(VK_QUERY_TYPE_TIMESTAMP, frameSlots * maxScopes * 2, 0);
+      if(pipelineStatistics) statisticsPool = createPool(VK_QUERY_TYPE_PIPELINE_STATISTICS, frameSlots * maxScopes, PIPELINE_STATISTICS);
+    }
+
+    scopeNames    = new String [frameSlots][maxScopes];
+    scopeHasStats = new boolean[frameSlots][maxScopes];
+    scopeCount    = new int[frameSlots];
+
+    durations  = new LinkedHashMap<>();
+    statistics = new LinkedHashMap<>();
+    results    = new long[maxScopes * 2 * 2]; //2 timestamps per scope, each with an availability value
+
+    timestampResults = MemoryUtil.memAllocLong(maxScopes * 2 * 2);
+    statisticResults = MemoryUtil.memAllocLong(STATISTIC_NAMES.length + 1); //statistics + availability
+
+    System.out.println("GPU profiler enabled: timestamp period " + timestampPeriod + "ns, pipeline statistics " + pipelineStatistics);
+  }
+
+  private long createPool(int type, int count, int statistics){
+    try(var stack = MemoryStack.stackPush()){
+      var createInfo = VkQueryPoolCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO)
+        .queryType(type)
+        .queryCount(count)
+        .pipelineStatistics(statistics);
+
+      var ptr = stack.mallocLong(1);
+      if(vkCreateQueryPool(device, createInfo, null, ptr) != VK_SUCCESS) throw new RuntimeException("Failed to create query pool");
+      return ptr.get();
+    }
+  }
+
+  /**
+   * Resets the slot's queries. Must be recorded outside of a render pass, before any scope of the frame
+   * @param cmd the cmdBuffer of the frame
+   * @param slot the frame slot index
+   */
+  public void beginFrame(VkCommandBuffer cmd, int slot){
+    vkCmdResetQueryPool(cmd, timestampPool, slot * maxScopes * 2, maxScopes * 2);
+    if(statisticsPool != VK_NULL_HANDLE) vkCmdResetQueryPool(cmd, statisticsPool, slot * maxScopes, maxScopes);
+
+    scopeCount[slot] = 0;
+    activeDepth = 0;
+  }
+
+  /**
+   * Opens a named scope. Scopes can be nested, but only top level scopes collect pipeline statistics (only one statistics query may be active).
+   * A top level scope that collects statistics must not cross a render pass boundary.
+   * @param cmd the cmdBuffer of the frame
+   * @param slot the frame slot index
+   * @param name the name the duration is aggregated under
+   * @return the scope handle for {@link #end(VkCommandBuffer, int, int)}, or -1 if the frame ran out of scopes
+   */
+  public int begin(VkCommandBuffer cmd, int slot, String name){
+    var scope = scopeCount[slot];
+    if(scope >= maxScopes) return -1;
+
+    scopeCount[slot]++;
+    scopeNames[slot][scope]    = name;
+    scopeHasStats[slot][scope] = statisticsPool != VK_NULL_HANDLE && activeDepth == 0;
+    activeDepth++;
+
+    vkCmdWriteTimestamp(cmd, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, timestampPool, (slot * maxScopes + scope) * 2);
+    if(scopeHasStats[slot][scope]) vkCmdBeginQuery(cmd, statisticsPool, slot * maxScopes + scope, 0);
+
+    return scope;
+  }
+
+  /**
+   * Closes a scope opened with {@link #begin(VkCommandBuffer, int, String)}
+   * @param cmd the cmdBuffer of the frame
+   * @param slot the frame slot index
+   * @param scope the handle returned by begin
+   */
+  public void end(VkCommandBuffer cmd, int slot, int scope){
+    if(scope < 0) return;
+    activeDepth--;
+
+    if(scopeHasStats[slot][scope]) vkCmdEndQuery(cmd, statisticsPool, slot * maxScopes + scope);
+    vkCmdWriteTimestamp(cmd, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, timestampPool, (slot * maxScopes + scope) * 2 + 1);
+  }
+
+  /**
+   * Reads the results of the slot's last frame into the aggregates. Only call once the slot's previous frame has been waited on, then it never blocks
+   * @param slot the frame slot index
+   */
+  public void collect(int slot){
+    var count = scopeCount[slot];
+    if(count == 0) return;
+    scopeCount[slot] = 0; //each frame is only collected once
+
+    var stride = 2 * Long.BYTES; //value + availability
+    var flags  = VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WITH_AVAILABILITY_BIT;
+
+    var buffer = timestampResults.clear().limit(count * 2 * 2);
+    var result = vkGetQueryPoolResults(device, timestampPool, slot * maxScopes * 2, count * 2, buffer, stride, flags);
+    if(result != VK_SUCCESS && result != VK_NOT_READY) return;
+
+    buffer.get(results, 0, count * 2 * 2);
+    for(int i = 0; i < count; i++){
+      var begin = results[i * 4];
+      var end   = results[i * 4 + 2];
+      if(results[i * 4 + 1] == 0 || results[i * 4 + 3] == 0) continue; //not available, e.g. the frame skipped the scope
+
+      var stats = durations.get(scopeNames[slot][i]);
+      if(stats == null) durations.put(scopeNames[slot][i], stats = new RollingStats(WINDOW));
+
+      var ticks = ((end & timestampMask) - (begin & timestampMask)) & timestampMask; //handles the wrap around of the counter
+      stats.add((long)(ticks * timestampPeriod));
+    }
+
+    if(statisticsPool != VK_NULL_HANDLE) collectStatistics(slot, count);
+  }
+
+  private void collectStatistics(int slot, int count){
+    var values = STATISTIC_NAMES.length;
+    var stats  = statisticResults;
+
+    for(int i = 0; i < count; i++){
+      if(!scopeHasStats[slot][i]) continue;
+
+      var result = vkGetQueryPoolResults(device, statisticsPool, slot * maxScopes + i, 1, stats.clear(), (values + 1) * Long.BYTES, VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WITH_AVAILABILITY_BIT);
+      if(result != VK_SUCCESS || stats.get(values) == 0) continue;
+
+      var sums = statistics.get(scopeNames[slot][i]);
+      if(sums == null) statistics.put(scopeNames[slot][i], sums = new long[values]);
+      for(int v = 0; v < values; v++) sums[v] += stats.get(v);
+    }
+  }
+
+  /**
+   * @param scope the name of a scope
+   * @return the rolling gpu durations of the scope in ns, or null if it was never measured
+   */
+  public RollingStats durations(String scope){
+    return durations.get(scope);
+  }
+
+  /**
+   * @return the names of all scopes measured so far, in the order they were first seen
+   */
+  public List<String> scopes(){
+    return new ArrayList<>(durations.keySet());
+  }
+
+  /**
+   * @param scope the name of a top level scope
+   * @return the summed pipeline statistics in the order of {@link #PIPELINE_STATISTICS}, or null if none were collected
+   */
+  public long[] statistics(String scope){
+    return statistics.get(scope);
+  }
+
+  /**
+   * Prints the percentiles of every scope, and the statistics of top level scopes
+   */
+  public void dump(){
+    System.out.println("GPU scope timings:");
+    for(var entry : durations.entrySet()){
+      System.out.println("  " + entry.getKey() + ": " + entry.getValue().summaryMs());
+
+      var sums = statistics.get(entry.getKey());
+      if(sums == null) continue;
+
+      var samples = entry.getValue().total();
+      var line = new StringBuilder("    avg per frame:");
+      for(int v = 0; v < sums.length; v++) line.append(' ').append(STATISTIC_NAMES[v]).append(' ').append(sums[v] / samples);
+      System.out.println(line);
+    }
+  }
+
+  public void dispose(){
+    MemoryUtil.memFree(timestampResults);
+    MemoryUtil.memFree(statisticResults);
+
+    vkDestroyQueryPool(device, timestampPool, null);
+    if(statisticsPool != VK_NULL_HANDLE) vkDestroyQueryPool(device, statisticsPool, null);
+  }
+}
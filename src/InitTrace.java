@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records the phases of the startup: which thread ran them, when they started and how long they took.
+ *
+ * Phases either run on the calling thread ({@link #run(String, Runnable)}), or are forked onto an executor when nothing running meanwhile depends
+ * on them. A forked phase is joined right before the first phase that needs its result, so init reads as a small graph: the forks and joins are its edges.
+ *
+ * Every phase is also committed as a JFR event, so a flight recording of the startup shows them next to class loading and GC. Without a recording
+ * the events cost next to nothing. {@link #writeChromeTrace(Path)} exports the phases for chrome://tracing or Perfetto.
+ */
+public class InitTrace {
+
+  @Name("java_vulkan.InitPhase")
+  @Label("Init Phase")
+  @Category("Vulkan")
+  static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+  }
+
+  /**
+   * @param start nanoseconds since the trace was created
+   * @param end nanoseconds since the trace was created
+   */
+  public static record Phase(String name, String thread, long start, long end){
+    public long duration(){ return end - start; }
+  }
+
+  private long            origin;
+  private ExecutorService executor;
+  private List<Phase>     phases = new ArrayList<>(); //guarded by itself
+
+  /**
+   * @param forkExecutor runs the forked phases. Its threads must not be needed by the phases themselves, a phase waiting on its own pool can deadlock it
+   */
+  public InitTrace(ExecutorService forkExecutor){
+    origin   = System.nanoTime();
+    executor = forkExecutor;
+  }
+
+  /**
+   * Runs the phase on the calling thread
+   */
+  public void run(String name, Runnable phase){
+    trace(name, () -> {
+      phase.run();
+      return null;
+    });
+  }
+
+  private <T> T trace(String name, Supplier<T> phase){
+    var event = new PhaseEvent();
+    event.phase = name;
+    event.begin();
+
+    var start = System.nanoTime();
+    try{
+      return phase.get();
+    }finally{
+      var end = System.nanoTime();
+      event.commit();
+
+      synchronized(phases){
+        phases.add(new Phase(name, Thread.currentThread().getName(), start - origin, end - origin));
+      }
+    }
+  }
+
+  /**
+   * Runs the phase on the executor. It must only touch state nothing else touches until it is joined
+   * @return the phase, to {@link #join(CompletableFuture)} before its results are used
+   */
+  public CompletableFuture<Void> fork(String name, Runnable phase){
+    return CompletableFuture.runAsync(() -> run(name, phase), executor);
+  }
+
+  /**
+   * Like {@link #fork(String, Runnable)}, for a phase with a result
+   */
+  public <T> CompletableFuture<T> supply(String name, Supplier<T> phase){
+    return CompletableFuture.supplyAsync(() -> trace(name, phase), executor);
+  }
+
+  /**
+   * Waits for a forked phase. A failure of the phase is rethrown as it was thrown
+   * @return the phase's result
+   */
+  public <T> T join(CompletableFuture<T> forked){
+    try{
+      return forked.join();
+    }catch(CompletionException x){
+      if(x.getCause() instanceof RuntimeException cause) throw cause;
+      if(x.getCause() instanceof Error cause) throw cause;
+      throw x;
+    }
+  }
+
+  /**
+   * @return nanoseconds since the trace was created
+   */
+  public long elapsed(){
+    return System.nanoTime() - origin;
+  }
+
+  /**
+   * @return the finished phases, ordered by their start
+   */
+  public List<Phase> phases(){
+    synchronized(phases){
+      var sorted = new ArrayList<>(phases);
+      sorted.sort(Comparator.comparingLong(Phase::start));
+      return sorted;
+    }
+  }
+
+  /**
+   * One line per phase: start, duration, thread and name, in milliseconds
+   */
+  public String summary(){
+    var text = new StringBuilder();
+    for(var phase : phases()){
+      text.append(String.format("  %8.1fms %8.1fms  %-16s %s%n", phase.start / 1e6, phase.duration() / 1e6, phase.thread, phase.name));
+    }
+    return text.toString();
+  }
+
+  /**
+   * Writes the phases in the Chrome trace event format, one complete event per phase, with the threads as tracks
+   */
+  public void writeChromeTrace(Path file) throws IOException {
+    var json = new StringBuilder("{\"traceEvents\":[\n");
+    var first = true;
+    for(var phase : phases()){
+      if(!first) json.append(",\n");
+      first = false;
+
+      json.append(String.format(Locale.ROOT, "{\"name\":\"%s\",\"cat\":\"init\",\"ph\":\"X\",\"pid\":1,\"tid\":\"%s\",\"ts\":%.3f,\"dur\":%.3f}",
+        escape(phase.name), escape(phase.thread), phase.start / 1e3, phase.duration() / 1e3)); //the format counts in microseconds
+    }
+    json.append("\n]}\n");
+
+    if(file.getParent() != null) Files.createDirectories(file.getParent());
+    Files.writeString(file, json);
+  }
+
+  private static String escape(String text){
+    return text.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
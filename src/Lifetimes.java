@@ -0,0 +1,191 @@
+import java.nio.Buffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.system.NativeResource;
+
+/**
+ * Owns what the application creates, host memory and vulkan objects alike, and destroys it once nothing can use it anymore.
+ *
+ * Ownership is scoped: a {@link Scope} collects the resources sharing one lifetime (the application, one generation of the swapchain) and
+ * destroys them in reverse order when closed. A scope or a single resource that pending gpu work may still use is retired instead. It's queued
+ * with the timeline value of the last submit that may use it, and destroyed by {@link #collect(long)} once the timeline reached that value.
+ *
+ * Every owned resource is counted by type until it's destroyed, so {@link #report()} shows what's live and a leak shows up as a growing count.
+ * Owning and closing is thread safe, retiring and collecting is left to the render thread.
+ */
+public class Lifetimes {
+
+  private static record Owned  (String type,  Runnable destroy){}
+  private static record Retired(long   value, String   type, Runnable destroy){}
+
+  /**
+   * Resources that are destroyed together. Closing a scope twice does nothing
+   */
+  public class Scope implements AutoCloseable {
+    private String      name;
+    private List<Owned> owned = new ArrayList<>(); //guarded by the scope
+    private boolean     closed;
+
+    private Scope(String scopeName){
+      name = scopeName;
+    }
+
+    /**
+     * @param type the name the resource is counted under
+     * @param destroy destroys the resource, run at most once
+     */
+    public void own(String type, Runnable destroy){
+      synchronized(this){
+        if(closed) throw new IllegalStateException("Scope " + name + " is closed, can't own another " + type);
+        owned.add(new Owned(type, destroy));
+      }
+      count(type, 1);
+    }
+
+    /**
+     * Owns host memory allocated through LWJGL, e.g. a struct or a struct buffer
+     * @return the resource for chaining
+     */
+    public <T extends NativeResource> T own(T resource){
+      own(typeName(resource.getClass()), resource::free);
+      return resource;
+    }
+
+    /**
+     * Owns a pointer buffer allocated with {@link MemoryUtil#memAllocPointer(int)} or one of its siblings
+     * @return the buffer for chaining
+     */
+    public PointerBuffer own(PointerBuffer buffer){
+      own("PointerBuffer", () -> MemoryUtil.memFree(buffer)); //frees the buffer, not the pointers in it
+      return buffer;
+    }
+
+    /**
+     * Owns a direct buffer allocated with {@link MemoryUtil#memAlloc(int)} or one of its siblings
+     * @return the buffer for chaining
+     */
+    public <T extends Buffer> T own(T buffer){
+      own(typeName(buffer.getClass()), () -> MemoryUtil.memFree(buffer));
+      return buffer;
+    }
+
+    /**
+     * Destroys everything owned, the last owned first. The gpu must no longer use any of it
+     */
+    @Override
+    public void close(){
+      List<Owned> destroyed;
+      synchronized(this){
+        if(closed) return;
+        closed    = true;
+        destroyed = owned;
+        owned     = null;
+      }
+
+      for(int i = destroyed.size() - 1; i >= 0; i--){
+        var resource = destroyed.get(i);
+        resource.destroy.run();
+        count(resource.type, -1);
+      }
+    }
+
+    public String name(){ return name; }
+  }
+
+  private Map<String, Integer> live = new TreeMap<>(); //guarded by itself. Sorted, so the report reads the same every time
+  private ArrayDeque<Retired>  retired = new ArrayDeque<>();
+  private long                 retiredTotal;
+  private long                 collectedTotal;
+
+  /**
+   * @param name used in errors
+   * @return a new, empty scope
+   */
+  public Scope scope(String name){
+    return new Scope(name);
+  }
+
+  //VkSurfaceFormatKHR.Buffer instead of just Buffer
+  private static String typeName(Class<?> type){
+    var outer = type.getEnclosingClass();
+    return outer != null ? outer.getSimpleName() + "." + type.getSimpleName() : type.getSimpleName();
+  }
+
+  private void count(String type, int delta){
+    synchronized(live){
+      live.merge(type, delta, Integer::sum);
+    }
+  }
+
+  /**
+   * Destroys the scope once the timeline reached value
+   * @param value the value signaled by the last submit that may use the scope's resources
+   */
+  public void retire(long value, Scope scope){
+    retire(value, "scope " + scope.name, scope::close);
+  }
+
+  /**
+   * Runs destroy once the timeline reached value. Values must not decrease from one call to the next, the queue is collected in order
+   * @param value the value signaled by the last submit that may use the resource
+   * @param type what is destroyed, counted until it is
+   */
+  public void retire(long value, String type, Runnable destroy){
+    if(!retired.isEmpty() && retired.peekLast().value > value) throw new IllegalStateException("Retired " + type + " at " + value + " after " + retired.peekLast().type + " at " + retired.peekLast().value);
+
+    retired.add(new Retired(value, type, destroy));
+    retiredTotal++;
+    count("retired " + type, 1);
+  }
+
+  /**
+   * @return whether anything waits for the timeline, so a caller can skip reading the counter
+   */
+  public boolean hasRetired(){
+    return !retired.isEmpty();
+  }
+
+  /**
+   * Destroys everything retired at or before completed
+   * @param completed the value the timeline reached
+   * @return the number of retirements run
+   */
+  public int collect(long completed){
+    var count = 0;
+    while(!retired.isEmpty() && retired.peek().value <= completed){
+      var resource = retired.poll();
+      resource.destroy.run();
+      count("retired " + resource.type, -1);
+      count++;
+    }
+    collectedTotal += count;
+    return count;
+  }
+
+  /**
+   * @return the live resources by type, without the types that have none left
+   */
+  public Map<String, Integer> liveCounts(){
+    synchronized(live){
+      var counts = new TreeMap<String, Integer>();
+      live.forEach((type, count) -> { if(count != 0) counts.put(type, count); });
+      return counts;
+    }
+  }
+
+  /**
+   * One line per type with live resources, followed by the deferred destruction totals
+   */
+  public String report(){
+    var text = new StringBuilder();
+    liveCounts().forEach((type, count) -> text.append(String.format("  %6d %s%n", count, type)));
+    text.append(String.format("  %d retirements queued, %d of them collected%n", retiredTotal, collectedTotal));
+    return text.toString();
+  }
+}
@@ -0,0 +1,113 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.LongBuffer;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkVertexInputAttributeDescription;
+import org.lwjgl.vulkan.VkVertexInputBindingDescription;
+
+/**
+ * Indexed geometry living in device local vertex and index buffers of {@link GpuMemory}.
+ * The vertex layout is fixed for now: a vec2 position followed by a vec3 color, interleaved in one binding.
+ */
+public class Mesh {
+
+  public static final int FLOATS_PER_VERTEX = 2 + 3;
+  public static final int VERTEX_STRIDE     = FLOATS_PER_VERTEX * Float.BYTES;
+
+  private GpuMemory.Buffer vertices;
+  private GpuMemory.Buffer indices;
+  private int              indexCount;
+
+  //the arrays vkCmdBindVertexBuffers reads, malloc'd once so drawing doesn't allocate
+  private LongBuffer bindBuffers;
+  private LongBuffer bindOffsets;
+
+  /**
+   * @param vertexBuffer a VERTEX buffer holding the interleaved vertices
+   * @param indexBuffer an INDEX buffer holding 16 bit indices
+   * @param count the number of indices to draw
+   */
+  public Mesh(GpuMemory.Buffer vertexBuffer, GpuMemory.Buffer indexBuffer, int count){
+    vertices   = vertexBuffer;
+    indices    = indexBuffer;
+    indexCount = count;
+
+    bindBuffers = MemoryUtil.memAllocLong(1).put(0, vertices.handle());
+    bindOffsets = MemoryUtil.memCallocLong(1);
+  }
+
+  /**
+   * The vertex layout as the pipeline needs it. The layout is part of the pipeline, not of the buffer
+   */
+  public static VkVertexInputBindingDescription.Buffer bindingDescriptions(MemoryStack stack){
+    return VkVertexInputBindingDescription.calloc(1, stack)
+      .binding(0)
+      .stride(VERTEX_STRIDE)
+      .inputRate(VK_VERTEX_INPUT_RATE_VERTEX); //per instance would advance once per instance instead
+  }
+
+  public static VkVertexInputAttributeDescription.Buffer attributeDescriptions(MemoryStack stack){
+    var attributes = VkVertexInputAttributeDescription.calloc(2, stack);
+
+    attributes.get(0) //layout(location = 0) in vec2 inPosition
+      .binding(0)
+      .location(0)
+      .format(VK_FORMAT_R32G32_SFLOAT)
+      .offset(0);
+
+    attributes.get(1) //layout(location = 1) in vec3 inColor
+      .binding(0)
+      .location(1)
+      .format(VK_FORMAT_R32G32B32_SFLOAT)
+      .offset(2 * Float.BYTES);
+
+    return attributes;
+  }
+
+  /**
+   * Records the binds and the indexed draw. Has to be inside a render pass, with a pipeline using this vertex layout bound
+   */
+  public void draw(VkCommandBuffer cmd){
+    bind(cmd);
+    drawBound(cmd);
+  }
+
+  /**
+   * Binds the vertex and index buffer, for repeated {@link #drawBound(VkCommandBuffer)} calls
+   */
+  public void bind(VkCommandBuffer cmd){
+    vkCmdBindVertexBuffers(cmd, 0, bindBuffers, bindOffsets);
+    vkCmdBindIndexBuffer(cmd, indices.handle(), 0, VK_INDEX_TYPE_UINT16);
+  }
+
+  /**
+   * Records the indexed draw, assuming the buffers of this mesh are bound
+   */
+  public void drawBound(VkCommandBuffer cmd){
+    vkCmdDrawIndexed(cmd, indexCount, 1, 0, 0, 0);
+  }
+
+  /**
+   * Records an instanced draw, assuming the buffers of this mesh are bound. Shaders see firstInstance + i as gl_InstanceIndex
+   */
+  public void drawInstanced(VkCommandBuffer cmd, int instanceCount, int firstInstance){
+    vkCmdDrawIndexed(cmd, indexCount, instanceCount, 0, 0, firstInstance);
+  }
+
+  public GpuMemory.Buffer vertices(){ return vertices; }
+  public GpuMemory.Buffer indices() { return indices;  }
+
+  /**
+   * Frees the buffers. The device must no longer use them
+   */
+  public void dispose(GpuMemory memory){
+    memory.destroyBuffer(vertices);
+    memory.destroyBuffer(indices);
+
+    MemoryUtil.memFree(bindBuffers);
+    MemoryUtil.memFree(bindOffsets);
+  }
+}
@@ -0,0 +1,378 @@
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.system.rpmalloc.RPmalloc;
+import org.lwjgl.system.rpmalloc.RPmallocAllocator;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+/**
+ * Counts the native memory LWJGL allocates, cheap enough to stay on under load, unlike LWJGL's debug allocator.
+ *
+ * Installed as LWJGL's memory allocator, it forwards to rpmalloc and counts every memAlloc, memCalloc, memRealloc, memAlignedAlloc and struct
+ * malloc/calloc by category: a few atomic adds per call, no locks and no per allocation bookkeeping. Live bytes are rpmalloc's usable sizes,
+ * so they include its rounding. Call sites are sampled: every n-th allocation walks the stack to its first frame outside LWJGL, and counts for
+ * that site scaled by n. Memory native code allocates through the allocator's function pointers isn't seen.
+ *
+ * {@link MemoryStack} allocations never reach the allocator. Their high water mark is measured by painting: the unused part of a watched thread's
+ * stack is filled with a pattern, and the deepest overwritten byte is the peak. Nothing is added to push and pop. Memory that was reserved on the stack
+ * but never written is missed, so the peak is a lower bound.
+ *
+ * Totals, live bytes and stack peaks are periodic JFR events, sampled call sites are JFR events as well.
+ */
+public class NativeMemoryStats implements MemoryUtil.MemoryAllocator {
+
+  public enum Category { MALLOC, CALLOC, REALLOC, ALIGNED }
+
+  /**
+   * An allocating call site, with estimates scaled by the sample interval
+   */
+  public static record Site(String site, Category category, long allocations, long bytes){}
+
+  /**
+   * @param peak the deepest the thread's MemoryStack has been used, in bytes
+   * @param alive false if the thread ended, its peak is final
+   */
+  public static record StackPeak(String thread, int size, int peak, boolean alive){}
+
+  @Name("java_vulkan.NativeMemory")
+  @Label("Native Memory")
+  @jdk.jfr.Category("Vulkan")
+  @Period("1 s")
+  static class TotalsEvent extends Event {
+    @Label("Live Bytes")       @DataAmount long liveBytes;
+    @Label("Peak Live Bytes")  @DataAmount long peakBytes;
+    @Label("Live Allocations")             long liveAllocations;
+    @Label("Allocations")                  long allocations;
+    @Label("Frees")                        long frees;
+  }
+
+  @Name("java_vulkan.NativeAllocationSample")
+  @Label("Native Allocation Sample")
+  @jdk.jfr.Category("Vulkan")
+  static class SampleEvent extends Event {
+    @Label("Call Site")              String site;
+    @Label("Category")               String category;
+    @Label("Size")       @DataAmount long   bytes;
+  }
+
+  @Name("java_vulkan.MemoryStackHighWater")
+  @Label("MemoryStack High Water")
+  @jdk.jfr.Category("Vulkan")
+  @Period("1 s")
+  static class StackEvent extends Event {
+    @Label("Thread")                 String thread;
+    @Label("Size")       @DataAmount int    size;
+    @Label("Peak")       @DataAmount int    peak;
+  }
+
+  private static final long CANARY = 0xA5A5A5A5A5A5A5A5L;
+
+  private static final StackWalker WALKER = StackWalker.getInstance();
+
+  private static volatile int               sampleInterval = 64;
+  private static volatile NativeMemoryStats installed;
+
+  /**
+   * Makes LWJGL allocate through the stats. Must be called before the first LWJGL allocation, LWJGL picks its allocator once
+   * @param interval every how many allocations a call site is sampled, 1 to attribute every allocation
+   */
+  public static void install(int interval){
+    if(interval < 1) throw new IllegalArgumentException("Sample interval must be at least 1, got " + interval);
+    sampleInterval = interval;
+
+    //by class name, so LWJGL creates it while it initializes. Creating rpmalloc's allocator any earlier would initialize LWJGL before the setting is read
+    Configuration.MEMORY_ALLOCATOR.set(NativeMemoryStats.class.getName());
+
+    FlightRecorder.addPeriodicEvent(TotalsEvent.class, () -> { var stats = installed; if(stats != null) stats.commitTotals(); });
+    FlightRecorder.addPeriodicEvent(StackEvent .class, () -> { var stats = installed; if(stats != null) stats.commitStacks(); });
+  }
+
+  /**
+   * @return the stats LWJGL allocates through, null if they weren't installed or LWJGL fell back to another allocator
+   */
+  public static NativeMemoryStats installed(){
+    return installed;
+  }
+
+  /**
+   * Starts measuring the MemoryStack high water mark of the calling thread. Called first thing on a thread, before its stack is used.
+   * Does nothing if the stats aren't installed, or the thread is watched already
+   */
+  public static void watchStack(){
+    var stats = installed;
+    if(stats != null) stats.watch();
+  }
+
+  private static final class WatchedStack {
+    Thread      thread;
+    MemoryStack stack; //keeps the stack's memory alive, dropped after the last scan of an ended thread
+    int         size;
+    int         peak;
+  }
+
+  private static final class SiteCounter {
+    LongAdder samples = new LongAdder();
+    LongAdder bytes   = new LongAdder();
+  }
+
+  private static record SiteKey(String site, Category category){}
+
+  private RPmallocAllocator delegate;
+  private int               interval;
+
+  private LongAdder[] allocations = new LongAdder[Category.values().length];
+  private LongAdder[] bytes       = new LongAdder[Category.values().length];
+  private LongAdder   frees       = new LongAdder();
+  private AtomicLong  liveAllocations = new AtomicLong();
+  private AtomicLong  liveBytes       = new AtomicLong();
+  private AtomicLong  peakBytes       = new AtomicLong();
+  private AtomicLong  sequence        = new AtomicLong();
+
+  private Map<SiteKey, SiteCounter> sites  = new ConcurrentHashMap<>();
+  private List<WatchedStack>        stacks = new ArrayList<>(); //guarded by itself
+
+  /**
+   * Created by LWJGL, see {@link #install(int)}
+   */
+  public NativeMemoryStats(){
+    delegate = new RPmallocAllocator();
+    interval = sampleInterval;
+
+    for(int i = 0; i < allocations.length; i++){
+      allocations[i] = new LongAdder();
+      bytes      [i] = new LongAdder();
+    }
+
+    installed = this;
+  }
+
+  //native code allocating through these isn't counted
+  @Override public long getMalloc()      { return delegate.getMalloc();       }
+  @Override public long getCalloc()      { return delegate.getCalloc();       }
+  @Override public long getRealloc()     { return delegate.getRealloc();      }
+  @Override public long getFree()        { return delegate.getFree();         }
+  @Override public long getAlignedAlloc(){ return delegate.getAlignedAlloc(); }
+  @Override public long getAlignedFree() { return delegate.getAlignedFree();  }
+
+  @Override
+  public long malloc(long size){
+    var address = delegate.malloc(size);
+    allocated(Category.MALLOC, address, size);
+    return address;
+  }
+
+  @Override
+  public long calloc(long num, long size){
+    var address = delegate.calloc(num, size);
+    allocated(Category.CALLOC, address, num * size);
+    return address;
+  }
+
+  @Override
+  public long realloc(long ptr, long size){
+    var oldBytes = ptr != NULL ? RPmalloc.nrpmalloc_usable_size(ptr) : 0;
+
+    var address = delegate.realloc(ptr, size);
+    if(address == NULL && size != 0) return NULL; //failed, the old block is untouched
+
+    if(ptr != NULL) released(oldBytes);
+    allocated(Category.REALLOC, address, size);
+    return address;
+  }
+
+  @Override
+  public void free(long ptr){
+    if(ptr == NULL) return;
+
+    released(RPmalloc.nrpmalloc_usable_size(ptr));
+    delegate.free(ptr);
+  }
+
+  @Override
+  public long aligned_alloc(long alignment, long size){
+    var address = delegate.aligned_alloc(alignment, size);
+    allocated(Category.ALIGNED, address, size);
+    return address;
+  }
+
+  @Override
+  public void aligned_free(long ptr){
+    if(ptr == NULL) return;
+
+    released(RPmalloc.nrpmalloc_usable_size(ptr));
+    delegate.aligned_free(ptr);
+  }
+
+  private void allocated(Category category, long address, long size){
+    if(address == NULL) return;
+
+    allocations[category.ordinal()].increment();
+    bytes      [category.ordinal()].add(size);
+    liveAllocations.incrementAndGet();
+
+    var live = liveBytes.addAndGet(RPmalloc.nrpmalloc_usable_size(address));
+    if(live > peakBytes.get()) peakBytes.accumulateAndGet(live, Math::max);
+
+    if(sequence.getAndIncrement() % interval == 0) sample(category, size);
+  }
+
+  private void released(long usableBytes){
+    frees.increment();
+    liveAllocations.decrementAndGet();
+    liveBytes.addAndGet(-usableBytes);
+  }
+
+  private void sample(Category category, long size){
+    var site = WALKER.walk(frames -> frames
+      .filter(frame -> !frame.getClassName().startsWith("org.lwjgl.") && !frame.getClassName().equals(NativeMemoryStats.class.getName()))
+      .findFirst()
+      .map(frame -> frame.getClassName() + "." + frame.getMethodName() + ":" + frame.getLineNumber())
+      .orElse("lwjgl"));
+
+    var counter = sites.computeIfAbsent(new SiteKey(site, category), key -> new SiteCounter());
+    counter.samples.increment();
+    counter.bytes  .add(size);
+
+    var event = new SampleEvent();
+    if(event.isEnabled()){
+      event.site     = site;
+      event.category = category.name();
+      event.bytes    = size;
+      event.commit();
+    }
+  }
+
+  private void watch(){
+    var current = Thread.currentThread();
+    synchronized(stacks){
+      for(var watched : stacks) if(watched.thread == current) return;
+    }
+
+    //the stack grows downwards from address + size, so [address, address + pointer) is unused
+    var stack = MemoryStack.stackGet();
+    MemoryUtil.memSet(stack.getAddress(), (int)(CANARY & 0xFF), stack.getPointer());
+
+    var watched = new WatchedStack();
+    watched.thread = current;
+    watched.stack  = stack;
+    watched.size   = stack.getSize();
+    watched.peak   = stack.getSize() - stack.getPointer();
+
+    synchronized(stacks){
+      stacks.add(watched);
+    }
+  }
+
+  //reads another thread's stack while it may be in use. A racing write can only make the peak show up one scan later
+  private static int scan(MemoryStack stack){
+    var address = stack.getAddress();
+    var size    = stack.getSize();
+
+    var offset = 0;
+    while(offset + Long.BYTES <= size && MemoryUtil.memGetLong(address + offset) == CANARY) offset += Long.BYTES;
+    return size - offset;
+  }
+
+  /**
+   * @return the MemoryStack high water mark of every watched thread, ended ones included
+   */
+  public List<StackPeak> stackPeaks(){
+    var peaks = new ArrayList<StackPeak>();
+    synchronized(stacks){
+      for(var watched : stacks){
+        if(watched.stack != null){
+          var alive = watched.thread.isAlive(); //read before the scan, so the scan of an ended thread is complete
+          watched.peak = Math.max(watched.peak, scan(watched.stack));
+          if(!alive) watched.stack = null;
+        }
+        peaks.add(new StackPeak(watched.thread.getName(), watched.size, watched.peak, watched.stack != null));
+      }
+    }
+    return peaks;
+  }
+
+  /**
+   * @return the sampled call sites, the most bytes first
+   */
+  public List<Site> sites(){
+    var result = new ArrayList<Site>();
+    sites.forEach((key, counter) -> result.add(new Site(key.site, key.category, counter.samples.sum() * interval, counter.bytes.sum() * interval)));
+    result.sort(Comparator.comparingLong(Site::bytes).reversed());
+    return result;
+  }
+
+  public long allocations(Category category){ return allocations[category.ordinal()].sum(); }
+  public long bytes(Category category)      { return bytes[category.ordinal()].sum();       }
+  public long frees()                       { return frees.sum();                           }
+  public long liveAllocations()             { return liveAllocations.get();                 }
+  public long liveBytes()                   { return liveBytes.get();                       }
+  public long peakBytes()                   { return peakBytes.get();                       }
+  public int  sampleInterval()              { return interval;                              }
+
+  private long totalAllocations(){
+    var total = 0L;
+    for(var count : allocations) total += count.sum();
+    return total;
+  }
+
+  private void commitTotals(){
+    var event = new TotalsEvent();
+    event.liveBytes       = liveBytes();
+    event.peakBytes       = peakBytes();
+    event.liveAllocations = liveAllocations();
+    event.allocations     = totalAllocations();
+    event.frees           = frees();
+    event.commit();
+  }
+
+  private void commitStacks(){
+    for(var peak : stackPeaks()){
+      var event = new StackEvent();
+      event.thread = peak.thread;
+      event.size   = peak.size;
+      event.peak   = peak.peak;
+      event.commit();
+    }
+  }
+
+  /**
+   * The live and peak bytes, the totals per category, the top call sites and the stack peaks. Multiple lines
+   * @param topSites how many call sites to list
+   */
+  public String report(int topSites){
+    var text = new StringBuilder();
+    text.append(String.format("Native memory: %d live allocations, %.2f MB live, %.2f MB peak, %d frees%n", liveAllocations(), liveBytes() / 1e6, peakBytes() / 1e6, frees()));
+
+    for(var category : Category.values()){
+      text.append(String.format("  %-8s %8d allocations, %10.2f MB%n", category.name().toLowerCase(), allocations(category), bytes(category) / 1e6));
+    }
+
+    var top = sites();
+    text.append("  call sites, sampled 1 in " + interval + ":\n");
+    for(var site : top.subList(0, Math.min(topSites, top.size()))){
+      text.append(String.format("    %10.2f KB %8d x %-8s %s%n", site.bytes / 1e3, site.allocations, site.category.name().toLowerCase(), site.site));
+    }
+
+    text.append("  MemoryStack high water:\n");
+    for(var peak : stackPeaks()){
+      text.append(String.format("    %6d of %6d bytes  %s%s%n", peak.peak, peak.size, peak.thread, peak.alive ? "" : " (ended)"));
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,259 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * Records the draws of a render pass on multiple threads.
+ *
+ * The draw list is split into more chunks than there are workers, and the chunks are recorded by a work stealing pool, so a slow chunk doesn't
+ * hold up the others. Every chunk is recorded into its own secondary cmdBuffer, which the primary cmdBuffer then executes.
+ * Command pools are externally synchronized, so every thread that records owns a pool per frame slot. The pools are reset as a whole
+ * at the start of the slot's next frame, which is cheaper than resetting single cmdBuffers.
+ *
+ * Secondary cmdBuffers inherit the render pass, but no state: each chunk has to bind its pipeline and set its dynamic state itself.
+ */
+public class ParallelRecorder {
+
+  /**
+   * Records a chunk of the draw list. Called concurrently from the worker threads, so it must only read shared state
+   */
+  public interface ChunkRecorder {
+    /**
+     * @param cmd a begun secondary cmdBuffer inside the render pass
+     * @param slot the frame slot index
+     * @param first the index of the first draw of the chunk
+     * @param count the number of draws in the chunk
+     */
+    void record(VkCommandBuffer cmd, int slot, int first, int count);
+  }
+
+  //the pools of one recording thread, one per frame slot. Cmdbuffers are allocated on demand and reused after the pool reset
+  private class ThreadPools {
+    long[]                      pools   = new long[slots];
+    List<List<VkCommandBuffer>> buffers = new ArrayList<>();
+    int[]                       used    = new int[slots];
+
+    ThreadPools(){
+      for(int i = 0; i < slots; i++){
+        pools[i] = createPool();
+        buffers.add(new ArrayList<>());
+      }
+    }
+
+    VkCommandBuffer next(int slot){
+      var slotBuffers = buffers.get(slot);
+      if(used[slot] == slotBuffers.size()) slotBuffers.add(allocate(pools[slot]));
+      return slotBuffers.get(used[slot]++);
+    }
+  }
+
+  @SuppressWarnings("serial") //never serialized
+  private class Chunk extends RecursiveAction {
+    int slot, index, first, count;
+
+    @Override
+    protected void compute(){
+      var cmd = threadPools.get().next(slot);
+      check(vkBeginCommandBuffer(cmd, beginInfos[slot]), "begin secondary");
+      recorder.record(cmd, slot, first, count);
+      check(vkEndCommandBuffer(cmd), "end secondary");
+
+      secondaries[slot].put(index, cmd); //distinct index per chunk, the join publishes it to the render thread
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private class Frame extends RecursiveAction {
+    int slot;
+
+    @Override
+    protected void compute(){
+      invokeAll(chunks[slot]);
+    }
+  }
+
+  private VkDevice      device;
+  private int           family;
+  private int           slots;
+  private ChunkRecorder recorder;
+  private ForkJoinPool  workers;
+
+  private ThreadLocal<ThreadPools> threadPools = ThreadLocal.withInitial(this::registerThread);
+  private List<ThreadPools>        allPools    = new ArrayList<>(); //guarded by itself. Pools of threads the ForkJoinPool retired stay until dispose
+
+  //per slot, built once. The tasks are reinitialized instead of recreated every frame
+  private Chunk[][]                           chunks;
+  private Frame[]                             frames;
+  private PointerBuffer[]                     secondaries;
+  private VkCommandBufferInheritanceInfo[]    inheritance;
+  private VkCommandBufferBeginInfo[]          beginInfos;
+
+  //with dynamic rendering the secondaries inherit the attachment formats instead of a render pass
+  private VkCommandBufferInheritanceRenderingInfo renderingInheritance;
+  private IntBuffer                               colorFormats;
+
+  /**
+   * @param dev the logical device
+   * @param queueFamily the family the primary cmdBuffers are submitted to
+   * @param frameSlots the amount of frames in flight
+   * @param workerCount the number of recording threads
+   * @param renderPass the render pass the secondaries are executed in, subpass 0. VK_NULL_HANDLE with dynamic rendering
+   * @param colorFormat the format of the color attachment, only used with dynamic rendering
+   * @param drawCount the number of draws in the draw list
+   * @param inheritedStatistics the pipeline statistics of a query active in the primary while it executes the secondaries, 0 if there is none.
+   *                            Non-zero requires the inheritedQueries feature
+   * @param chunkRecorder records the chunks
+   */
+  public ParallelRecorder(VkDevice dev, int queueFamily, int frameSlots, int workerCount, long renderPass, int colorFormat, int drawCount, int inheritedStatistics, ChunkRecorder chunkRecorder){
+    device   = dev;
+    family   = queueFamily;
+    slots    = frameSlots;
+    recorder = chunkRecorder;
+    workers  = new ForkJoinPool(workerCount);
+
+    //a few chunks per worker, so the stealing can balance uneven chunks. But not so small that the per cmdBuffer overhead dominates
+    var chunkCount = Math.max(1, Math.min(workerCount * 4, drawCount / 16));
+
+    chunks      = new Chunk[slots][chunkCount];
+    frames      = new Frame[slots];
+    secondaries = new PointerBuffer[slots];
+    inheritance = new VkCommandBufferInheritanceInfo[slots];
+    beginInfos  = new VkCommandBufferBeginInfo[slots];
+
+    if(renderPass == VK_NULL_HANDLE){
+      colorFormats = MemoryUtil.memAllocInt(1).put(0, colorFormat);
+      renderingInheritance = VkCommandBufferInheritanceRenderingInfo.calloc()
+        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_RENDERING_INFO)
+        .pColorAttachmentFormats(colorFormats)
+        .rasterizationSamples(VK_SAMPLE_COUNT_1_BIT);
+    }
+
+    for(int s = 0; s < slots; s++){
+      for(int c = 0; c < chunkCount; c++){
+        var chunk = chunks[s][c] = new Chunk();
+        chunk.slot  = s;
+        chunk.index = c;
+        chunk.first = (int)((long)drawCount * c / chunkCount);
+        chunk.count = (int)((long)drawCount * (c + 1) / chunkCount) - chunk.first;
+      }
+
+      frames[s] = new Frame();
+      frames[s].slot = s;
+      secondaries[s] = MemoryUtil.memAllocPointer(chunkCount);
+
+      inheritance[s] = VkCommandBufferInheritanceInfo.calloc()
+        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_INFO)
+        .renderPass(renderPass)
+        .subpass(0)
+        .pipelineStatistics(inheritedStatistics);
+      if(renderingInheritance != null) inheritance[s].pNext(renderingInheritance.address());
+
+      beginInfos[s] = VkCommandBufferBeginInfo.calloc()
+        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+        .flags(VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT | VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT)
+        .pInheritanceInfo(inheritance[s]);
+    }
+
+    System.out.println("Parallel recording: " + workerCount + " workers, " + chunkCount + " chunks of ~" + drawCount / chunkCount + " draws");
+  }
+
+  private ThreadPools registerThread(){
+    NativeMemoryStats.watchStack(); //the workers record on their own MemoryStacks
+
+    var pools = new ThreadPools();
+    synchronized(allPools){
+      allPools.add(pools);
+    }
+    return pools;
+  }
+
+  private long createPool(){
+    try(var stack = MemoryStack.stackPush()){
+      var createInfo = VkCommandPoolCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+        .flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT) //no per cmdBuffer reset, the whole pool is reset per frame
+        .queueFamilyIndex(family);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreateCommandPool(device, createInfo, null, ptr), "command pool");
+      return ptr.get(0);
+    }
+  }
+
+  private VkCommandBuffer allocate(long pool){
+    try(var stack = MemoryStack.stackPush()){
+      var allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+        .commandPool(pool)
+        .level(VK_COMMAND_BUFFER_LEVEL_SECONDARY)
+        .commandBufferCount(1);
+
+      var ptr = stack.mallocPointer(1);
+      check(vkAllocateCommandBuffers(device, allocInfo, ptr), "secondary cmdBuffer");
+      return new VkCommandBuffer(ptr.get(0), device);
+    }
+  }
+
+  /**
+   * Records the whole draw list in parallel and executes it from the primary cmdBuffer. Returns once everything is recorded.
+   * The primary must be inside the render pass, begun with VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS (or VK_RENDERING_CONTENTS_SECONDARY_COMMAND_BUFFERS_BIT
+   * with dynamic rendering), and the slot's previous frame must be finished
+   * @param primary the primary cmdBuffer of the frame
+   * @param slot the frame slot index
+   * @param framebuffer the framebuffer the render pass renders into, VK_NULL_HANDLE with dynamic rendering
+   */
+  public void record(VkCommandBuffer primary, int slot, long framebuffer){
+    //no thread is recording right now, so the pools can be reset from here
+    synchronized(allPools){
+      for(int i = 0; i < allPools.size(); i++){ //no iterator, the frame loop shouldn't allocate
+        var pools = allPools.get(i);
+        check(vkResetCommandPool(device, pools.pools[slot], 0), "pool reset");
+        pools.used[slot] = 0;
+      }
+    }
+
+    inheritance[slot].framebuffer(framebuffer); //optional, but lets the driver optimize the secondaries for the target
+
+    for(var chunk : chunks[slot]) chunk.reinitialize();
+    frames[slot].reinitialize();
+    workers.invoke(frames[slot]);
+
+    vkCmdExecuteCommands(primary, secondaries[slot]);
+  }
+
+  private static void check(int result, String what){
+    if(result != VK_SUCCESS) throw new RuntimeException("Parallel recorder: " + what + " failed with " + result);
+  }
+
+  /**
+   * Stops the workers and destroys all pools. The device must be idle
+   */
+  public void dispose(){
+    workers.shutdown();
+
+    synchronized(allPools){
+      for(var pools : allPools){
+        for(var pool : pools.pools) vkDestroyCommandPool(device, pool, null); //frees the cmdBuffers
+      }
+    }
+
+    for(int s = 0; s < slots; s++){
+      MemoryUtil.memFree(secondaries[s]);
+      inheritance[s].free();
+      beginInfos[s].free();
+    }
+    if(renderingInheritance != null){
+      renderingInheritance.free();
+      MemoryUtil.memFree(colorFormats);
+    }
+  }
+}
@@ -0,0 +1,254 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * Particles simulated by a compute shader (particles.csh) and drawn as points straight from the simulation's output.
+ *
+ * Every frame slot owns a particle buffer. The dispatch of a frame reads the buffer of the previous frame and writes the one of its own slot,
+ * which the graphics work of the frame then draws. So a frame never writes what an earlier frame still draws: the slot's buffer was last drawn
+ * by the slot's previous frame, which finished before the slot is reused. The buffers are concurrently shared between the compute and the
+ * graphics family, so no ownership transfers are needed.
+ */
+public class ParticleSystem {
+
+  //struct Particle in particles.csh: vec2 position, vec2 velocity, vec4 color
+  public static final int PARTICLE_SIZE = 8 * Float.BYTES;
+  private static final int WORKGROUP_SIZE = 256;
+
+  private VkDevice device;
+  private int      count;
+  private int      slots;
+
+  private GpuMemory          memory;
+  private GpuMemory.Buffer[] buffers;
+
+  private long   descriptorSetLayout;
+  private long   descriptorPool;
+  private long[] descriptorSets; //per slot: previous slot's buffer as input, own buffer as output
+  private long   pipelineLayout;
+  private long   pipeline;
+
+  private boolean spawned;
+
+  //preallocated, so recording doesn't allocate
+  private ByteBuffer             pushConstants;
+  private VkMemoryBarrier.Buffer computeBarrier;
+  private LongBuffer[]           bindSets;
+  private LongBuffer[]           bindBuffers;
+  private LongBuffer             bindOffsets;
+
+  /**
+   * @param dev the logical device
+   * @param gpuMemory the memory the particle buffers are allocated from
+   * @param computeModule the module of particles.csh
+   * @param pipelineCache the cache to create the compute pipeline with, or NULL
+   * @param particleCount the number of particles
+   * @param frameSlots the amount of frames in flight
+   * @param queueFamilies the families using the buffers, i.e. compute and graphics
+   */
+  public ParticleSystem(VkDevice dev, GpuMemory gpuMemory, long computeModule, long pipelineCache, int particleCount, int frameSlots, int... queueFamilies){
+    device = dev;
+    memory = gpuMemory;
+    count  = particleCount;
+    slots  = frameSlots;
+
+    buffers = new GpuMemory.Buffer[slots];
+    for(int i = 0; i < slots; i++) buffers[i] = memory.createBuffer(GpuMemory.Usage.STORAGE, (long)count * PARTICLE_SIZE, queueFamilies);
+
+    createDescriptors();
+    createPipeline(computeModule, pipelineCache);
+
+    pushConstants  = MemoryUtil.memCalloc(3 * Integer.BYTES); //float deltaTime, uint count, uint spawn
+    computeBarrier = VkMemoryBarrier.calloc(1)
+      .sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+      .srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT)
+      .dstAccessMask(VK_ACCESS_SHADER_READ_BIT);
+
+    bindSets    = new LongBuffer[slots];
+    bindBuffers = new LongBuffer[slots];
+    for(int i = 0; i < slots; i++){
+      bindSets[i]    = MemoryUtil.memAllocLong(1).put(0, descriptorSets[i]);
+      bindBuffers[i] = MemoryUtil.memAllocLong(1).put(0, buffers[i].handle());
+    }
+    bindOffsets = MemoryUtil.memCallocLong(1);
+  }
+
+  private void createDescriptors(){
+    try(var stack = MemoryStack.stackPush()){
+      var bindings = VkDescriptorSetLayoutBinding.calloc(2, stack);
+      for(int i = 0; i < 2; i++){
+        bindings.get(i)
+          .binding(i)
+          .descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+          .descriptorCount(1)
+          .stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+      }
+
+      var layoutInfo = VkDescriptorSetLayoutCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO)
+        .pBindings(bindings);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreateDescriptorSetLayout(device, layoutInfo, null, ptr), "descriptor set layout");
+      descriptorSetLayout = ptr.get(0);
+
+      var poolSizes = VkDescriptorPoolSize.calloc(1, stack)
+        .type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+        .descriptorCount(2 * slots);
+
+      var poolInfo = VkDescriptorPoolCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+        .maxSets(slots)
+        .pPoolSizes(poolSizes);
+
+      check(vkCreateDescriptorPool(device, poolInfo, null, ptr), "descriptor pool");
+      descriptorPool = ptr.get(0);
+
+      var layouts = stack.mallocLong(slots);
+      for(int i = 0; i < slots; i++) layouts.put(i, descriptorSetLayout);
+
+      var allocInfo = VkDescriptorSetAllocateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+        .descriptorPool(descriptorPool)
+        .pSetLayouts(layouts);
+
+      var setPtr = stack.mallocLong(slots);
+      check(vkAllocateDescriptorSets(device, allocInfo, setPtr), "descriptor sets");
+      descriptorSets = new long[slots];
+      setPtr.get(descriptorSets);
+
+      var writes = VkWriteDescriptorSet.calloc(2 * slots, stack);
+      for(int i = 0; i < slots; i++){
+        var input  = VkDescriptorBufferInfo.calloc(1, stack).buffer(buffers[(i + slots - 1) % slots].handle()).offset(0).range(VK_WHOLE_SIZE);
+        var output = VkDescriptorBufferInfo.calloc(1, stack).buffer(buffers[i].handle()).offset(0).range(VK_WHOLE_SIZE);
+
+        writes.get(2 * i)
+          .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+          .dstSet(descriptorSets[i])
+          .dstBinding(0)
+          .descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+          .descriptorCount(1)
+          .pBufferInfo(input);
+
+        writes.get(2 * i + 1)
+          .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+          .dstSet(descriptorSets[i])
+          .dstBinding(1)
+          .descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+          .descriptorCount(1)
+          .pBufferInfo(output);
+      }
+      vkUpdateDescriptorSets(device, writes, null);
+    }
+  }
+
+  private void createPipeline(long computeModule, long pipelineCache){
+    try(var stack = MemoryStack.stackPush()){
+      var pushRange = VkPushConstantRange.calloc(1, stack)
+        .stageFlags(VK_SHADER_STAGE_COMPUTE_BIT)
+        .offset(0)
+        .size(3 * Integer.BYTES);
+
+      var layoutInfo = VkPipelineLayoutCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO)
+        .pSetLayouts(stack.longs(descriptorSetLayout))
+        .pPushConstantRanges(pushRange);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreatePipelineLayout(device, layoutInfo, null, ptr), "pipeline layout");
+      pipelineLayout = ptr.get(0);
+
+      var stage = VkPipelineShaderStageCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
+        .stage(VK_SHADER_STAGE_COMPUTE_BIT)
+        .module(computeModule)
+        .pName(stack.UTF8("main"));
+
+      var createInfo = VkComputePipelineCreateInfo.calloc(1, stack)
+        .sType(VK_STRUCTURE_TYPE_COMPUTE_PIPELINE_CREATE_INFO)
+        .stage(stage)
+        .layout(pipelineLayout)
+        .basePipelineHandle(VK_NULL_HANDLE)
+        .basePipelineIndex(-1);
+
+      check(vkCreateComputePipelines(device, pipelineCache, createInfo, null, ptr), "compute pipeline");
+      pipeline = ptr.get(0);
+    }
+  }
+
+  /**
+   * The layout of the particle buffers as vertex input: position and color, the velocity is skipped
+   */
+  public static VkVertexInputBindingDescription.Buffer bindingDescriptions(MemoryStack stack){
+    return VkVertexInputBindingDescription.calloc(1, stack)
+      .binding(0)
+      .stride(PARTICLE_SIZE)
+      .inputRate(VK_VERTEX_INPUT_RATE_VERTEX);
+  }
+
+  public static VkVertexInputAttributeDescription.Buffer attributeDescriptions(MemoryStack stack){
+    var attributes = VkVertexInputAttributeDescription.calloc(2, stack);
+    attributes.get(0).binding(0).location(0).format(VK_FORMAT_R32G32_SFLOAT   ).offset(0);
+    attributes.get(1).binding(0).location(1).format(VK_FORMAT_R32G32B32_SFLOAT).offset(4 * Float.BYTES);
+    return attributes;
+  }
+
+  /**
+   * Records the simulation step of a frame into a compute cmdBuffer. The first step spawns the particles
+   * @param cmd a cmdBuffer of the compute family
+   * @param slot the frame slot index
+   * @param deltaTime the simulated time in seconds
+   */
+  public void simulate(VkCommandBuffer cmd, int slot, float deltaTime){
+    //the input was written by the previous frame's dispatch on this queue
+    vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, computeBarrier, null, null);
+
+    pushConstants.putFloat(0, deltaTime).putInt(4, count).putInt(8, spawned ? 0 : 1);
+    spawned = true;
+
+    vkCmdBindPipeline(cmd, VK_PIPELINE_BIND_POINT_COMPUTE, pipeline);
+    vkCmdBindDescriptorSets(cmd, VK_PIPELINE_BIND_POINT_COMPUTE, pipelineLayout, 0, bindSets[slot], null);
+    vkCmdPushConstants(cmd, pipelineLayout, VK_SHADER_STAGE_COMPUTE_BIT, 0, pushConstants);
+    vkCmdDispatch(cmd, (count + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE, 1, 1);
+  }
+
+  /**
+   * Records the draw of the slot's particles. Needs a bound point list pipeline with this vertex layout
+   */
+  public void draw(VkCommandBuffer cmd, int slot){
+    vkCmdBindVertexBuffers(cmd, 0, bindBuffers[slot], bindOffsets);
+    vkCmdDraw(cmd, count, 1, 0, 0);
+  }
+
+  public int count(){ return count; }
+
+  private static void check(int result, String what){
+    if(result != VK_SUCCESS) throw new RuntimeException("Particle system: " + what + " failed with " + result);
+  }
+
+  /**
+   * The device must be idle
+   */
+  public void dispose(){
+    vkDestroyPipeline(device, pipeline, null);
+    vkDestroyPipelineLayout(device, pipelineLayout, null);
+    vkDestroyDescriptorPool(device, descriptorPool, null); //frees the sets
+    vkDestroyDescriptorSetLayout(device, descriptorSetLayout, null);
+
+    for(var buffer : buffers) memory.destroyBuffer(buffer);
+
+    MemoryUtil.memFree(pushConstants);
+    computeBarrier.free();
+    for(int i = 0; i < slots; i++){
+      MemoryUtil.memFree(bindSets[i]);
+      MemoryUtil.memFree(bindBuffers[i]);
+    }
+    MemoryUtil.memFree(bindOffsets);
+  }
+}
@@ -0,0 +1,166 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkPipelineCacheCreateInfo;
+
+/**
+ * A VkPipelineCache that survives restarts. The blob is loaded at creation and written back on {@link #save()}.
+ * Drivers are supposed to reject foreign data themselves, but not all of them do so gracefully, so the header is validated
+ * against the physical device before the data is handed to the driver.
+ */
+public class PipelineCache {
+
+  //VkPipelineCacheHeaderVersionOne: uint32 headerSize, uint32 headerVersion, uint32 vendorID, uint32 deviceID, uint8 pipelineCacheUUID[VK_UUID_SIZE]
+  private static final int HEADER_SIZE = 16 + VK_UUID_SIZE;
+
+  private VkDevice device;
+  private Path     file;
+  private long     handle;
+  private boolean  warm;
+
+  public PipelineCache(VkDevice dev, VkPhysicalDevice physicalDevice, Path path){
+    device = dev;
+    file   = path;
+
+    var initialData = readValidated(physicalDevice);
+    handle = create(initialData);
+
+    //the driver may still refuse data that passed the header check (e.g. after a driver update that kept the UUID). Start empty in that case
+    if(handle == VK_NULL_HANDLE && initialData != null){
+      System.out.println("Driver rejected pipeline cache " + file + ", starting empty");
+      initialData = null;
+      handle = create(null);
+    }
+    if(handle == VK_NULL_HANDLE) throw new RuntimeException("Failed to create pipeline cache");
+
+    warm = initialData != null;
+    if(initialData != null) MemoryUtil.memFree(initialData);
+
+    System.out.println("Pipeline cache " + (warm ? "loaded from " + file : "created empty"));
+  }
+
+  private long create(ByteBuffer initialData){
+    try(var stack = MemoryStack.stackPush()){
+      var createInfo = VkPipelineCacheCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO)
+        .pInitialData(initialData); //null means an empty cache
+
+      var ptr = stack.mallocLong(1);
+      if(vkCreatePipelineCache(device, createInfo, null, ptr) != VK_SUCCESS) return VK_NULL_HANDLE;
+      return ptr.get();
+    }
+  }
+
+  //returns the file contents, or null if there is no file or it was written by a different device / driver
+  private ByteBuffer readValidated(VkPhysicalDevice physicalDevice){
+    if(!Files.exists(file)) return null;
+
+    byte[] bytes;
+    try{
+      bytes = Files.readAllBytes(file);
+    }catch(IOException x){
+      System.out.println("Failed to read pipeline cache " + file + ": " + x.getMessage());
+      return null;
+    }
+
+    if(bytes.length < HEADER_SIZE) return discard("truncated header");
+
+    //the header fields are written in the native byte order of the device. Vulkan only runs on little endian hosts in practice
+    var header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    var headerSize    = header.getInt(0);
+    var headerVersion = header.getInt(4);
+    var vendorID      = header.getInt(8);
+    var deviceID      = header.getInt(12);
+
+    if(headerSize < HEADER_SIZE || headerSize > bytes.length)          return discard("invalid header size " + headerSize);
+    if(headerVersion != VK_PIPELINE_CACHE_HEADER_VERSION_ONE)          return discard("unknown header version " + headerVersion);
+
+    try(var stack = MemoryStack.stackPush()){
+      var properties = VkPhysicalDeviceProperties.calloc(stack);
+      vkGetPhysicalDeviceProperties(physicalDevice, properties);
+
+      if(vendorID != properties.vendorID() || deviceID != properties.deviceID()) return discard("written by a different device");
+
+      var uuid = properties.pipelineCacheUUID();
+      for(int i = 0; i < VK_UUID_SIZE; i++){
+        if(uuid.get(i) != bytes[16 + i]) return discard("written by a different driver version");
+      }
+    }
+
+    var data = MemoryUtil.memAlloc(bytes.length);
+    data.put(bytes).flip();
+    return data;
+  }
+
+  private ByteBuffer discard(String reason){
+    System.out.println("Ignoring pipeline cache " + file + ": " + reason);
+    return null;
+  }
+
+  /**
+   * Creates an additional empty cache, e.g. for a worker thread creating pipelines concurrently. Pipeline caches are externally synchronized,
+   * so each thread needs its own, which is then folded back with {@link #merge(long...)}
+   * @return the handle of the new cache
+   */
+  public long createChild(){
+    var child = create(null);
+    if(child == VK_NULL_HANDLE) throw new RuntimeException("Failed to create pipeline cache");
+    return child;
+  }
+
+  /**
+   * Merges the given caches into this one and destroys them
+   * @param children caches obtained from {@link #createChild()}
+   */
+  public void merge(long... children){
+    if(children.length == 0) return;
+
+    try(var stack = MemoryStack.stackPush()){
+      var result = vkMergePipelineCaches(device, handle, stack.longs(children));
+      if(result != VK_SUCCESS) System.out.println("Failed to merge pipeline caches: " + result); //the pipelines are valid regardless, only the cache misses out
+    }
+
+    for(var child : children) vkDestroyPipelineCache(device, child, null);
+  }
+
+  /**
+   * Writes the cache back to disk, replacing the previous file atomically. A failure only costs the next start its warm cache
+   */
+  public void save(){
+    try(var stack = MemoryStack.stackPush()){
+      var sizePtr = stack.mallocPointer(1);
+      if(vkGetPipelineCacheData(device, handle, sizePtr, null) != VK_SUCCESS) return;
+
+      var data = MemoryUtil.memAlloc((int)sizePtr.get(0));
+      try{
+        if(vkGetPipelineCacheData(device, handle, sizePtr, data) != VK_SUCCESS) return;
+
+        data.limit((int)sizePtr.get(0));
+        FileUtil.writeAtomic(file, data);
+
+        System.out.println("Pipeline cache written (" + data.limit() + " bytes)");
+      }catch(IOException x){
+        System.out.println("Failed to write pipeline cache " + file + ": " + x.getMessage());
+      }finally{
+        MemoryUtil.memFree(data);
+      }
+    }
+  }
+
+  public void dispose(){
+    vkDestroyPipelineCache(device, handle, null);
+  }
+
+  public long    handle(){ return handle; }
+  public boolean warm()  { return warm;   }
+}
@@ -0,0 +1,41 @@
+import org.lwjgl.system.Configuration;
+
+/**
+ * Measures how the host recording time of a frame scales with the number of recording threads.
+ * Renders the same headless draw list once inline and then with 1, 2, 4, ... workers up to the core count, and compares the frame CPU times.
+ *
+ * Args: [draws] [frames]
+ */
+public class RecordingBenchmark {
+  public static void main(String[] args){
+    Configuration.MEMORY_ALLOCATOR.set("rpmalloc");
+
+    var draws  = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    var frames = args.length > 1 ? Long.parseLong(args[1]) : 500;
+    var cores  = Runtime.getRuntime().availableProcessors();
+
+    var results = new StringBuilder();
+    long inlineP50 = 0;
+
+    for(int workers = 0; workers <= cores; workers = workers == 0 ? 1 : workers * 2){
+      var app = new Application(1920, 1080, false, Application.MIN_FRAMES_IN_FLIGHT);
+      app.useHeadless(true);
+      app.setFrameLimit(frames);
+      app.setDrawCount(draws);
+      app.useParallelRecording(workers);
+
+      app.init();
+      app.run();
+      var times = app.cpuFrameTimes();
+      var p50 = times.percentile(50);
+      var p99 = times.percentile(99);
+      app.dispose();
+
+      if(workers == 0) inlineP50 = p50;
+      results.append(String.format("%-8s p50 %7.3fms  p99 %7.3fms  speedup %.2fx%n", workers == 0 ? "inline" : workers + " thr", p50 / 1e6, p99 / 1e6, (double)inlineP50 / p50));
+    }
+
+    System.out.println("Recording " + draws + " draws, " + frames + " frames per run, " + cores + " cores:");
+    System.out.print(results);
+  }
+}
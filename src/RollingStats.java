@@ -0,0 +1,67 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the last n samples of some measurement (e.g. frame times in ns) and answers percentile queries over them.
+ * Adding a sample never allocates. Not thread safe, each producer should own its instance
+ */
+public class RollingStats {
+
+  private long[] samples;
+  private long[] sorted; //scratch space for the percentile queries, so a query doesn't allocate either
+  private int    next;
+  private int    size;
+  private long   total;  //number of samples ever added
+  private long   max;
+
+  public RollingStats(int capacity){
+    samples = new long[capacity];
+    sorted  = new long[capacity];
+  }
+
+  public void add(long sample){
+    samples[next] = sample;
+    next = (next + 1) % samples.length;
+    size = Math.min(size + 1, samples.length);
+
+    total++;
+    max = Math.max(max, sample);
+  }
+
+  /**
+   * @param p the percentile in [0, 100]
+   * @return the sample at the given percentile of the current window, or 0 if there are no samples yet
+   */
+  public long percentile(double p){
+    if(size == 0) return 0;
+
+    System.arraycopy(samples, 0, sorted, 0, size);
+    Arrays.sort(sorted, 0, size);
+
+    var idx = (int)Math.ceil(p / 100.0 * size) - 1;
+    return sorted[Math.max(0, Math.min(size - 1, idx))];
+  }
+
+  public long mean(){
+    if(size == 0) return 0;
+
+    long sum = 0;
+    for(int i = 0; i < size; i++) sum += samples[i];
+    return sum / size;
+  }
+
+  public int  size() { return size;  }
+  public long total(){ return total; }
+
+  /**
+   * @return the largest sample since creation, not just inside the current window
+   */
+  public long max()  { return max;   }
+
+  /**
+   * Formats p50/p90/p99/max, assuming the samples are in nanoseconds
+   * @return a one line summary in milliseconds
+   */
+  public String summaryMs(){
+    return String.format("p50 %.3fms, p90 %.3fms, p99 %.3fms, max %.3fms (%d samples)", percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, max / 1e6, total);
+  }
+}
@@ -0,0 +1,76 @@
+import java.lang.management.ManagementFactory;
+
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Measures the scene store: first the update and pack throughput of the store alone, then headless frames that animate a growing
+ * fraction of the instances, which are uploaded in dirty slices and drawn instanced. Both report the java heap allocated, which should be 0.
+ *
+ * Args: [instances] [frames]
+ */
+public class SceneBenchmark {
+  public static void main(String[] args){
+    Configuration.MEMORY_ALLOCATOR.set("rpmalloc");
+
+    var instances = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    var frames    = args.length > 1 ? Long.parseLong(args[1]) : 300;
+
+    measureStore(instances);
+
+    var results = new StringBuilder();
+    for(var fraction : new float[]{0.0f, 0.01f, 0.1f, 1.0f}){
+      var app = new Application(1920, 1080, false, Application.MIN_FRAMES_IN_FLIGHT);
+      app.useHeadless(true);
+      app.setFrameLimit(frames);
+      app.setDrawCount(instances);
+      app.useInstancing(true);
+      app.setSceneAnimation(fraction);
+
+      app.init();
+      app.run();
+      var cpu = app.cpuFrameTimes();
+      results.append(String.format("%5.1f%% animated  cpu p50 %8.3fms  p99 %8.3fms  upload %8.2f MB/frame  heap %.1f B/frame%n", fraction * 100,
+        cpu.percentile(50) / 1e6, cpu.percentile(99) / 1e6, app.sceneBytesUploaded() / 1e6 / frames, app.heapBytesPerFrame()));
+      app.dispose();
+    }
+
+    System.out.println(instances + " instances, " + frames + " frames per run:");
+    System.out.print(results);
+  }
+
+  //updates every instance and packs the whole store, like a frame that changes everything
+  private static void measureStore(int instances){
+    var threads   = ManagementFactory.getThreadMXBean();
+    var allocBean = threads instanceof com.sun.management.ThreadMXBean bean && bean.isThreadAllocatedMemorySupported() ? bean : null;
+
+    var store  = new SceneStore(instances);
+    var packed = MemoryUtil.memAlloc(instances * SceneStore.INSTANCE_SIZE);
+    for(int i = 0; i < instances; i++) store.add(i, i, 1, 1, 0xFFFFFFFF, 0);
+
+    var rounds = 20;
+    long updateNanos = 0, packNanos = 0, allocated = 0;
+    for(int round = -5; round < rounds; round++){ //the first rounds warm up the jit
+      var allocStart = allocBean != null ? allocBean.getCurrentThreadAllocatedBytes() : 0;
+
+      var start = System.nanoTime();
+      for(int i = 0; i < instances; i++) store.setPosition(i, store.x(i) + 1, store.y(i) - 1);
+      var updated = System.nanoTime();
+      store.pack(MemoryUtil.memAddress(packed), 0, instances);
+      for(int chunk = 0; chunk < store.chunks(); chunk++) store.clearDirty(chunk);
+      var end = System.nanoTime();
+
+      if(round < 0) continue;
+      updateNanos += updated - start;
+      packNanos   += end - updated;
+      if(allocBean != null) allocated += allocBean.getCurrentThreadAllocatedBytes() - allocStart;
+    }
+
+    MemoryUtil.memFree(packed);
+    store.dispose();
+
+    var bytes = (double)instances * SceneStore.INSTANCE_SIZE * rounds;
+    System.out.println(String.format("Store of %d instances: update %.2f ns/instance, pack %.2f GB/s, heap %d B over %d rounds",
+      instances, (double)updateNanos / instances / rounds, bytes / packNanos, allocated, rounds));
+  }
+}
@@ -0,0 +1,127 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * The device local instance buffer of a {@link SceneStore}, read by the vertex shader (and the culling pass) by instance index.
+ *
+ * Every frame the dirty chunks of the store are packed into the frame slot's staging buffer and copied over with one vkCmdCopyBuffer,
+ * merged into as few regions as possible. The copy is recorded into the frame's graphics cmdBuffer before anything reads the instances,
+ * so it is ordered after the reads of earlier frames by a barrier, and the buffer needs no second copy.
+ * Chunks that don't fit into the slot's staging budget stay dirty and are uploaded with the next frame.
+ */
+public class SceneBuffer {
+
+  private GpuMemory          memory;
+  private SceneStore         store;
+  private GpuMemory.Buffer   instances;
+  private GpuMemory.Buffer[] staging;
+
+  //preallocated, so recording doesn't allocate
+  private VkBufferCopy.Buffer    regions;
+  private VkMemoryBarrier.Buffer readBarrier;
+  private VkMemoryBarrier.Buffer writeBarrier;
+
+  private long bytesUploaded;
+
+  /**
+   * @param gpuMemory the memory the buffers are allocated from
+   * @param sceneStore the store to upload, its capacity decides the buffer size
+   * @param uploads uploads the initial contents, which makes the store clean. They must be finished before the first frame
+   * @param frameSlots the amount of frames in flight
+   * @param budget the bytes of instances uploaded per frame at most
+   */
+  public SceneBuffer(GpuMemory gpuMemory, SceneStore sceneStore, UploadEngine uploads, int frameSlots, long budget){
+    memory = gpuMemory;
+    store  = sceneStore;
+
+    var bytes = (long)store.capacity() * SceneStore.INSTANCE_SIZE;
+    instances = memory.createBuffer(GpuMemory.Usage.STORAGE, bytes);
+
+    var initial = MemoryUtil.memCalloc((int)bytes); //unused instances are uploaded as zeros
+    store.pack(MemoryUtil.memAddress(initial), 0, store.count());
+    uploads.uploadBuffer(instances, 0, initial); //copied into the staging ring right away
+    MemoryUtil.memFree(initial);
+    for(int chunk = 0; chunk < store.chunks(); chunk++) store.clearDirty(chunk);
+
+    //whole chunks, so a chunk is never split between two frames
+    var chunkBytes = (long)SceneStore.CHUNK_SIZE * SceneStore.INSTANCE_SIZE;
+    var slotBytes  = Math.max(chunkBytes, Math.min(bytes, budget) / chunkBytes * chunkBytes);
+    staging = new GpuMemory.Buffer[frameSlots];
+    for(int i = 0; i < frameSlots; i++) staging[i] = memory.createBuffer(GpuMemory.Usage.STAGING, slotBytes);
+
+    regions = VkBufferCopy.calloc(store.chunks());
+
+    readBarrier = VkMemoryBarrier.calloc(1) //execution only, earlier frames' reads before the copy overwrites
+      .sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+    writeBarrier = VkMemoryBarrier.calloc(1)
+      .sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+      .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+      .dstAccessMask(VK_ACCESS_SHADER_READ_BIT);
+  }
+
+  /**
+   * Uploads the dirty chunks into the instance buffer. Has to be outside of a render pass, before the slot's draws.
+   * The store must not change until the frame is submitted
+   * @param cmd a cmdBuffer of the graphics family
+   * @param slot the frame slot index, its previous frame has finished
+   * @return the bytes uploaded
+   */
+  public long record(VkCommandBuffer cmd, int slot){
+    if(store.dirtyChunks() == 0) return 0;
+
+    var buffer   = staging[slot];
+    var capacity = buffer.size();
+    var used     = 0L;
+    var count    = 0;
+    var last     = -2; //the previous chunk, to merge neighbours into one region
+
+    for(int chunk = store.nextDirtyChunk(0); chunk >= 0; chunk = store.nextDirtyChunk(chunk + 1)){
+      var first     = chunk << SceneStore.CHUNK_SHIFT;
+      var instances = Math.min(SceneStore.CHUNK_SIZE, store.count() - first);
+      var bytes     = (long)Math.max(0, instances) * SceneStore.INSTANCE_SIZE;
+      if(used + bytes > capacity) break; //over budget, the rest stays dirty
+
+      store.pack(buffer.mapped() + used, first, instances);
+      store.clearDirty(chunk);
+
+      if(bytes > 0){
+        if(chunk == last + 1){
+          var region = regions.get(count - 1);
+          region.size(region.size() + bytes);
+        }else{
+          regions.get(count++).srcOffset(used).dstOffset((long)first * SceneStore.INSTANCE_SIZE).size(bytes);
+        }
+        last = chunk;
+      }
+      used += bytes;
+    }
+
+    if(count == 0) return 0;
+    memory.flush(buffer, 0, used);
+
+    vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_VERTEX_SHADER_BIT | VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, readBarrier, null, null);
+    vkCmdCopyBuffer(cmd, buffer.handle(), instances.handle(), regions.limit(count));
+    regions.limit(regions.capacity());
+    vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_VERTEX_SHADER_BIT | VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, writeBarrier, null, null);
+
+    bytesUploaded += used;
+    return used;
+  }
+
+  public GpuMemory.Buffer instances()    { return instances;     }
+  public long             bytesUploaded(){ return bytesUploaded; }
+
+  /**
+   * The device must no longer use the buffers
+   */
+  public void dispose(){
+    memory.destroyBuffer(instances);
+    for(var buffer : staging) memory.destroyBuffer(buffer);
+
+    regions.free();
+    readBarrier.free();
+    writeBarrier.free();
+  }
+}
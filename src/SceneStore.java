@@ -0,0 +1,188 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * The instances of the scene, as struct-of-arrays columns off the java heap: position, scale, color and flags, each in its own primitive
+ * column allocated through MemoryUtil. A loop touching one attribute only streams through that attribute's column, and there are no objects
+ * per instance for the GC to trace.
+ *
+ * Changes are tracked per chunk of {@link #CHUNK_SIZE} instances in a bitset, so only the changed slices have to be uploaded. Setters and
+ * the dirty tracking don't allocate. Not thread safe, the scene is updated by the render thread.
+ */
+public class SceneStore {
+
+  public static final int CHUNK_SHIFT = 10;
+  public static final int CHUNK_SIZE  = 1 << CHUNK_SHIFT;
+
+  public static final int FLAG_HIDDEN = 1;
+
+  //struct Instance in vert.vsh and cull.csh: vec4 transform (xy position, zw scale), uint color (rgba8), uint flags, uint pad[2]
+  public static final int INSTANCE_SIZE = 8 * Integer.BYTES;
+
+  private int capacity;
+  private int count;
+
+  private FloatBuffer x;
+  private FloatBuffer y;
+  private FloatBuffer scaleX;
+  private FloatBuffer scaleY;
+  private IntBuffer   color;
+  private IntBuffer   flags;
+
+  private long[] dirty; //one bit per chunk
+  private int    dirtyChunks;
+
+  /**
+   * @param instances the maximum number of instances
+   */
+  public SceneStore(int instances){
+    capacity = instances;
+
+    x      = MemoryUtil.memAllocFloat(capacity);
+    y      = MemoryUtil.memAllocFloat(capacity);
+    scaleX = MemoryUtil.memAllocFloat(capacity);
+    scaleY = MemoryUtil.memAllocFloat(capacity);
+    color  = MemoryUtil.memAllocInt(capacity);
+    flags  = MemoryUtil.memAllocInt(capacity);
+
+    dirty = new long[(chunks() + 63) >> 6];
+  }
+
+  /**
+   * @param rgba the color packed as in unpackUnorm4x8, red in the lowest byte
+   * @return the index of the new instance
+   */
+  public int add(float px, float py, float sx, float sy, int rgba, int instanceFlags){
+    if(count == capacity) throw new RuntimeException("Scene store: all " + capacity + " instances are in use");
+
+    var i = count++;
+    x.put(i, px);
+    y.put(i, py);
+    scaleX.put(i, sx);
+    scaleY.put(i, sy);
+    color.put(i, rgba);
+    flags.put(i, instanceFlags);
+    markDirty(i);
+    return i;
+  }
+
+  public void setPosition(int i, float px, float py){
+    x.put(i, px);
+    y.put(i, py);
+    markDirty(i);
+  }
+
+  public void setScale(int i, float sx, float sy){
+    scaleX.put(i, sx);
+    scaleY.put(i, sy);
+    markDirty(i);
+  }
+
+  public void setColor(int i, int rgba){
+    color.put(i, rgba);
+    markDirty(i);
+  }
+
+  public void setFlags(int i, int instanceFlags){
+    flags.put(i, instanceFlags);
+    markDirty(i);
+  }
+
+  public float x(int i)     { return x.get(i);      }
+  public float y(int i)     { return y.get(i);      }
+  public float scaleX(int i){ return scaleX.get(i); }
+  public float scaleY(int i){ return scaleY.get(i); }
+  public int   color(int i) { return color.get(i);  }
+  public int   flags(int i) { return flags.get(i);  }
+
+  public void markDirty(int i){
+    var chunk = i >> CHUNK_SHIFT;
+    var bit   = 1L << chunk;
+    if((dirty[chunk >> 6] & bit) == 0){
+      dirty[chunk >> 6] |= bit;
+      dirtyChunks++;
+    }
+  }
+
+  /**
+   * Marks a range as changed, e.g. after writing a column directly
+   */
+  public void markDirty(int first, int instances){
+    if(instances <= 0) return;
+    var last = (first + instances - 1) >> CHUNK_SHIFT;
+    for(int chunk = first >> CHUNK_SHIFT; chunk <= last; chunk++) markDirty(chunk << CHUNK_SHIFT);
+  }
+
+  /**
+   * @param from the first chunk to look at
+   * @return the first dirty chunk at or after from, -1 if there is none
+   */
+  public int nextDirtyChunk(int from){
+    var word = from >> 6;
+    if(word >= dirty.length) return -1;
+
+    var bits = dirty[word] & (-1L << from);
+    while(bits == 0){
+      if(++word == dirty.length) return -1;
+      bits = dirty[word];
+    }
+    return (word << 6) + Long.numberOfTrailingZeros(bits);
+  }
+
+  /**
+   * @return whether the chunk changed since it was last cleared
+   */
+  public boolean isDirty(int chunk){
+    return (dirty[chunk >> 6] & (1L << chunk)) != 0;
+  }
+
+  public void clearDirty(int chunk){
+    var bit = 1L << chunk;
+    if((dirty[chunk >> 6] & bit) != 0){
+      dirty[chunk >> 6] &= ~bit;
+      dirtyChunks--;
+    }
+  }
+
+  /**
+   * Interleaves instances into the GPU layout, see {@link #INSTANCE_SIZE}
+   * @param address where the first instance is written
+   * @param first the first instance
+   * @param instances the number of instances, first + instances must not exceed {@link #count()}
+   */
+  public void pack(long address, int first, int instances){
+    for(int i = first, end = first + instances; i < end; i++, address += INSTANCE_SIZE){
+      MemoryUtil.memPutFloat(address,      x.get(i));
+      MemoryUtil.memPutFloat(address + 4,  y.get(i));
+      MemoryUtil.memPutFloat(address + 8,  scaleX.get(i));
+      MemoryUtil.memPutFloat(address + 12, scaleY.get(i));
+      MemoryUtil.memPutInt  (address + 16, color.get(i));
+      MemoryUtil.memPutInt  (address + 20, flags.get(i));
+    }
+  }
+
+  public int count()      { return count;       }
+  public int capacity()   { return capacity;    }
+  public int dirtyChunks(){ return dirtyChunks; }
+
+  /**
+   * @return the number of chunks the capacity is split into
+   */
+  public int chunks(){
+    return (capacity + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+  }
+
+  /**
+   * Frees the columns
+   */
+  public void dispose(){
+    MemoryUtil.memFree(x);
+    MemoryUtil.memFree(y);
+    MemoryUtil.memFree(scaleX);
+    MemoryUtil.memFree(scaleY);
+    MemoryUtil.memFree(color);
+    MemoryUtil.memFree(flags);
+  }
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.util.shaderc.Shaderc;
+
+/**
+ * Turns GLSL stages into SPIR-V, going through the {@link SpirvCache} first. Stages can be compiled concurrently.
+ *
+ * The shaderc compiler object is thread safe, its compile options are not. So every compiling thread gets its own clone of the options.
+ * shaderc is only initialized on the first cache miss, a warm start never touches it.
+ */
+public class ShaderCompiler {
+
+  //part of the SPIR-V cache key, so any change of the settings (or an update of the bundled shaderc) produces new cache entries
+  public static record CompilerSettings(boolean autoMapLocations, boolean autoBindUniforms, boolean nanClamp, int sourceLanguage, int optimizationLevel, int targetEnv, int envVersion, String lwjglVersion){}
+
+  /**
+   * @param path the GLSL source
+   * @param kind the shaderc shader kind, e.g. shaderc_vertex_shader
+   */
+  public static record Stage(String path, int kind){}
+
+  private CompilerSettings settings;
+  private SpirvCache       cache;
+
+  private volatile long compiler;
+  private long          initNanos;
+
+  private ThreadLocal<Long> threadOptions = ThreadLocal.withInitial(this::createOptions);
+  private List<Long>        allOptions    = new ArrayList<>(); //guarded by itself
+  private List<ByteBuffer>  compiled      = new ArrayList<>(); //guarded by itself. Owned until dispose, the mapped cache entries are owned by the GC
+  private Map<Stage, ByteBuffer> prefetched = new ConcurrentHashMap<>(); //handed out once by compile()
+
+  /**
+   * @param compilerSettings the settings every compilation uses
+   * @param spirvCache the cache looked up before compiling, keyed with the same settings
+   */
+  public ShaderCompiler(CompilerSettings compilerSettings, SpirvCache spirvCache){
+    settings = compilerSettings;
+    cache    = spirvCache;
+  }
+
+  private synchronized long compiler(){
+    if(compiler == MemoryUtil.NULL){
+      var start = System.nanoTime();
+      compiler  = Shaderc.shaderc_compiler_initialize();
+      initNanos = System.nanoTime() - start;
+    }
+    return compiler;
+  }
+
+  private Long createOptions(){
+    var options = Shaderc.shaderc_compile_options_initialize();
+
+    var cfg = settings;
+    Shaderc.shaderc_compile_options_set_auto_map_locations(options, cfg.autoMapLocations);
+    Shaderc.shaderc_compile_options_set_auto_bind_uniforms(options, cfg.autoBindUniforms);
+    Shaderc.shaderc_compile_options_set_nan_clamp         (options, cfg.nanClamp);
+    Shaderc.shaderc_compile_options_set_source_language   (options, cfg.sourceLanguage);
+    Shaderc.shaderc_compile_options_set_optimization_level(options, cfg.optimizationLevel);
+    Shaderc.shaderc_compile_options_set_target_env        (options, cfg.targetEnv, cfg.envVersion);
+
+    synchronized(allOptions){
+      allOptions.add(options);
+    }
+    return options;
+  }
+
+  /**
+   * Loads the stage from the cache, or compiles and caches it. Can be called from any thread
+   * @return the SPIR-V, valid until {@link #dispose()}
+   */
+  public ByteBuffer compile(Stage stage){
+    var ready = prefetched.remove(stage);
+    if(ready != null) return ready;
+
+    try{
+      //the cached SPIR-V is memory mapped straight from disk
+      var key = cache.key(Paths.get(stage.path), stage.kind);
+      var spirv = cache.load(key);
+
+      if(spirv == null){
+        spirv = compileWithShaderc(stage);
+        cache.store(key, spirv);
+      }
+
+      return spirv;
+    } catch (IOException x){
+      throw new RuntimeException(x);
+    }
+  }
+
+  private ByteBuffer compileWithShaderc(Stage stage){
+    var path = stage.path;
+    String fn = path.substring(path.lastIndexOf("/")+1, path.length());
+
+    try{
+      String src = Files.readString(Paths.get(path));
+      long ptr = Shaderc.shaderc_compile_into_spv(compiler(), src, stage.kind, fn, "main", threadOptions.get());
+
+      var state = Shaderc.shaderc_result_get_compilation_status(ptr);
+      if(state != Shaderc.shaderc_compilation_status_success){
+        String error = Shaderc.shaderc_result_get_error_message(ptr);
+        Shaderc.shaderc_result_release(ptr);
+        throw new RuntimeException(fn + ": " + error);
+      }
+
+      var data = Shaderc.shaderc_result_get_bytes(ptr);
+      //shaderc talks about guaranteed uint32_t alignment, so use that to be sure
+      var result = MemoryUtil.memAlignedAlloc(32, data.capacity());
+      result.put(data);
+      Shaderc.shaderc_result_release(ptr);
+
+      synchronized(compiled){
+        compiled.add(result);
+      }
+      return result.rewind();
+    } catch (IOException x){
+      throw new RuntimeException(x);
+    }
+  }
+
+  /**
+   * Compiles all stages concurrently on the given executor
+   * @return the SPIR-V of every stage, in the order of the stages
+   */
+  public ByteBuffer[] compileAll(ExecutorService executor, Stage... stages){
+    var tasks = new ArrayList<Callable<ByteBuffer>>();
+    for(var stage : stages) tasks.add(() -> compile(stage));
+
+    return invokeAll(executor, tasks).toArray(new ByteBuffer[0]);
+  }
+
+  /**
+   * Compiles the stages ahead of their use and blocks until all are done. The next {@link #compile(Stage)} of each stage returns its result right away.
+   * For the startup, where compiling needs neither a window nor a device and can overlap their creation
+   */
+  public void prefetch(ExecutorService executor, Stage... stages){
+    var spirv = compileAll(executor, stages);
+    for(int i = 0; i < stages.length; i++) prefetched.put(stages[i], spirv[i]);
+  }
+
+  /**
+   * Runs the tasks on the executor and waits for all of them. The first failure is rethrown, after every task finished
+   */
+  public static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks){
+    try{
+      var results = new ArrayList<T>();
+      for(var future : executor.invokeAll(tasks)) results.add(future.get());
+      return results;
+    }catch(ExecutionException x){
+      if(x.getCause() instanceof RuntimeException cause) throw cause;
+      throw new RuntimeException(x.getCause());
+    }catch(InterruptedException x){
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(x);
+    }
+  }
+
+  /**
+   * Frees a stage returned by {@link #compile(Stage)} early, once its module exists. Mapped cache entries are left to the GC
+   */
+  public void free(ByteBuffer spirv){
+    synchronized(compiled){
+      //by identity, ByteBuffer.equals compares the content
+      if(!compiled.removeIf(owned -> owned == spirv)) return;
+    }
+    MemoryUtil.memAlignedFree(spirv);
+  }
+
+  /**
+   * @return the time shaderc took to initialize, 0 if every stage came from the cache so far
+   */
+  public long initNanos(){ return initNanos; }
+
+  /**
+   * Releases shaderc and frees the compiled stages. No compilation may be running
+   */
+  public void dispose(){
+    for(var options : allOptions) Shaderc.shaderc_compile_options_release(options);
+    if(compiler != MemoryUtil.NULL) Shaderc.shaderc_compiler_release(compiler);
+
+    for(var spirv : compiled) MemoryUtil.memAlignedFree(spirv);
+  }
+}
@@ -0,0 +1,138 @@
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Watches the shader directory and rebuilds whatever depends on the shaders on a background thread whenever a source changes.
+ * The render thread picks the result up with {@link #poll()} at a frame boundary, which never blocks, and swaps it in.
+ *
+ * A failed rebuild (e.g. a compile error) is only logged, so the last good result stays in use. Editors often save a file in several
+ * writes, so changes are collected until the directory has been quiet for a moment before rebuilding.
+ *
+ * @param <T> the rebuilt objects, e.g. a set of pipelines and their shader modules
+ */
+public class ShaderReloader<T> {
+
+  private static final long QUIET_MILLIS = 100;
+
+  private WatchService watcher;
+  private Thread       thread;
+  private Supplier<T>  builder;
+  private Consumer<T>  discard;
+
+  private AtomicReference<T> pending = new AtomicReference<>(); //built, but not yet picked up by the render thread
+
+  private volatile int reloads;
+  private volatile int failures;
+
+  /**
+   * @param directory the directory holding the shader sources. Subdirectories are not watched
+   * @param build rebuilds everything from the current sources. Runs on the reload thread and throws a RuntimeException on failure
+   * @param destroy destroys a result that was never picked up, because a newer one replaced it or the reloader is disposed
+   */
+  public ShaderReloader(Path directory, Supplier<T> build, Consumer<T> destroy){
+    builder = build;
+    discard = destroy;
+
+    try{
+      watcher = FileSystems.getDefault().newWatchService();
+      directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+    }catch(IOException x){
+      throw new RuntimeException("Can't watch " + directory, x);
+    }
+
+    thread = new Thread(this::watch, "shader-reload");
+    thread.setDaemon(true);
+    thread.start();
+
+    System.out.println("Watching " + directory + " for shader changes");
+  }
+
+  private void watch(){
+    NativeMemoryStats.watchStack();
+
+    try{
+      while(true){
+        var key = watcher.take();
+        var shaderChanged = false;
+
+        //drain until the directory is quiet, so a burst of writes results in one rebuild
+        while(key != null){
+          for(var event : key.pollEvents()){
+            if(event.context() instanceof Path file && isShaderSource(file)) shaderChanged = true;
+          }
+          key.reset();
+          key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        if(shaderChanged) rebuild();
+      }
+    }catch(ClosedWatchServiceException | InterruptedException x){
+      //disposed
+    }
+  }
+
+  //includes are hashed into the SPIR-V cache key of their includers, so any source change rebuilds everything and the unchanged stages are cache hits
+  private static boolean isShaderSource(Path file){
+    var name = file.getFileName().toString();
+    return name.endsWith(".vsh") || name.endsWith(".fsh") || name.endsWith(".csh") || name.endsWith(".glsl");
+  }
+
+  private void rebuild(){
+    var start = System.nanoTime();
+
+    T result;
+    try{
+      result = builder.get();
+    }catch(RuntimeException x){
+      failures++;
+      System.out.println("Shader reload failed, keeping the last good pipelines: " + x.getMessage());
+      return;
+    }
+
+    var replaced = pending.getAndSet(result);
+    if(replaced != null) discard.accept(replaced); //never handed out, so nothing uses it
+
+    reloads++;
+    System.out.println(String.format("Shaders reloaded in %.1fms", (System.nanoTime() - start) / 1e6));
+  }
+
+  /**
+   * Called by the render thread at a frame boundary. Never blocks
+   * @return the result of a rebuild that finished since the last call, or null. The caller owns it from now on
+   */
+  public T poll(){
+    return pending.get() == null ? null : pending.getAndSet(null); //the plain read keeps the common case free of contention
+  }
+
+  public int reloads() { return reloads;  }
+  public int failures(){ return failures; }
+
+  /**
+   * Stops watching and waits for a running rebuild. A result that was never picked up is discarded
+   */
+  public void dispose(){
+    try{
+      watcher.close();
+    }catch(IOException x){
+      System.out.println("Failed to close the shader watcher: " + x.getMessage());
+    }
+
+    try{
+      thread.join();
+    }catch(InterruptedException x){
+      Thread.currentThread().interrupt();
+    }
+
+    var unused = pending.getAndSet(null);
+    if(unused != null) discard.accept(unused);
+  }
+}
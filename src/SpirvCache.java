@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Content addressed on-disk cache for compiled SPIR-V.
+ * The key covers everything that influences the compiler output: the GLSL source, every (transitively) included file,
+ * the shader stage and the compiler settings. So an entry is never invalidated, a changed input simply maps to a new file.
+ */
+public class SpirvCache {
+
+  private static final Pattern INCLUDE = Pattern.compile("^\\s*#\\s*include\\s*[\"<]([^\">]+)[\">]", Pattern.MULTILINE);
+
+  private Path   directory;
+  private String settingsKey;
+
+  private AtomicInteger hits   = new AtomicInteger(); //stages are looked up from multiple compile threads
+  private AtomicInteger misses = new AtomicInteger();
+
+  /**
+   * @param dir the directory holding the .spv files. Created on the first store
+   * @param settings a stable description of the compiler settings, such as the toString() of a record holding them
+   */
+  public SpirvCache(Path dir, String settings){
+    directory   = dir;
+    settingsKey = settings;
+  }
+
+  /**
+   * Computes the cache key of a shader stage. Reads the source and all includes, but does not compile anything
+   * @param source the path to the GLSL source
+   * @param stageType the shaderc shader kind
+   * @return the hex encoded SHA-256 key
+   */
+  public String key(Path source, int stageType) throws IOException {
+    MessageDigest digest;
+    try{
+      digest = MessageDigest.getInstance("SHA-256");
+    }catch(NoSuchAlgorithmException x){
+      throw new RuntimeException(x); //every JRE has to provide SHA-256
+    }
+
+    digest.update(settingsKey.getBytes(StandardCharsets.UTF_8));
+    digest.update(Integer.toString(stageType).getBytes(StandardCharsets.UTF_8));
+    hashSource(digest, source.toAbsolutePath().normalize(), new HashSet<>());
+
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  //hashes the file and then walks the include directives. Includes are resolved relative to the including file, as shaderc would
+  private void hashSource(MessageDigest digest, Path file, Set<Path> visited) throws IOException {
+    if(!visited.add(file)) return; //include guards are up to the shader, but don't loop forever on cycles
+
+    var bytes = Files.readAllBytes(file);
+    digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8)); //the file name ends up in the debug info / error messages
+    digest.update(bytes);
+
+    var matcher = INCLUDE.matcher(new String(bytes, StandardCharsets.UTF_8));
+    while(matcher.find()){
+      var include = file.resolveSibling(matcher.group(1)).normalize();
+      if(Files.exists(include)) hashSource(digest, include, visited); //a missing include makes the compilation fail anyway
+    }
+  }
+
+  /**
+   * Memory maps a cached stage. The returned buffer is a direct buffer that can be passed straight into VkShaderModuleCreateInfo.pCode.
+   * It is unmapped by the GC, so it must not be freed with MemoryUtil
+   * @param key the key from {@link #key(Path, int)}
+   * @return the mapped SPIR-V, or null on a cache miss
+   */
+  public ByteBuffer load(String key){
+    var file = directory.resolve(key + ".spv");
+    if(!Files.exists(file)) { misses.incrementAndGet(); return null; }
+
+    try(var channel = FileChannel.open(file, StandardOpenOption.READ)){
+      var size = channel.size();
+      if(size == 0 || size % 4 != 0) { misses.incrementAndGet(); return null; } //truncated or foreign file, SPIR-V is a stream of uint32
+
+      //the mapping stays valid after the channel is closed. Mappings are page aligned, so the uint32 alignment of pCode is given
+      var mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      hits.incrementAndGet();
+      return mapped;
+    }catch(IOException x){
+      System.out.println("Failed to read SPIR-V cache entry " + file + ": " + x.getMessage());
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Writes a compiled stage. Failing to write the cache is not fatal, it just means the next start is cold again
+   * @param key the key from {@link #key(Path, int)}
+   * @param spirv the compiled code, read from position to limit. The position is not changed
+   */
+  public void store(String key, ByteBuffer spirv){
+    try{
+      FileUtil.writeAtomic(directory.resolve(key + ".spv"), spirv);
+    }catch(IOException x){
+      System.out.println("Failed to write SPIR-V cache entry " + key + ": " + x.getMessage());
+    }
+  }
+
+  public int hits()  { return hits.get();   }
+  public int misses(){ return misses.get(); }
+}
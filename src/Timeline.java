@@ -0,0 +1,124 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.LongBuffer;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * A timeline semaphore: a 64 bit counter on the device that only ever grows. Every submit to the owning queue signals the next value,
+ * so "submit n finished" is simply "the counter reached n". The host can read the counter, or wait for any value, without a fence to reset.
+ * Submits on other queues wait on a value instead of a binary semaphore, which may be waited on any number of times.
+ *
+ * The wait and read structs are malloc'd once, so polling and waiting don't allocate. Not thread safe, the values are handed out in submission order.
+ */
+public class Timeline {
+
+  private VkDevice device;
+  private String   name;
+  private long     semaphore;
+
+  private long pending;   //the last value handed out by next(), i.e. signaled by the last submit
+  private long completed; //the last value read from the device. Only grows
+
+  private LongBuffer          counter;
+  private LongBuffer          waitSemaphore;
+  private LongBuffer          waitValue;
+  private VkSemaphoreWaitInfo waitInfo;
+
+  private long hostWaits;
+
+  /**
+   * @param dev the logical device, with the timelineSemaphore feature enabled
+   * @param timelineName used in errors and reports
+   */
+  public Timeline(VkDevice dev, String timelineName){
+    device = dev;
+    name   = timelineName;
+
+    try(var stack = MemoryStack.stackPush()){
+      var typeInfo = VkSemaphoreTypeCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_SEMAPHORE_TYPE_CREATE_INFO)
+        .semaphoreType(VK_SEMAPHORE_TYPE_TIMELINE)
+        .initialValue(0); //value 0 counts as reached, so waiting on a slot that never submitted returns right away
+
+      var semaInfo = VkSemaphoreCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO)
+        .pNext(typeInfo);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreateSemaphore(device, semaInfo, null, ptr), "semaphore");
+      semaphore = ptr.get(0);
+    }
+
+    counter       = MemoryUtil.memCallocLong(1);
+    waitSemaphore = MemoryUtil.memAllocLong(1).put(0, semaphore);
+    waitValue     = MemoryUtil.memCallocLong(1);
+
+    waitInfo = VkSemaphoreWaitInfo.calloc()
+      .sType(VK_STRUCTURE_TYPE_SEMAPHORE_WAIT_INFO)
+      .semaphoreCount(1) //shared by both arrays, so it isn't set by their setters
+      .pSemaphores(waitSemaphore)
+      .pValues(waitValue);
+  }
+
+  /**
+   * Hands out the value the next submit signals. The submit has to follow before any other value is handed out
+   */
+  public long next(){
+    return ++pending;
+  }
+
+  /**
+   * Reads the counter, unless everything handed out is known to be reached already
+   * @return the highest value the device has reached
+   */
+  public long completed(){
+    if(completed < pending){
+      check(vkGetSemaphoreCounterValue(device, semaphore, counter), "counter read");
+      completed = Math.max(completed, counter.get(0));
+    }
+    return completed;
+  }
+
+  /**
+   * @return whether the submit that signals value has finished. Doesn't block
+   */
+  public boolean reached(long value){
+    return value <= completed || value <= completed();
+  }
+
+  /**
+   * Blocks until the counter reached value. Returns right away if it already did, without a call into the driver
+   */
+  public void await(long value){
+    if(value <= completed) return;
+    if(value > pending) throw new IllegalStateException(name + " timeline: waiting for " + value + ", which no submit signals. Last handed out " + pending);
+
+    hostWaits++;
+    waitValue.put(0, value);
+    check(vkWaitSemaphores(device, waitInfo, -1L), "wait");
+    completed = value; //at least. The next read catches up
+  }
+
+  public long handle()   { return semaphore; }
+  public long pending()  { return pending;   }
+  public long hostWaits(){ return hostWaits; }
+
+  private void check(int result, String what){
+    if(result != VK_SUCCESS) throw new RuntimeException(name + " timeline: " + what + " failed with " + result);
+  }
+
+  /**
+   * The device must no longer signal or wait on the semaphore
+   */
+  public void dispose(){
+    vkDestroySemaphore(device, semaphore, null);
+
+    waitInfo.free();
+    MemoryUtil.memFree(counter);
+    MemoryUtil.memFree(waitSemaphore);
+    MemoryUtil.memFree(waitValue);
+  }
+}
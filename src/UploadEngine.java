@@ -0,0 +1,450 @@
+import static org.lwjgl.vulkan.VK13.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+/**
+ * Uploads data into device local buffers and images on the transfer queue.
+ *
+ * Data is copied into a persistently mapped staging ring, and the copies are batched into one cmdBuffer until {@link #flush()}.
+ * A batch is submitted to the transfer queue, which signals the batch's id on the transfer {@link Timeline}. Only once the host sees that value, the batch is
+ * acquired on the graphics queue (waiting on the same value, which is reached by then), which signals the id on the acquire timeline.
+ * Both timelines count batches, so the ring space of a batch is reclaimed as soon as the acquire timeline reached its id, without any fence to reset.
+ * So the graphics queue never waits on a running transfer, and the host only waits if the ring or the batch slots run out.
+ *
+ * With distinct queue families the resources are exclusively owned, so the transfer queue releases them and the graphics queue acquires them.
+ * If both are the same family, the acquire is just a barrier and no ownership changes hands.
+ *
+ * Not thread safe, all calls have to come from the render thread.
+ */
+public class UploadEngine {
+
+  private static final int BATCH_SLOTS = 4;
+
+  private static record PendingBuffer(long buffer, long offset, long size){}
+  private static record PendingImage (long image,  int aspectMask, int finalLayout){}
+
+  private static class Batch {
+    VkCommandBuffer transferCmd;
+    VkCommandBuffer acquireCmd;
+
+    long id;        //the value of the batch on both timelines
+    long ringEnd;   //virtual ring offset after the batch's last byte, the ring is reclaimed up to here once the batch completed
+    boolean acquired;
+
+    List<PendingBuffer> buffers = new ArrayList<>();
+    List<PendingImage>  images  = new ArrayList<>();
+  }
+
+  private VkDevice  device;
+  private VkQueue   transferQueue;
+  private VkQueue   graphicsQueue;
+  private int       transferFamily;
+  private int       graphicsFamily;
+  private GpuMemory memory;
+
+  private long transferPool;
+  private long graphicsPool;
+
+  //the ring is addressed with ever increasing virtual offsets, the physical offset is the virtual one modulo the capacity
+  private GpuMemory.Buffer ring;
+  private long ringHead; //next byte to write
+  private long ringTail; //oldest byte still in use by a batch
+
+  private Batch            current;    //the batch being recorded, null if there is none
+  private ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+  private ArrayDeque<Batch> free     = new ArrayDeque<>();
+
+  private Timeline transferTimeline; //signaled by the copies on the transfer queue
+  private Timeline acquireTimeline;  //signaled by the acquires on the graphics queue. Every batch with an id it reached is usable
+
+  private long bytesUploaded;
+  private long hostWaits; //how often an upload had to wait for ring space or a batch slot
+
+  /**
+   * @param dev the logical device
+   * @param transfer the queue the copies are submitted to
+   * @param transferFamilyIdx the family of the transfer queue
+   * @param graphics the queue the uploaded resources are used on
+   * @param graphicsFamilyIdx the family of the graphics queue
+   * @param gpuMemory the memory the staging ring is allocated from
+   * @param ringSize the size of the staging ring in bytes. Bounds the size of a single image upload
+   */
+  public UploadEngine(VkDevice dev, VkQueue transfer, int transferFamilyIdx, VkQueue graphics, int graphicsFamilyIdx, GpuMemory gpuMemory, long ringSize){
+    device         = dev;
+    transferQueue  = transfer;
+    graphicsQueue  = graphics;
+    transferFamily = transferFamilyIdx;
+    graphicsFamily = graphicsFamilyIdx;
+    memory         = gpuMemory;
+
+    ring = memory.createBuffer(GpuMemory.Usage.STAGING, ringSize);
+
+    transferPool = createPool(transferFamily);
+    graphicsPool = createPool(graphicsFamily);
+
+    transferTimeline = new Timeline(device, "Upload transfer");
+    acquireTimeline  = new Timeline(device, "Upload acquire");
+
+    for(int i = 0; i < BATCH_SLOTS; i++) free.add(createBatch());
+
+    System.out.println("Upload engine: staging ring " + (ringSize >> 20) + "MB, " + (ownershipTransfer() ? "dedicated transfer family " + transferFamily : "graphics family"));
+  }
+
+  private boolean ownershipTransfer(){
+    return transferFamily != graphicsFamily;
+  }
+
+  private long createPool(int family){
+    try(var stack = MemoryStack.stackPush()){
+      var createInfo = VkCommandPoolCreateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+        .flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT | VK_COMMAND_POOL_CREATE_TRANSIENT_BIT) //every batch is recorded once
+        .queueFamilyIndex(family);
+
+      var ptr = stack.mallocLong(1);
+      check(vkCreateCommandPool(device, createInfo, null, ptr), "command pool");
+      return ptr.get(0);
+    }
+  }
+
+  private Batch createBatch(){
+    try(var stack = MemoryStack.stackPush()){
+      var batch = new Batch();
+
+      var allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+        .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+        .commandBufferCount(1);
+
+      var cmdPtr = stack.mallocPointer(1);
+      check(vkAllocateCommandBuffers(device, allocInfo.commandPool(transferPool), cmdPtr), "transfer cmdBuffer");
+      batch.transferCmd = new VkCommandBuffer(cmdPtr.get(0), device);
+      check(vkAllocateCommandBuffers(device, allocInfo.commandPool(graphicsPool), cmdPtr), "acquire cmdBuffer");
+      batch.acquireCmd = new VkCommandBuffer(cmdPtr.get(0), device);
+      return batch;
+    }
+  }
+
+  /**
+   * Queues a copy of data into a device local buffer. Large uploads are split, so they may exceed the ring size
+   * @param dst a buffer created with VK_BUFFER_USAGE_TRANSFER_DST_BIT
+   * @param dstOffset the byte offset in dst
+   * @param data the bytes between position and limit. Copied before returning, so the buffer can be reused right away
+   */
+  public void uploadBuffer(GpuMemory.Buffer dst, long dstOffset, ByteBuffer data){
+    var total = data.remaining();
+    if(total == 0) return;
+
+    var chunk = (int)Math.min(ring.size() / 2, Integer.MAX_VALUE); //never wait for the whole ring to drain
+
+    for(int done = 0; done < total; done += chunk){
+      var size = Math.min(chunk, total - done);
+      var src  = stage(data, data.position() + done, size, 4);
+
+      try(var stack = MemoryStack.stackPush()){
+        var region = VkBufferCopy.calloc(1, stack)
+          .srcOffset(src)
+          .dstOffset(dstOffset + done)
+          .size(size);
+        vkCmdCopyBuffer(current.transferCmd, ring.handle(), dst.handle(), region);
+      }
+    }
+
+    current.buffers.add(new PendingBuffer(dst.handle(), dstOffset, total));
+    bytesUploaded += total;
+  }
+
+  /**
+   * Queues a copy of tightly packed texels into mip level 0, layer 0 of an image. The image's previous content is discarded
+   * @param image an image created with VK_IMAGE_USAGE_TRANSFER_DST_BIT
+   * @param width the width in texels
+   * @param height the height in texels
+   * @param aspectMask the aspect to write, usually VK_IMAGE_ASPECT_COLOR_BIT
+   * @param finalLayout the layout the image has once the upload is acquired, e.g. VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL
+   * @param data the texels between position and limit. Has to fit into the staging ring as a whole
+   */
+  public void uploadImage(long image, int width, int height, int aspectMask, int finalLayout, ByteBuffer data){
+    if(data.remaining() > ring.size()) throw new IllegalArgumentException("Image upload of " + data.remaining() + " bytes exceeds the staging ring");
+
+    var src = stage(data, data.position(), data.remaining(), 16); //copy offsets must be a multiple of the texel size, 16 covers all formats
+
+    try(var stack = MemoryStack.stackPush()){
+      var toTransfer = VkImageMemoryBarrier.calloc(1, stack)
+        .sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+        .srcAccessMask(0)
+        .dstAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+        .oldLayout(VK_IMAGE_LAYOUT_UNDEFINED) //discards the content
+        .newLayout(VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL)
+        .srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+        .dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+        .image(image)
+        .subresourceRange(r -> r.aspectMask(aspectMask).baseMipLevel(0).levelCount(1).baseArrayLayer(0).layerCount(1));
+      vkCmdPipelineBarrier(current.transferCmd, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, toTransfer);
+
+      var region = VkBufferImageCopy.calloc(1, stack)
+        .bufferOffset(src)
+        .bufferRowLength(0) //tightly packed
+        .bufferImageHeight(0)
+        .imageSubresource(s -> s.aspectMask(aspectMask).mipLevel(0).baseArrayLayer(0).layerCount(1))
+        .imageExtent(e -> e.set(width, height, 1));
+      vkCmdCopyBufferToImage(current.transferCmd, ring.handle(), image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, region);
+    }
+
+    current.images.add(new PendingImage(image, aspectMask, finalLayout));
+    bytesUploaded += data.remaining();
+  }
+
+  //copies the bytes into the ring and returns their physical offset. Starts a batch if there is none
+  private long stage(ByteBuffer data, int position, int size, int alignment){
+    var start = reserve(size, alignment);
+    if(current == null) begin();
+
+    MemoryUtil.memCopy(MemoryUtil.memAddress(data, position), ring.mapped() + start, size);
+    memory.flush(ring, start, size); //staging memory isn't necessarily coherent
+    return start;
+  }
+
+  private long reserve(long size, int alignment){
+    var capacity = ring.size();
+
+    while(true){
+      var head = (ringHead + alignment - 1) / alignment * alignment;
+      if(head % capacity + size > capacity) head += capacity - head % capacity; //doesn't fit in front of the end, continue at the start
+
+      if(head + size - ringTail <= capacity){
+        ringHead = head + size;
+        return head % capacity;
+      }
+
+      //the ring is full. The current batch might hold most of it, so submit it before waiting for the oldest batch
+      if(current != null) flush();
+      if(inFlight.isEmpty()){
+        //nothing uses the ring, only the wrap kept the upload from fitting. Start over at the beginning
+        ringHead = 0;
+        ringTail = 0;
+        continue;
+      }
+      waitOldest();
+    }
+  }
+
+  private void begin(){
+    if(free.isEmpty()){
+      //all slots are in flight, only possible with many flushes in short succession
+      waitOldest();
+    }
+
+    current = free.poll();
+    current.acquired = false;
+
+    try(var stack = MemoryStack.stackPush()){
+      var beginInfo = VkCommandBufferBeginInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+        .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+      check(vkBeginCommandBuffer(current.transferCmd, beginInfo), "begin transfer cmdBuffer");
+    }
+  }
+
+  /**
+   * Submits the queued copies to the transfer queue. Doesn't wait for anything
+   * @return the id of the submitted batch, for {@link #completed(long)}. 0 if nothing was queued
+   */
+  public long flush(){
+    if(current == null) return 0;
+
+    var batch = current;
+    current = null;
+    batch.ringEnd = ringHead;
+    batch.id      = transferTimeline.next(); //batches are submitted in order, so the id is their position on both timelines
+
+    try(var stack = MemoryStack.stackPush()){
+      //the transfer side of the barriers. With an ownership transfer this is the release, the access masks of the other side are ignored
+      recordBarriers(stack, batch, batch.transferCmd, true);
+      check(vkEndCommandBuffer(batch.transferCmd), "end transfer cmdBuffer");
+
+      var timelineInfo = VkTimelineSemaphoreSubmitInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_TIMELINE_SEMAPHORE_SUBMIT_INFO)
+        .pSignalSemaphoreValues(stack.longs(batch.id))
+        .signalSemaphoreValueCount(1);
+
+      var submitInfo = VkSubmitInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+        .pNext(timelineInfo)
+        .pCommandBuffers(stack.pointers(batch.transferCmd))
+        .pSignalSemaphores(stack.longs(transferTimeline.handle()));
+      check(vkQueueSubmit(transferQueue, submitInfo, VK_NULL_HANDLE), "transfer submit");
+    }
+
+    inFlight.add(batch);
+    return batch.id;
+  }
+
+  //release (transfer cmdBuffer) or acquire (graphics cmdBuffer) barriers for everything the batch wrote
+  private void recordBarriers(MemoryStack stack, Batch batch, VkCommandBuffer cmd, boolean release){
+    var ownership = ownershipTransfer();
+
+    //without an ownership transfer, the transfer side barrier (and the semaphore) already make the writes visible to every later use
+    if(!release && !ownership) return;
+
+    //the release half only makes the writes available, the acquire half makes them visible to the reads. The acquire's source is the semaphore wait
+    var srcStage  = release              ? VK_PIPELINE_STAGE_TRANSFER_BIT       : VK_PIPELINE_STAGE_ALL_COMMANDS_BIT;
+    var srcAccess = release              ? VK_ACCESS_TRANSFER_WRITE_BIT         : 0;
+    var dstStage  = release && ownership ? VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT : VK_PIPELINE_STAGE_ALL_COMMANDS_BIT;
+    var dstAccess = release && ownership ? 0 : VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT | VK_ACCESS_INDEX_READ_BIT | VK_ACCESS_UNIFORM_READ_BIT | VK_ACCESS_SHADER_READ_BIT;
+    var srcFamily = ownership ? transferFamily : VK_QUEUE_FAMILY_IGNORED;
+    var dstFamily = ownership ? graphicsFamily : VK_QUEUE_FAMILY_IGNORED;
+
+    var bufferBarriers = batch.buffers.isEmpty() ? null : VkBufferMemoryBarrier.calloc(batch.buffers.size(), stack);
+    for(int i = 0; i < batch.buffers.size(); i++){
+      var pending = batch.buffers.get(i);
+      bufferBarriers.get(i)
+        .sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+        .srcAccessMask(srcAccess)
+        .dstAccessMask(dstAccess)
+        .srcQueueFamilyIndex(srcFamily)
+        .dstQueueFamilyIndex(dstFamily)
+        .buffer(pending.buffer)
+        .offset(pending.offset)
+        .size(pending.size);
+    }
+
+    var imageBarriers = batch.images.isEmpty() ? null : VkImageMemoryBarrier.calloc(batch.images.size(), stack);
+    for(int i = 0; i < batch.images.size(); i++){
+      var pending = batch.images.get(i);
+      imageBarriers.get(i) //release and acquire have to state the same layout transition
+        .sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+        .srcAccessMask(srcAccess)
+        .dstAccessMask(dstAccess)
+        .oldLayout(VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL)
+        .newLayout(pending.finalLayout)
+        .srcQueueFamilyIndex(srcFamily)
+        .dstQueueFamilyIndex(dstFamily)
+        .image(pending.image)
+        .subresourceRange(r -> r.aspectMask(pending.aspectMask).baseMipLevel(0).levelCount(1).baseArrayLayer(0).layerCount(1));
+    }
+
+    vkCmdPipelineBarrier(cmd, srcStage, dstStage, 0, null, bufferBarriers, imageBarriers);
+  }
+
+  /**
+   * Progresses the in flight batches without blocking: acquires finished transfers on the graphics queue and reclaims the ring space of
+   * acquired ones. Meant to be called once per frame. Doesn't allocate if there is nothing in flight
+   */
+  public void update(){
+    if(inFlight.isEmpty()) return; //iterating would create an iterator
+
+    for(var batch : inFlight){
+      if(!batch.acquired){
+        if(!transferTimeline.reached(batch.id)) break; //batches complete in order
+        acquire(batch);
+      }
+    }
+
+    while(!inFlight.isEmpty() && inFlight.peek().acquired && acquireTimeline.reached(inFlight.peek().id)) retire(inFlight.poll());
+  }
+
+  //the transfer finished, so the timeline reached the batch and waiting on it doesn't hold up the graphics queue
+  private void acquire(Batch batch){
+    try(var stack = MemoryStack.stackPush()){
+      var beginInfo = VkCommandBufferBeginInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+        .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+      check(vkBeginCommandBuffer(batch.acquireCmd, beginInfo), "begin acquire cmdBuffer");
+      recordBarriers(stack, batch, batch.acquireCmd, false);
+      check(vkEndCommandBuffer(batch.acquireCmd), "end acquire cmdBuffer");
+
+      //the barriers of this batch also order all later graphics submits after the copies
+      var acquireValue = acquireTimeline.next();
+      var timelineInfo = VkTimelineSemaphoreSubmitInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_TIMELINE_SEMAPHORE_SUBMIT_INFO)
+        .pWaitSemaphoreValues(stack.longs(batch.id))
+        .waitSemaphoreValueCount(1)
+        .pSignalSemaphoreValues(stack.longs(acquireValue))
+        .signalSemaphoreValueCount(1);
+
+      var submitInfo = VkSubmitInfo.calloc(stack)
+        .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+        .pNext(timelineInfo)
+        .waitSemaphoreCount(1)
+        .pWaitSemaphores(stack.longs(transferTimeline.handle()))
+        .pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_ALL_COMMANDS_BIT))
+        .pCommandBuffers(stack.pointers(batch.acquireCmd))
+        .pSignalSemaphores(stack.longs(acquireTimeline.handle()));
+      check(vkQueueSubmit(graphicsQueue, submitInfo, VK_NULL_HANDLE), "acquire submit");
+      if(acquireValue != batch.id) throw new IllegalStateException("Upload engine: batch " + batch.id + " acquired out of order");
+    }
+
+    batch.acquired = true;
+  }
+
+  private void retire(Batch batch){
+    ringTail = batch.ringEnd;
+
+    batch.buffers.clear();
+    batch.images.clear();
+    vkResetCommandBuffer(batch.transferCmd, 0);
+    vkResetCommandBuffer(batch.acquireCmd, 0);
+    free.add(batch);
+  }
+
+  //blocks until the oldest batch is usable, acquiring it if necessary
+  private void waitOldest(){
+    var batch = inFlight.peek();
+    if(batch == null) throw new IllegalStateException("Upload engine has nothing in flight to wait for");
+
+    hostWaits++;
+    if(!batch.acquired){
+      transferTimeline.await(batch.id);
+      acquire(batch);
+    }
+    acquireTimeline.await(batch.id);
+    retire(inFlight.poll());
+  }
+
+  /**
+   * Flushes and blocks until every upload is usable. For init and teardown, not for frames
+   */
+  public void finish(){
+    flush();
+    while(!inFlight.isEmpty()) waitOldest();
+  }
+
+  /**
+   * @param batch an id returned by {@link #flush()}
+   * @return whether the batch's resources may be used by graphics submits from now on
+   */
+  public boolean completed(long batch){
+    return acquireTimeline.reached(batch);
+  }
+
+  public long bytesUploaded(){ return bytesUploaded; }
+  public long hostWaits()    { return hostWaits;     }
+
+  private static void check(int result, String what){
+    if(result != VK_SUCCESS) throw new RuntimeException("Upload engine: " + what + " failed with " + result);
+  }
+
+  /**
+   * Waits for everything in flight and destroys the engine's resources
+   */
+  public void dispose(){
+    if(current != null) vkEndCommandBuffer(current.transferCmd); //recorded but never submitted, it's simply dropped
+    while(!inFlight.isEmpty()) waitOldest();
+
+    transferTimeline.dispose();
+    acquireTimeline.dispose();
+
+    vkDestroyCommandPool(device, transferPool, null); //frees the cmdBuffers
+    vkDestroyCommandPool(device, graphicsPool, null);
+    memory.destroyBuffer(ring);
+
+    System.out.println(String.format("Upload engine: %.2fMB uploaded, %d host waits", bytesUploaded / 1e6, hostWaits));
+  }
+}
@@ -1,3 +1,4 @@
+import java.nio.file.Paths;
 import java.util.Arrays;
 
 import org.lwjgl.system.Configuration;
@@ -6,7 +7,9 @@ public class staging {
   public static void main(String[] args) {
     var lwjglDebug = false;
 
-    Configuration.MEMORY_ALLOCATOR.set("rpmalloc");
+    //rpmalloc either way. The stats count on top of it, cheap enough to stay on unless explicitly disabled
+    if(hasArg(args, "-nomemstats")) Configuration.MEMORY_ALLOCATOR.set("rpmalloc");
+    else                            NativeMemoryStats.install(Integer.parseInt(argValue(args, "-memsample", "64")));
 
     Configuration.DEBUG.set(lwjglDebug);
     Configuration.DEBUG_MEMORY_ALLOCATOR.set(lwjglDebug);
@@ -18,10 +21,51 @@ public class staging {
 
 
 
-    var app = new Application(1920, 1080, debug);
+    var inFlight = Integer.parseInt(argValue(args, "-inflight", System.getProperty("inflight", "" + Application.MIN_FRAMES_IN_FLIGHT)));
+
+    var app = new Application(1920, 1080, debug, inFlight);
+    if(hasArg(args, "-pacing")) app.setFramePacing(FramePacer.Policy.valueOf(argValue(args, "-pacing", "throughput").toUpperCase()), Integer.parseInt(argValue(args, "-fps", "60"))); //throughput, low_latency or power_capped
+    app.usePipelineCache(!hasArg(args, "-nopipelinecache"));
+    app.useDeviceCache(!hasArg(args, "-nodevicecache"));
+    app.useCachedCommandBuffers(hasArg(args, "-cachedcmds"));
+    if(hasArg(args, "-gpuprofile") || hasArg(args, "-gpustats")) app.enableGpuProfiler(hasArg(args, "-gpustats"));
+    app.useHeadlessSurface(hasArg(args, "-headlesssurface"));
+    if(hasArg(args, "-particles")) app.useAsyncCompute(Integer.parseInt(argValue(args, "-particles", "65536")));
+    if(hasArg(args, "-compilethreads")) app.setCompileThreads(Integer.parseInt(argValue(args, "-compilethreads", "1")));
+    app.useDynamicRendering(hasArg(args, "-dynamicrendering"));
+    app.useShaderHotReload(hasArg(args, "-hotreload"));
+    app.setDrawCount(Integer.parseInt(argValue(args, "-draws", "1")));
+    app.useParallelRecording(Integer.parseInt(argValue(args, "-workers", "0")));
+    app.useGpuDrivenRendering(hasArg(args, "-gpudriven"));
+    app.useInstancing(hasArg(args, "-instancing"));
+    app.setSceneAnimation(Float.parseFloat(argValue(args, "-animate", "0")));
+    app.setResizeStorm(Integer.parseInt(argValue(args, "-resizestorm", "0")));
+    if(hasArg(args, "-inittrace")) app.setInitTrace(Paths.get(argValue(args, "-inittrace", "init-trace.json")));
+
+    var headless = hasArg(args, "-headless");
+    app.useHeadless(headless);
+    app.setFrameLimit(Long.parseLong(argValue(args, "-frames", headless ? "1000" : "0"))); //without a window there's nothing to close
+
+    var readBytes = new long[1];
+    if(headless && hasArg(args, "-readback")) app.setReadback((frame, pixels, w, h) -> readBytes[0] += pixels.remaining());
+
 
     app.init();
     app.run();
     app.dispose();
+
+    if(readBytes[0] > 0) System.out.println(String.format("Read back %.1fMB of frame data", readBytes[0] / (1024.0 * 1024.0)));
+  }
+
+  private static boolean hasArg(String[] args, String name){
+    return Arrays.stream(args).anyMatch(s -> s.equals(name));
+  }
+
+  //returns the value following the given switch, e.g. "-inflight 3"
+  private static String argValue(String[] args, String name, String fallback){
+    for(int i = 0; i < args.length - 1; i++){
+      if(args[i].equals(name)) return args[i+1];
+    }
+    return fallback;
   }
 }
\ No newline at end of file